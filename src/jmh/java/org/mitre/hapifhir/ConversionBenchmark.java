@@ -0,0 +1,212 @@
+package org.mitre.hapifhir;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.put;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the steps of the conversion pipeline, over synthetic reports of increasing size.
+ * Run with ./gradlew jmh; the gc profiler is enabled so allocation rates are reported alongside
+ * throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+  private static final String CCN = "12001";
+  private static final String ORG_ID = "benchmark-org";
+  private static final String RESOURCE_ID = "8557319952834071";
+
+  @Param({"10", "100", "1000", "10000"})
+  public int observationCount;
+
+  private WireMockServer server;
+  private MedMorphToCIBMTR medmorphToCIBMTR;
+  private Bundle medmorphReport;
+  private MessageHeader messageHeader;
+  private List<BundleEntryComponent> observationEntries;
+  private final CibmtrPayloadWriter payloadWriter = new CibmtrPayloadWriter();
+  private String meta;
+  private String subject;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    server = new WireMockServer(wireMockConfig().dynamicPort());
+    server.start();
+    server.stubFor(put(urlMatching("/CRID"))
+        .willReturn(aResponse().withBody("{\"perfectMatch\":[{\"crid\":1982897480019337}]}")));
+    server.stubFor(get(urlMatching("/Patient\\?.+"))
+        .willReturn(aResponse().withBody("{\"total\":1,\"entry\":[{\"resource\":{\"id\":\"" + RESOURCE_ID + "\"}}]}")));
+    server.stubFor(get(urlMatching("/Observation\\?.+"))
+        .willReturn(aResponse().withBody("{\"resourceType\":\"Bundle\",\"total\":0}")));
+    server.stubFor(post(urlMatching("/Bundle"))
+        .willReturn(aResponse().withBody("{\"resourceType\":\"Bundle\"}")));
+    medmorphToCIBMTR = new MedMorphToCIBMTR("http://localhost:" + server.port() + "/");
+
+    medmorphReport = buildReport(observationCount);
+    messageHeader = (MessageHeader) medmorphReport.getEntry().get(0).getResource();
+    Bundle contentBundle = (Bundle) medmorphReport.getEntry().get(1).getResource();
+    observationEntries = contentBundle.getEntry().stream()
+        .filter(entry -> entry.getResource().getResourceType() == ResourceType.Observation)
+        .collect(Collectors.toList());
+    meta = payloadWriter.meta(CCN);
+    subject = payloadWriter.subject(RESOURCE_ID);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    medmorphToCIBMTR.close();
+    server.stop();
+  }
+
+  /**
+   * Build a MedMorph report with the given number of Observations.
+   * @param observationCount Number of Observations in the content bundle
+   * @return the report Bundle
+   */
+  static Bundle buildReport(int observationCount) {
+    Bundle report = new Bundle();
+    MessageHeader header = new MessageHeader();
+    header.setSender(new Reference("Organization/" + ORG_ID));
+    report.addEntry().setResource(header);
+
+    Bundle content = new Bundle();
+    Patient patient = new Patient();
+    patient.addName().setFamily("Doe").addGiven("John");
+    patient.setGender(AdministrativeGender.MALE);
+    patient.setBirthDateElement(new DateType("2000-01-01"));
+    content.addEntry().setResource(patient);
+    for (int i = 0; i < observationCount; i++) {
+      Observation observation = new Observation();
+      observation.setEffective(new DateTimeType("2010-01-01"));
+      observation.getCode().addCoding().setCode("8302-2").setSystem("http://loinc.org").setDisplay("Body Height");
+      observation.setValue(new Quantity().setValue(150 + i % 50).setUnit("cm").setSystem("http://unitsofmeasure.org").setCode("cm"));
+      content.addEntry().setFullUrl("http://example.org/fhir/Observation/" + i).setResource(observation);
+    }
+    report.addEntry().setResource(content);
+
+    // Pad with other resources so getCcn has to search for the Organization
+    for (int i = 0; i < observationCount / 10; i++) {
+      report.addEntry().setResource(new Organization().setId("other-org-" + i));
+    }
+    Organization organization = new Organization();
+    organization.setId(ORG_ID);
+    organization.addIdentifier().setSystem(MedMorphToCIBMTR.CCN_SYSTEM).setValue(CCN);
+    report.addEntry().setResource(organization);
+    return report;
+  }
+
+  @Benchmark
+  public String getCcn() {
+    return medmorphToCIBMTR.getCcn(medmorphReport.getEntry(), messageHeader);
+  }
+
+  @Benchmark
+  public JSONObject buildMeta() {
+    return medmorphToCIBMTR.buildMeta(CCN);
+  }
+
+  @Benchmark
+  public long writeObservationEntries() throws Exception {
+    // Payload building alone, entry by entry, without encoding or a Bundle around it
+    CountingWriter writer = new CountingWriter();
+    for (BundleEntryComponent entry : observationEntries) {
+      payloadWriter.writeObservationEntry(writer, (Observation) entry.getResource(), entry.getFullUrl(), meta, subject);
+    }
+    return writer.count;
+  }
+
+  @Benchmark
+  public long writeTransactionBundle() throws Exception {
+    // The streaming path used for the real Bundle POST
+    TransactionBundleEntity<BundleEntryComponent> entity = new TransactionBundleEntity<>(observationEntries,
+        (entry, writer) -> payloadWriter.writeObservationEntry(writer, (Observation) entry.getResource(), entry.getFullUrl(), meta, subject));
+    CountingOutputStream out = new CountingOutputStream();
+    entity.writeTo(out);
+    return out.count;
+  }
+
+  @Benchmark
+  public OperationOutcome convert() {
+    return medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+  }
+
+  private static class CountingWriter extends Writer {
+    private long count;
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      count += len;
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+      count += len;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private static class CountingOutputStream extends OutputStream {
+    private long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
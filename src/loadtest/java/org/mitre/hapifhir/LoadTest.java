@@ -0,0 +1,207 @@
+package org.mitre.hapifhir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+
+/**
+ * Load test for the whole conversion against a {@link StubCibmtrServer}, so changes to pooling,
+ * caching and batching can be checked against a slow and sometimes failing server.
+ * A fixed number of threads call {@link MedMorphToCIBMTR#convert(Bundle, MessageHeader, String)}
+ * back to back until all reports are submitted. It then prints throughput, latency percentiles
+ * and the number of requests sent per report.
+ *
+ * <p>Run with ./gradlew loadTest, passing options as -PloadTestArgs="--concurrency=32 --latency=100".
+ * Options, all optional:
+ * <ul>
+ * <li>--reports: reports to submit, default 500</li>
+ * <li>--warmup: reports submitted first and left out of the results, default 50</li>
+ * <li>--concurrency: reports submitted at once, default 16</li>
+ * <li>--observations: Observations per report, default 50</li>
+ * <li>--patients: distinct patients the reports are spread over, default 100</li>
+ * <li>--latency: minimum server response time in milliseconds, default 50</li>
+ * <li>--jitter: maximum random extra server response time in milliseconds, default 50</li>
+ * <li>--error-rate: share of requests the server fails with a 503, default 0.01</li>
+ * <li>--conditional-create: whether to use conditional create, default false</li>
+ * <li>--compression-threshold: smallest request body that is gzipped, default -1 for none</li>
+ * </ul>
+ */
+public class LoadTest {
+  private static final String CCN = "12001";
+  private static final String ORG_ID = "load-test-org";
+
+  private final Map<String, String> options = new TreeMap<>();
+
+  private LoadTest(String[] args) {
+    options.put("reports", "500");
+    options.put("warmup", "50");
+    options.put("concurrency", "16");
+    options.put("observations", "50");
+    options.put("patients", "100");
+    options.put("latency", "50");
+    options.put("jitter", "50");
+    options.put("error-rate", "0.01");
+    options.put("conditional-create", "false");
+    options.put("compression-threshold", "-1");
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      String name = arg.startsWith("--") && equals > 2 ? arg.substring(2, equals) : null;
+      if (name == null || !options.containsKey(name)) {
+        throw new IllegalArgumentException("Unknown option " + arg + ", expected one of " + options.keySet());
+      }
+      options.put(name, arg.substring(equals + 1));
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    new LoadTest(args).run();
+  }
+
+  private int intOption(String name) {
+    return Integer.parseInt(options.get(name));
+  }
+
+  private void run() throws Exception {
+    int concurrency = intOption("concurrency");
+    System.out.println("Options: " + options);
+    try (StubCibmtrServer server = new StubCibmtrServer(intOption("latency"), intOption("jitter"),
+            Double.parseDouble(options.get("error-rate")), Math.max(concurrency * 2, 16));
+        MedMorphToCIBMTR medmorphToCIBMTR = new MedMorphToCIBMTR(server.getUrl(), concurrency * 2, concurrency * 2,
+            TimeUnit.MINUTES.toMillis(1))) {
+      medmorphToCIBMTR.setConditionalCreate(Boolean.parseBoolean(options.get("conditional-create")));
+      medmorphToCIBMTR.setRequestCompressionThreshold(intOption("compression-threshold"));
+      ExecutorService drivers = Executors.newFixedThreadPool(concurrency);
+      try {
+        submit(medmorphToCIBMTR, drivers, intOption("warmup"), "warmup");
+        ConversionMetrics metrics = new ConversionMetrics();
+        medmorphToCIBMTR.setConversionListener(metrics);
+        long start = System.nanoTime();
+        long[] latencies = submit(medmorphToCIBMTR, drivers, intOption("reports"), "report");
+        long elapsed = System.nanoTime() - start;
+        printResults(metrics, latencies, elapsed);
+      } finally {
+        drivers.shutdownNow();
+      }
+    }
+  }
+
+  /**
+   * Submit reports from the driver threads, as fast as they complete.
+   * @param medmorphToCIBMTR Converter under test
+   * @param drivers One thread per concurrent report
+   * @param count Number of reports
+   * @param namePrefix Prefix for the patient given names, to keep runs apart
+   * @return the time each conversion took in nanoseconds, in no particular order
+   */
+  private long[] submit(MedMorphToCIBMTR medmorphToCIBMTR, ExecutorService drivers, int count, String namePrefix) throws Exception {
+    int observationCount = intOption("observations");
+    int patientCount = intOption("patients");
+    long[] latencies = new long[count];
+    AtomicInteger next = new AtomicInteger();
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < intOption("concurrency"); i++) {
+      futures.add(drivers.submit(() -> {
+        for (int report = next.getAndIncrement(); report < count; report = next.getAndIncrement()) {
+          Bundle medmorphReport = buildReport(namePrefix + (report % patientCount), report, observationCount);
+          MessageHeader messageHeader = (MessageHeader) medmorphReport.getEntry().get(0).getResource();
+          long start = System.nanoTime();
+          medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+          latencies[report] = System.nanoTime() - start;
+        }
+        return null;
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    return latencies;
+  }
+
+  private static void printResults(ConversionMetrics metrics, long[] latencies, long elapsedNanos) {
+    Arrays.sort(latencies);
+    long reports = metrics.getConversionCount();
+    double seconds = elapsedNanos / 1e9;
+    System.out.printf("Reports: %d in %.1f s, %.1f reports/s%n", reports, seconds, reports / seconds);
+    System.out.printf("Latency: p50 %d ms, p99 %d ms, max %d ms%n",
+        TimeUnit.NANOSECONDS.toMillis(percentile(latencies, 50)),
+        TimeUnit.NANOSECONDS.toMillis(percentile(latencies, 99)),
+        TimeUnit.NANOSECONDS.toMillis(latencies[latencies.length - 1]));
+    System.out.println("Outcomes: " + metrics.getConversionOutcomes());
+
+    long totalRequests = 0;
+    System.out.println("Requests per report, by stage:");
+    for (ConversionStage stage : ConversionStage.values()) {
+      long requests = metrics.getRequestCount(stage);
+      totalRequests += requests;
+      System.out.printf("  %-16s %6.2f  (p50 %d ms, p99 %d ms, %d failed, %d bytes sent)%n", stage,
+          (double) requests / reports, metrics.getLatencyPercentileMillis(stage, 50),
+          metrics.getLatencyPercentileMillis(stage, 99), metrics.getErrorCount(stage), metrics.getRequestBytes(stage, true));
+    }
+    System.out.printf("  %-16s %6.2f%n", "TOTAL", (double) totalRequests / reports);
+  }
+
+  /**
+   * @param sorted Values in ascending order
+   * @param percentile Percentile between 0 and 100
+   * @return the nearest-rank percentile
+   */
+  private static long percentile(long[] sorted, double percentile) {
+    if (sorted.length == 0) return 0;
+    int rank = (int) Math.ceil(sorted.length * percentile / 100);
+    return sorted[Math.max(0, rank - 1)];
+  }
+
+  /**
+   * Build a MedMorph report. Reports for the same patient get the same CRID, and the same
+   * report number gives the same Observations.
+   * @param givenName Patient given name
+   * @param reportNumber Report number, to make the Observation fullUrls unique
+   * @param observationCount Number of Observations in the content bundle
+   * @return the report Bundle
+   */
+  private static Bundle buildReport(String givenName, int reportNumber, int observationCount) {
+    Bundle report = new Bundle();
+    MessageHeader header = new MessageHeader();
+    header.setSender(new Reference("Organization/" + ORG_ID));
+    report.addEntry().setResource(header);
+
+    Bundle content = new Bundle();
+    Patient patient = new Patient();
+    patient.addName().setFamily("Doe").addGiven(givenName);
+    patient.setGender(AdministrativeGender.FEMALE);
+    patient.setBirthDateElement(new DateType("1980-01-01"));
+    content.addEntry().setResource(patient);
+    for (int i = 0; i < observationCount; i++) {
+      Observation observation = new Observation();
+      observation.setEffective(new DateTimeType("2010-01-01"));
+      observation.getCode().addCoding().setCode("8302-2").setSystem("http://loinc.org").setDisplay("Body Height");
+      observation.setValue(new Quantity().setValue(150 + i % 50).setUnit("cm").setSystem("http://unitsofmeasure.org").setCode("cm"));
+      content.addEntry().setFullUrl("http://example.org/fhir/Observation/" + reportNumber + "-" + i).setResource(observation);
+    }
+    report.addEntry().setResource(content);
+
+    Organization organization = new Organization();
+    organization.setId(ORG_ID);
+    organization.addIdentifier().setSystem(MedMorphToCIBMTR.CCN_SYSTEM).setValue(CCN);
+    report.addEntry().setResource(organization);
+    return report;
+  }
+}
@@ -0,0 +1,161 @@
+package org.mitre.hapifhir;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.json.JSONObject;
+
+/**
+ * Local stand-in for the CIBMTR FHIR API, for load testing. It answers the /CRID, /Patient,
+ * /Observation and /Bundle endpoints the way the real API does, after a configurable delay,
+ * and fails a configurable share of requests with a 503.
+ *
+ * <p>Patients are remembered, so a second report for the same patient finds the Patient created
+ * by the first, including through a conditional create. Observations are not, every duplicate
+ * check finds nothing.
+ */
+public class StubCibmtrServer implements AutoCloseable {
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final long latencyMillis;
+  private final long latencyJitterMillis;
+  private final double errorRate;
+  private final Map<String, String> patientIds = new ConcurrentHashMap<>();
+  private final AtomicLong nextPatientId = new AtomicLong(1);
+
+  /**
+   * Start the server on a free port.
+   * @param latencyMillis Minimum time every request takes
+   * @param latencyJitterMillis Maximum random time added to the minimum, for a uniform spread
+   * @param errorRate Share of requests, between 0 and 1, that fail with a 503
+   * @param threads Number of requests handled at once
+   */
+  public StubCibmtrServer(long latencyMillis, long latencyJitterMillis, double errorRate, int threads) throws IOException {
+    this.latencyMillis = latencyMillis;
+    this.latencyJitterMillis = latencyJitterMillis;
+    this.errorRate = errorRate;
+    this.executor = Executors.newFixedThreadPool(threads);
+    this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /**
+   * @return base URL of the server, ending with a slash
+   */
+  public String getUrl() {
+    return "http://localhost:" + server.getAddress().getPort() + "/";
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      InputStream requestStream = exchange.getRequestBody();
+      if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) requestStream = new GZIPInputStream(requestStream);
+      byte[] requestBody = readFully(requestStream);
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      long delay = latencyMillis + (latencyJitterMillis > 0 ? random.nextLong(latencyJitterMillis + 1) : 0);
+      if (delay > 0) TimeUnit.MILLISECONDS.sleep(delay);
+      if (random.nextDouble() < errorRate) {
+        respond(exchange, 503, "{\"resourceType\":\"OperationOutcome\"}");
+        return;
+      }
+
+      String method = exchange.getRequestMethod();
+      String path = exchange.getRequestURI().getPath();
+      if ("PUT".equals(method) && path.equals("/CRID")) {
+        respond(exchange, 200, "{\"perfectMatch\":[{\"crid\":" + crid(requestBody) + "}]}");
+      } else if ("GET".equals(method) && path.equals("/Patient")) {
+        String resourceId = patientIds.get(queryParam(exchange, "identifier"));
+        respond(exchange, 200, resourceId == null
+            ? "{\"resourceType\":\"Bundle\",\"total\":0}"
+            : "{\"resourceType\":\"Bundle\",\"total\":1,\"entry\":[{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"" + resourceId + "\"}}]}");
+      } else if ("POST".equals(method) && path.equals("/Patient")) {
+        String crid = new JSONObject(new String(requestBody, StandardCharsets.UTF_8))
+            .getJSONArray("identifier").getJSONObject(0).getString("value");
+        String newId = Long.toString(nextPatientId.getAndIncrement());
+        String resourceId = patientIds.putIfAbsent(crid, newId);
+        boolean created = resourceId == null;
+        // Without If-None-Exist a real server would create a duplicate, the stub hands back the same Patient
+        exchange.getResponseHeaders().set("Location", getUrl() + "Patient/" + (created ? newId : resourceId));
+        boolean conditional = exchange.getRequestHeaders().containsKey("If-None-Exist");
+        respond(exchange, created || !conditional ? 201 : 200, "");
+      } else if ("GET".equals(method) && path.equals("/Observation")) {
+        respond(exchange, 200, "{\"resourceType\":\"Bundle\",\"total\":0}");
+      } else if ("POST".equals(method) && path.equals("/Bundle")) {
+        respond(exchange, 200, "{\"resourceType\":\"Bundle\",\"type\":\"transaction-response\"}");
+      } else {
+        respond(exchange, 404, "{\"resourceType\":\"OperationOutcome\"}");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Make up a CRID from the patient demographics, so the same patient always gets the same one.
+   * @param requestBody CRID request
+   * @return the CRID
+   */
+  private static long crid(byte[] requestBody) {
+    JSONObject patient = new JSONObject(new String(requestBody, StandardCharsets.UTF_8)).getJSONObject("patient");
+    String demographics = patient.optString("firstName") + "|" + patient.optString("lastName") + "|" + patient.optString("birthDate");
+    return 1000000000000000L + (demographics.hashCode() & 0x7fffffffL);
+  }
+
+  private static String queryParam(HttpExchange exchange, String name) throws IOException {
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query == null) return null;
+    for (String param : query.split("&")) {
+      int equals = param.indexOf('=');
+      if (equals > 0 && param.substring(0, equals).equals(name)) {
+        return URLDecoder.decode(param.substring(equals + 1), "UTF-8");
+      }
+    }
+    return null;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int read; (read = in.read(buffer)) > 0; ) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/fhir+json; charset=UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+    if (bytes.length > 0) {
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes);
+      }
+    }
+  }
+}
@@ -0,0 +1,380 @@
+package org.mitre.hapifhir;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Observation.ObservationComponentComponent;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Property;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Type;
+import org.json.JSONObject;
+
+/**
+ * Writes the JSON payloads sent to CIBMTR directly from the FHIR model, without building an
+ * intermediate org.json tree for every resource. Parts of the payload that do not depend on the
+ * individual resource, such as the request block of a transaction entry and the meta.security
+ * block for a CCN, are built once and reused.
+ * 
+ * <p>Fields are written in the order a JSONObject iterates them, null values are left out, and
+ * strings and numbers are written with org.json's own quoting and number formatting. For an
+ * Observation with a single coding and a Quantity value, the entry is byte for byte what the
+ * earlier JSONObject-based code produced. Other Observations also carry every coding, the code
+ * text and their components, which that code left out.
+ *
+ * <p>Observation values are written through an {@link ObservationValueRegistry}, so any value
+ * type with a mapping can be sent; {@link #unmappableReason(Observation)} tells which
+ * Observations cannot be.
+ */
+class CibmtrPayloadWriter {
+  private static final String OBSERVATION_ENTRY_START = "{\"request\":{\"method\":\"POST\",\"url\":\"Observation\"},\"resource\":{";
+  private static final String CONDITIONAL_OBSERVATION_ENTRY_START = "{\"request\":{\"method\":\"POST\",\"ifNoneExist\":";
+  private static final String CONDITIONAL_OBSERVATION_ENTRY_END = ",\"url\":\"Observation\"},\"resource\":{";
+  private static final String OBSERVATION_IDENTIFIER_START = "\"identifier\":[{\"system\":"
+      + JSONObject.quote(MedMorphToCIBMTR.RESOURCE_IDENTIFIER_SYSTEM) + ",\"use\":\"official\",\"value\":";
+  private static final String PATIENT_IDENTIFIER_START = "{\"identifier\":[{\"system\":"
+      + JSONObject.quote(MedMorphToCIBMTR.CRID_SYSTEM) + ",\"use\":\"official\",\"value\":";
+  private static final String PATIENT_END = ",\"text\":{\"status\":\"empty\"},\"resourceType\":\"Patient\"}";
+  private static final String SECURITY_START = "{\"security\":[{\"system\":" + JSONObject.quote(MedMorphToCIBMTR.CCN_SYSTEM) + ",\"code\":";
+  // CCNs are a small, fixed set of transplant centers, but don't let unexpected input grow this forever
+  private static final int MAX_CACHED_METAS = 1000;
+  // 64-bit FNV-1a
+  private static final long HASH_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long HASH_PRIME = 0x100000001b3L;
+
+  private final Map<String, String> metaByCcn = new ConcurrentHashMap<>();
+  private volatile ObservationValueRegistry valueRegistry = ObservationValueRegistry.withDefaults();
+
+  /**
+   * Set the mappings used to write Observation values.
+   * @param valueRegistry Value mappings
+   */
+  void setValueRegistry(ObservationValueRegistry valueRegistry) {
+    this.valueRegistry = valueRegistry;
+  }
+
+  /**
+   * @return the version of the value mappings in use, which changes whenever they do
+   */
+  long valueMappingVersion() {
+    return valueRegistry.getVersion();
+  }
+
+  /**
+   * Check whether an Observation can be written as a transaction Bundle entry.
+   * It needs at least one code, an effective[x] that is a dateTime if it has one, and a value
+   * type with a mapping for its value and the value of each component.
+   * @param observation Observation from the submitted content bundle
+   * @return why the Observation cannot be written, or null if it can
+   */
+  String unmappableReason(Observation observation) {
+    if (observation.getCode().getCoding().isEmpty()) return "code has no coding";
+    Type effective = observation.getEffective();
+    if (effective != null && !effective.isEmpty() && !(effective instanceof DateTimeType)) {
+      return "effective[x] is a " + effective.fhirType() + ", only dateTime is supported";
+    }
+    ObservationValueRegistry registry = valueRegistry;
+    String reason = unmappableValueReason(registry, observation.getValue(), "value[x]");
+    List<ObservationComponentComponent> components = observation.getComponent();
+    for (int i = 0; reason == null && i < components.size(); i++) {
+      ObservationComponentComponent component = components.get(i);
+      if (component.getCode().getCoding().isEmpty()) return "component " + i + " code has no coding";
+      reason = unmappableValueReason(registry, component.getValue(), "component " + i + " value[x]");
+    }
+    return reason;
+  }
+
+  private static String unmappableValueReason(ObservationValueRegistry registry, Type value, String path) {
+    if (isEmptyValue(value) || registry.resolve(value) != null) return null;
+    return path + " of type " + value.fhirType() + " is not supported";
+  }
+
+  /**
+   * Get the resource.meta JSON for a CCN, with the expected security tag.
+   * @param ccn Submitter CCN
+   * @return the meta JSON
+   */
+  String meta(String ccn) {
+    String meta = metaByCcn.get(ccn);
+    if (meta == null) {
+      meta = SECURITY_START + JSONObject.quote("rc_" + ccn) + "}]}";
+      if (metaByCcn.size() < MAX_CACHED_METAS) metaByCcn.put(ccn, meta);
+    }
+    return meta;
+  }
+
+  /**
+   * Get the Observation.subject JSON pointing at a Patient resource.
+   * @param resourceId Patient resource ID
+   * @return the subject JSON
+   */
+  String subject(String resourceId) {
+    return "{\"reference\":" + JSONObject.quote("Patient/" + resourceId) + "}";
+  }
+
+  /**
+   * Write the transaction Bundle entry that creates an Observation.
+   * 
+   * @param writer Destination
+   * @param observation Observation from the submitted content bundle
+   * @param fullUrl fullUrl of the Observation entry, used as its identifier
+   * @param meta Meta JSON, from {@link #meta(String)}
+   * @param subject Subject JSON, from {@link #subject(String)}
+   */
+  void writeObservationEntry(Writer writer, Observation observation, String fullUrl, String meta, String subject) throws IOException {
+    writeObservationEntry(writer, observation, fullUrl, meta, subject, null);
+  }
+
+  /**
+   * Write the transaction Bundle entry that creates an Observation, optionally as a conditional create.
+   *
+   * @param writer Destination
+   * @param observation Observation from the submitted content bundle
+   * @param fullUrl fullUrl of the Observation entry, used as its identifier
+   * @param meta Meta JSON, from {@link #meta(String)}
+   * @param subject Subject JSON, from {@link #subject(String)}
+   * @param ifNoneExist Search query for request.ifNoneExist, or null for an unconditional create
+   */
+  void writeObservationEntry(Writer writer, Observation observation, String fullUrl, String meta, String subject,
+      String ifNoneExist) throws IOException {
+    ObservationValueRegistry registry = valueRegistry;
+    Type effectiveValue = observation.getEffective();
+    Date effective = effectiveValue instanceof DateTimeType ? ((DateTimeType) effectiveValue).getValue() : null;
+
+    if (ifNoneExist == null) {
+      writer.write(OBSERVATION_ENTRY_START);
+    } else {
+      writer.write(CONDITIONAL_OBSERVATION_ENTRY_START);
+      JSONObject.quote(ifNoneExist, writer);
+      writer.write(CONDITIONAL_OBSERVATION_ENTRY_END);
+    }
+    writer.write(OBSERVATION_IDENTIFIER_START);
+    JSONObject.quote(fullUrl, writer);
+    writer.write("}],\"code\":");
+    writeCodeableConcept(observation.getCode(), writer);
+    if (effective != null) {
+      writer.write(",\"effectiveDateTime\":");
+      JSONObject.quote(effective.toString(), writer);
+    }
+    writer.write(",\"meta\":");
+    writer.write(meta);
+    writer.write(",\"subject\":");
+    writer.write(subject);
+    writer.write(",\"resourceType\":\"Observation\"");
+    writeValue(registry, observation.getValue(), writer);
+    if (observation.hasComponent()) {
+      writer.write(",\"component\":[");
+      boolean first = true;
+      for (ObservationComponentComponent component : observation.getComponent()) {
+        if (!first) writer.write(',');
+        writer.write("{\"code\":");
+        writeCodeableConcept(component.getCode(), writer);
+        writeValue(registry, component.getValue(), writer);
+        writer.write('}');
+        first = false;
+      }
+      writer.write(']');
+    }
+    writer.write("}}");
+  }
+
+  /**
+   * Write a value[x] field, preceded by a comma, if there is a value.
+   * @param registry Value mappings
+   * @param value Value, may be null
+   * @param writer Destination
+   * @throws IllegalArgumentException if the value type has no mapping
+   */
+  private static void writeValue(ObservationValueRegistry registry, Type value, Writer writer) throws IOException {
+    if (isEmptyValue(value)) return;
+    ObservationValueRegistry.Mapping mapping = registry.resolve(value);
+    if (mapping == null) throw new IllegalArgumentException("No mapping for Observation values of type " + value.fhirType());
+    writer.write(',');
+    mapping.write(value, writer);
+  }
+
+  /**
+   * Whether a value has nothing to write. A primitive with only extensions, such as a
+   * data-absent-reason, is not empty to HAPI but has no value either.
+   * @param value Value, may be null
+   * @return true if the value is left out
+   */
+  private static boolean isEmptyValue(Type value) {
+    if (value == null || value.isEmpty()) return true;
+    return value instanceof PrimitiveType && !((PrimitiveType<?>) value).hasValue();
+  }
+
+  /**
+   * Write a CodeableConcept with all of its codings.
+   * @param concept CodeableConcept
+   * @param writer Destination
+   */
+  static void writeCodeableConcept(CodeableConcept concept, Writer writer) throws IOException {
+    writer.write('{');
+    boolean first = true;
+    if (!concept.getCoding().isEmpty()) {
+      writer.write("\"coding\":[");
+      for (Coding coding : concept.getCoding()) {
+        if (!first) writer.write(',');
+        writer.write('{');
+        boolean firstField = writeField(writer, "system", coding.getSystem(), true);
+        firstField = writeField(writer, "code", coding.getCode(), firstField);
+        writeField(writer, "display", coding.getDisplay(), firstField);
+        writer.write('}');
+        first = false;
+      }
+      writer.write(']');
+    }
+    writeField(writer, "text", concept.getText(), first);
+    writer.write('}');
+  }
+
+  /**
+   * Write a Quantity.
+   * @param quantity Quantity
+   * @param writer Destination
+   */
+  static void writeQuantity(Quantity quantity, Writer writer) throws IOException {
+    writer.write('{');
+    boolean first = writeField(writer, "unit", quantity.getUnit(), true);
+    first = writeField(writer, "system", quantity.getSystem(), first);
+    first = writeField(writer, "code", quantity.getCode(), first);
+    BigDecimal value = quantity.getValue();
+    if (value != null) {
+      if (!first) writer.write(',');
+      writer.write("\"value\":");
+      writer.write(JSONObject.numberToString(value));
+    }
+    writer.write('}');
+  }
+
+  /**
+   * Hash the parts of an Observation that end up in its transaction Bundle entry, from the raw
+   * values in the FHIR model, without parsing dates or quoting JSON.
+   * Observations that would be written differently get different hashes, barring collisions.
+   * @param observation Observation from the submitted content bundle
+   * @return the hash
+   */
+  long contentHash(Observation observation) {
+    long hash = HASH_OFFSET_BASIS;
+    hash = hash(hash, observation.getEffective());
+    hash = hash(hash, observation.getCode());
+    hash = hash(hash, observation.getValue());
+    for (ObservationComponentComponent component : observation.getComponent()) {
+      hash = hash(hash, component);
+    }
+    return hash;
+  }
+
+  /**
+   * Add an element of the FHIR model and everything in it to a hash.
+   * @param hash Hash so far
+   * @param element Element, may be null
+   * @return the new hash
+   */
+  private static long hash(long hash, Base element) {
+    if (element == null) return hash(hash, (String) null);
+    if (element.isPrimitive()) return hash(hash, element.primitiveValue());
+    for (Property property : element.children()) {
+      for (Base value : property.getValues()) {
+        hash = hash(hash, property.getName());
+        hash = hash(hash, value);
+      }
+    }
+    // Close the element, so its children cannot be mistaken for those of a sibling
+    return hash(hash, (String) null);
+  }
+
+  private static long hash(long hash, String value) {
+    // Characters are at most 0xffff, so the end markers cannot come from a string
+    if (value == null) return (hash ^ 0x10001) * HASH_PRIME;
+    for (int i = 0; i < value.length(); i++) {
+      hash = (hash ^ value.charAt(i)) * HASH_PRIME;
+    }
+    return (hash ^ 0x10000) * HASH_PRIME;
+  }
+
+  /**
+   * Build the Patient resource posted for a new CRID.
+   * @param ccn Submitter CCN
+   * @param crid Patient CRID
+   * @return the Patient JSON
+   */
+  String patient(String ccn, String crid) {
+    StringWriter writer = new StringWriter(256);
+    writer.write(PATIENT_IDENTIFIER_START);
+    quote(crid, writer);
+    writer.write("}],\"meta\":");
+    writer.write(meta(ccn));
+    writer.write(PATIENT_END);
+    return writer.toString();
+  }
+
+  /**
+   * Build the body of a /CRID request.
+   * @param ccn Submitter CCN
+   * @param firstName Patient first name
+   * @param lastName Patient last name
+   * @param birthDate Patient birth date
+   * @param gender Patient gender
+   * @return the request JSON
+   */
+  String cridRequest(String ccn, String firstName, String lastName, String birthDate, String gender) {
+    StringWriter writer = new StringWriter(256);
+    try {
+      writer.write("{\"patient\":{");
+      boolean first = writeField(writer, "firstName", firstName, true);
+      first = writeField(writer, "lastName", lastName, first);
+      first = writeField(writer, "gender", gender, first);
+      writeField(writer, "birthDate", birthDate, first);
+      writer.write('}');
+      if (ccn != null) {
+        writer.write(",\"ccn\":");
+        JSONObject.quote(ccn, writer);
+      }
+      writer.write('}');
+    } catch (IOException e) {
+      // StringWriter does not throw
+      throw new IllegalStateException(e);
+    }
+    return writer.toString();
+  }
+
+  /**
+   * Write a string field if it has a value, the way a JSONObject leaves out null values.
+   * @param writer Destination
+   * @param name Field name
+   * @param value Field value, may be null
+   * @param first Whether no field has been written yet in the current object
+   * @return whether no field has been written yet in the current object, after this one
+   */
+  private static boolean writeField(Writer writer, String name, String value, boolean first) throws IOException {
+    if (value == null) return first;
+    if (!first) writer.write(',');
+    writer.write('"');
+    writer.write(name);
+    writer.write("\":");
+    JSONObject.quote(value, writer);
+    return false;
+  }
+
+  private static void quote(String value, StringWriter writer) {
+    try {
+      JSONObject.quote(value, writer);
+    } catch (IOException e) {
+      // StringWriter does not throw
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,267 @@
+package org.mitre.hapifhir;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Sends the requests of a conversion to CIBMTR. Requests that fail with a transient error are
+ * retried with backoff, a circuit breaker can stop requests while CIBMTR is failing, bodies are
+ * compressed and decompressed, and a conversion listener is told the duration and body sizes of
+ * each request.
+ */
+class CibmtrTransport implements Closeable {
+  private static final int DEFAULT_MAX_RETRIES = 2;
+  private static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 200;
+  private static final long DEFAULT_MAX_BACKOFF_MILLIS = 5000;
+  private final CloseableHttpClient httpClient;
+  private ConversionListener conversionListener;
+  private RequestConfig requestConfig;
+  private int maxRetries = DEFAULT_MAX_RETRIES;
+  private long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+  private long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+  private CircuitBreaker circuitBreaker;
+  private int requestCompressionThreshold = -1;
+
+  /**
+   * @param httpClient Client used for all requests to CIBMTR, closed along with this transport
+   */
+  CibmtrTransport(CloseableHttpClient httpClient) {
+    this.httpClient = httpClient;
+  }
+
+  /**
+   * @param conversionListener Listener told about every request, or null to disable
+   */
+  void setConversionListener(ConversionListener conversionListener) {
+    this.conversionListener = conversionListener;
+  }
+
+  /**
+   * See {@link MedMorphToCIBMTR#setTimeouts(int, int)}.
+   * @param connectTimeoutMillis Maximum time to establish a connection, 0 for no limit
+   * @param socketTimeoutMillis Maximum time to wait for data from the server, 0 for no limit
+   */
+  void setTimeouts(int connectTimeoutMillis, int socketTimeoutMillis) {
+    this.requestConfig = RequestConfig.custom()
+        .setConnectTimeout(connectTimeoutMillis)
+        .setSocketTimeout(socketTimeoutMillis)
+        .build();
+  }
+
+  /**
+   * See {@link MedMorphToCIBMTR#setRetryPolicy(int, long, long)}.
+   * @param maxRetries Maximum retries of one request, 0 to disable retries
+   * @param initialBackoffMillis Upper bound of the wait before the first retry
+   * @param maxBackoffMillis Upper bound of the wait before any retry
+   */
+  void setRetryPolicy(int maxRetries, long initialBackoffMillis, long maxBackoffMillis) {
+    this.maxRetries = maxRetries;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+  }
+
+  /**
+   * See {@link MedMorphToCIBMTR#setRequestCompressionThreshold(int)}.
+   * @param thresholdBytes Smallest body that is compressed, 0 to compress every body, or -1 to never compress
+   */
+  void setRequestCompressionThreshold(int thresholdBytes) {
+    this.requestCompressionThreshold = thresholdBytes;
+  }
+
+  /**
+   * @param circuitBreaker Circuit breaker, or null to disable
+   */
+  void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+    this.circuitBreaker = circuitBreaker;
+  }
+
+  /**
+   * Close the HTTP client, releasing all pooled connections.
+   */
+  @Override
+  public void close() throws IOException {
+    httpClient.close();
+  }
+
+  /**
+   * Send a request to CIBMTR, retrying transient failures according to the retry policy.
+   * A 429 or 5xx response fails the request with an HttpResponseException rather than being passed to the handler.
+   * @param stage Conversion step the request is for
+   * @param request Request to send
+   * @param responseHandler Handler for the response
+   * @return the value returned by the response handler
+   */
+  <T> T execute(ConversionStage stage, HttpUriRequest request, ResponseHandler<? extends T> responseHandler) throws IOException {
+    if (requestConfig != null && request instanceof HttpRequestBase) ((HttpRequestBase) request).setConfig(requestConfig);
+    boolean idempotent = "GET".equals(request.getMethod()) || "PUT".equals(request.getMethod());
+    for (int attempt = 0; ; attempt++) {
+      try {
+        return executeOnce(stage, request, responseHandler);
+      } catch (IOException e) {
+        // Only a failure to connect, or a 429, guarantees that a non-idempotent request was not acted on
+        boolean retryable = idempotent ? isTransient(e)
+            : e instanceof ConnectException || e instanceof ConnectTimeoutException || isThrottled(e);
+        if (!retryable || attempt >= maxRetries) throw e;
+        long backoff = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt, 30));
+        try {
+          Thread.sleep(ThreadLocalRandom.current().nextLong(backoff + 1));
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          InterruptedIOException interruptedIO = new InterruptedIOException("Interrupted while waiting to retry");
+          interruptedIO.addSuppressed(e);
+          throw interruptedIO;
+        }
+      }
+    }
+  }
+
+  /**
+   * Send a request to CIBMTR once, checking and updating the circuit breaker and reporting
+   * the duration and body sizes to the conversion listener if there are any.
+   * The request body is compressed and the response body decompressed as needed. The bodies are
+   * only counted, and so wrapped and read to the end, when there is a listener.
+   * @param stage Conversion step the request is for
+   * @param request Request to send
+   * @param responseHandler Handler for the response
+   * @return the value returned by the response handler
+   */
+  private <T> T executeOnce(ConversionStage stage, HttpUriRequest request, ResponseHandler<? extends T> responseHandler) throws IOException {
+    CircuitBreaker breaker = circuitBreaker;
+    if (breaker != null && !breaker.allowRequest()) {
+      throw new CircuitOpenException("Not sending " + request.getMethod() + " " + request.getURI().getPath()
+          + ", CIBMTR requests are failing and the circuit breaker is open");
+    }
+    ConversionListener listener = conversionListener;
+    long start = listener != null ? System.nanoTime() : 0;
+    if (!request.containsHeader("Accept-Encoding")) request.setHeader("Accept-Encoding", "gzip");
+    HttpEntityEnclosingRequest entityRequest = request instanceof HttpEntityEnclosingRequest ? (HttpEntityEnclosingRequest) request : null;
+    HttpEntity requestEntity = entityRequest != null ? entityRequest.getEntity() : null;
+    TransferCounter transfer = listener != null ? new TransferCounter() : null;
+    if (requestEntity != null) {
+      HttpEntity wireEntity = requestEntity;
+      if (transfer != null) wireEntity = transfer.requestBody = new CountingEntity(requestEntity);
+      if (shouldCompress(requestEntity)) {
+        wireEntity = new GzipCompressingEntity(wireEntity);
+        if (transfer != null) wireEntity = new CountingEntity(wireEntity);
+      }
+      if (transfer != null) transfer.requestWire = (CountingEntity) wireEntity;
+      if (wireEntity != requestEntity) entityRequest.setEntity(wireEntity);
+    }
+    T result;
+    try {
+      result = httpClient.execute(request, response -> {
+        HttpEntity responseEntity = response.getEntity();
+        if (responseEntity != null) {
+          if (transfer != null) responseEntity = transfer.responseWire = new CountingEntity(responseEntity);
+          Header contentEncoding = responseEntity.getContentEncoding();
+          if (contentEncoding != null && "gzip".equalsIgnoreCase(contentEncoding.getValue())) {
+            responseEntity = new GzipDecompressingEntity(responseEntity);
+            if (transfer != null) responseEntity = new CountingEntity(responseEntity);
+            response.removeHeaders("Content-Encoding");
+            response.removeHeaders("Content-Length");
+          }
+          if (transfer != null) transfer.responseBody = (CountingEntity) responseEntity;
+          if (responseEntity != response.getEntity()) response.setEntity(responseEntity);
+        }
+        int status = response.getStatusLine().getStatusCode();
+        if (status == 429 || status >= 500) {
+          HttpEntity entity = response.getEntity();
+          String responseBody = entity != null ? EntityUtils.toString(entity) : "";
+          throw new HttpResponseException(status, request.getMethod() + " " + request.getURI().getPath()
+              + " failed with status " + status + ": " + responseBody);
+        }
+        T handled = responseHandler.handleResponse(response);
+        // Read whatever the handler left, as the client would to reuse the connection, so it is counted
+        if (transfer != null && transfer.responseBody != null) transfer.responseBody.drain();
+        return handled;
+      });
+    } catch (IOException | RuntimeException e) {
+      if (breaker != null) {
+        if (isTransient(e)) breaker.recordFailure();
+        else breaker.recordSuccess();
+      }
+      if (listener != null) {
+        transfer.report(listener, stage);
+        listener.onRequest(stage, System.nanoTime() - start, e);
+      }
+      throw e;
+    } finally {
+      // Retries wrap the original entity again
+      if (requestEntity != null) entityRequest.setEntity(requestEntity);
+    }
+    if (breaker != null) breaker.recordSuccess();
+    if (listener != null) {
+      transfer.report(listener, stage);
+      listener.onRequest(stage, System.nanoTime() - start, null);
+    }
+    return result;
+  }
+
+  /**
+   * Whether a request body is big enough to be worth compressing.
+   * @param entity Request body
+   * @return true if request compression is on, and the body is not already encoded and is at least
+   *         the threshold or of unknown size
+   */
+  private boolean shouldCompress(HttpEntity entity) {
+    if (requestCompressionThreshold < 0 || entity.getContentEncoding() != null) return false;
+    long length = entity.getContentLength();
+    return length < 0 || length >= requestCompressionThreshold;
+  }
+
+  /**
+   * Whether a request failure suggests CIBMTR is briefly unavailable, rather than that the
+   * request or its response was bad, so that trying again later may succeed.
+   * @param e Request failure
+   * @return true for timeouts, I/O errors, 429 and 5xx responses
+   */
+  private static boolean isTransient(Throwable e) {
+    if (e instanceof HttpResponseException) return isThrottled(e) || ((HttpResponseException) e).getStatusCode() >= 500;
+    return e instanceof IOException && !(e instanceof ClientProtocolException) && !(e instanceof CircuitOpenException);
+  }
+
+  /**
+   * Whether CIBMTR refused a request with 429 Too Many Requests, so it was not acted on.
+   * @param e Request failure
+   * @return true for a 429 response
+   */
+  private static boolean isThrottled(Throwable e) {
+    return e instanceof HttpResponseException && ((HttpResponseException) e).getStatusCode() == 429;
+  }
+
+  /**
+   * Counts the request and response bodies of one request, before and after compression.
+   */
+  private static class TransferCounter {
+    private CountingEntity requestBody;
+    private CountingEntity requestWire;
+    private CountingEntity responseBody;
+    private CountingEntity responseWire;
+
+    private void report(ConversionListener listener, ConversionStage stage) {
+      listener.onTransfer(stage, count(requestBody), count(requestWire), count(responseBody), count(responseWire));
+    }
+
+    private static long count(CountingEntity entity) {
+      return entity != null ? entity.getCount() : 0;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package org.mitre.hapifhir;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops requests to the CIBMTR server for a while after several failed in a row, so that
+ * reports fail fast while the server is down instead of each waiting on timeouts and retries.
+ * Once the open period has passed, a single trial request is let through: if it succeeds the
+ * breaker closes again, if it fails the breaker stays open for another period.
+ * One breaker may be shared by several {@link MedMorphToCIBMTR} instances that talk to the same server.
+ */
+public class CircuitBreaker {
+  private final int failureThreshold;
+  private final long openNanos;
+  private final LongSupplier clock;
+  private int consecutiveFailures;
+  private boolean open;
+  private boolean trialInFlight;
+  private long openedAt;
+
+  /**
+   * @param failureThreshold Number of consecutive failed requests that opens the breaker
+   * @param openDuration How long the breaker stays open before a trial request is allowed
+   * @param unit Unit of the openDuration
+   */
+  public CircuitBreaker(int failureThreshold, long openDuration, TimeUnit unit) {
+    this(failureThreshold, openDuration, unit, System::nanoTime);
+  }
+
+  CircuitBreaker(int failureThreshold, long openDuration, TimeUnit unit, LongSupplier clock) {
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.openNanos = unit.toNanos(openDuration);
+    this.clock = clock;
+  }
+
+  /**
+   * Check whether a request may be sent now. Every request that is allowed must be followed by
+   * a call to {@link #recordSuccess()} or {@link #recordFailure()}.
+   * @return true if the breaker is closed, or if this is the trial request after the open period
+   */
+  public synchronized boolean allowRequest() {
+    if (!open) return true;
+    if (trialInFlight || clock.getAsLong() - openedAt < openNanos) return false;
+    trialInFlight = true;
+    return true;
+  }
+
+  /**
+   * Record that a request reached the server and got a usable response, closing the breaker.
+   */
+  public synchronized void recordSuccess() {
+    consecutiveFailures = 0;
+    open = false;
+    trialInFlight = false;
+  }
+
+  /**
+   * Record that a request failed in a way that suggests the server is unavailable,
+   * opening the breaker if this was the trial request or enough failures have been seen in a row.
+   */
+  public synchronized void recordFailure() {
+    consecutiveFailures++;
+    if (trialInFlight || consecutiveFailures >= failureThreshold) {
+      open = true;
+      trialInFlight = false;
+      openedAt = clock.getAsLong();
+    }
+  }
+
+  /**
+   * @return whether the breaker is currently open, including while a trial request is in flight
+   */
+  public synchronized boolean isOpen() {
+    return open;
+  }
+}
@@ -0,0 +1,14 @@
+package org.mitre.hapifhir;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request to CIBMTR while the {@link CircuitBreaker} is open.
+ */
+public class CircuitOpenException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  public CircuitOpenException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,63 @@
+package org.mitre.hapifhir;
+
+/**
+ * Receives timings and outcomes of conversions, for example to publish them as metrics.
+ * Methods are called on whichever thread did the work, so implementations must be safe
+ * to use from multiple threads, and should return quickly.
+ * Every method does nothing by default, so implementations only override what they need.
+ *
+ * @see ConversionMetrics
+ */
+public interface ConversionListener {
+  /**
+   * Called after every request to the CIBMTR server, whether it succeeded or not.
+   * Lookups answered by a cache do not send a request, and are not reported.
+   * @param stage Conversion step the request was sent for
+   * @param durationNanos Time from sending the request to handling the response
+   * @param error Exception the request failed with, or null if a response was received
+   */
+  default void onRequest(ConversionStage stage, long durationNanos, Throwable error) {
+  }
+
+  /**
+   * Called after every request to the CIBMTR server with the size of its bodies, just before
+   * {@link #onRequest(ConversionStage, long, Throwable)}. The wire sizes are those sent and received,
+   * which are smaller when a body was gzipped. Headers are not counted, and neither is the rest of a
+   * response body when a request fails while the response is being read.
+   * @param stage Conversion step the request was sent for
+   * @param requestBytes Size of the request body before compression
+   * @param requestWireBytes Size of the request body as sent
+   * @param responseBytes Size of the response body after decompression
+   * @param responseWireBytes Size of the response body as received
+   */
+  default void onTransfer(ConversionStage stage, long requestBytes, long requestWireBytes, long responseBytes, long responseWireBytes) {
+  }
+
+  /**
+   * Called after a transaction Bundle of Observations has been accepted by the server.
+   * @param count Number of Observations in the transaction
+   */
+  default void onObservationsPosted(int count) {
+  }
+
+  /**
+   * Called once for each report when its conversion has finished.
+   * The reports of a {@link MedMorphToCIBMTR#convertAll(java.util.List, String)} call share their
+   * requests, so each is given an equal share of the call: its duration divided by the number of reports.
+   * The duration of the whole call is given to {@link #onBatchConversion(long, int)}.
+   * @param durationNanos Time the conversion took
+   * @param success Whether the report was submitted
+   * @param issueCode OperationOutcome issue code the conversion returned, such as "informational" or "processing"
+   */
+  default void onConversion(long durationNanos, boolean success, String issueCode) {
+  }
+
+  /**
+   * Called once when a {@link MedMorphToCIBMTR#convertAll(java.util.List, String)} call has finished,
+   * after {@link #onConversion(long, boolean, String)} has been called for each of its reports.
+   * @param durationNanos Time the whole call took
+   * @param reportCount Number of reports in the call
+   */
+  default void onBatchConversion(long durationNanos, int reportCount) {
+  }
+}
@@ -0,0 +1,266 @@
+package org.mitre.hapifhir;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory {@link ConversionListener} that keeps, for each {@link ConversionStage}, a count of
+ * requests, a latency histogram, a count of failures by exception class and the bytes sent and
+ * received, along with totals
+ * for conversions, batch conversions and posted Observations. Recording does not allocate, except the first time
+ * a new exception class or issue code is seen.
+ */
+public class ConversionMetrics implements ConversionListener {
+  /**
+   * Upper bounds of the latency histogram buckets, in milliseconds.
+   * Requests slower than the last bound go in an extra overflow bucket.
+   */
+  static final long[] BUCKET_BOUNDS_MILLIS = { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000 };
+
+  private final Map<ConversionStage, StageMetrics> stages = new EnumMap<>(ConversionStage.class);
+  private final LongAdder observationsPosted = new LongAdder();
+  private final LongAdder transactionsPosted = new LongAdder();
+  private final StageMetrics conversions = new StageMetrics();
+  private final Map<String, LongAdder> conversionOutcomes = new ConcurrentHashMap<>();
+  private final StageMetrics batches = new StageMetrics();
+
+  public ConversionMetrics() {
+    for (ConversionStage stage : ConversionStage.values()) {
+      stages.put(stage, new StageMetrics());
+    }
+  }
+
+  @Override
+  public void onRequest(ConversionStage stage, long durationNanos, Throwable error) {
+    stages.get(stage).record(durationNanos, error == null ? null : error.getClass().getName());
+  }
+
+  @Override
+  public void onTransfer(ConversionStage stage, long requestBytes, long requestWireBytes, long responseBytes, long responseWireBytes) {
+    StageMetrics metrics = stages.get(stage);
+    metrics.requestBytes.add(requestBytes);
+    metrics.requestWireBytes.add(requestWireBytes);
+    metrics.responseBytes.add(responseBytes);
+    metrics.responseWireBytes.add(responseWireBytes);
+  }
+
+  @Override
+  public void onObservationsPosted(int count) {
+    observationsPosted.add(count);
+    transactionsPosted.increment();
+  }
+
+  @Override
+  public void onConversion(long durationNanos, boolean success, String issueCode) {
+    conversions.record(durationNanos, null);
+    LongAdder outcomeCount = conversionOutcomes.get(issueCode);
+    if (outcomeCount == null) outcomeCount = conversionOutcomes.computeIfAbsent(issueCode, k -> new LongAdder());
+    outcomeCount.increment();
+  }
+
+  @Override
+  public void onBatchConversion(long durationNanos, int reportCount) {
+    batches.record(durationNanos, null);
+  }
+
+  /**
+   * @param stage Conversion step
+   * @return number of requests sent for the step, including failed ones
+   */
+  public long getRequestCount(ConversionStage stage) {
+    return stages.get(stage).count.sum();
+  }
+
+  /**
+   * @param stage Conversion step
+   * @return number of requests for the step that failed with an exception
+   */
+  public long getErrorCount(ConversionStage stage) {
+    return stages.get(stage).errorCount();
+  }
+
+  /**
+   * @param stage Conversion step
+   * @return number of failed requests for the step, keyed by exception class name
+   */
+  public Map<String, Long> getErrorCounts(ConversionStage stage) {
+    return stages.get(stage).errorCounts();
+  }
+
+  /**
+   * @param stage Conversion step
+   * @param unit Unit to return the time in
+   * @return total time spent on requests for the step
+   */
+  public long getTotalTime(ConversionStage stage, TimeUnit unit) {
+    return unit.convert(stages.get(stage).totalNanos.sum(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Estimate a latency percentile for a step from the histogram.
+   * @param stage Conversion step
+   * @param percentile Percentile between 0 and 100, such as 50 or 99
+   * @return upper bound in milliseconds of the histogram bucket holding the percentile,
+   *         Long.MAX_VALUE if it is in the overflow bucket, or 0 if there have been no requests
+   */
+  public long getLatencyPercentileMillis(ConversionStage stage, double percentile) {
+    return stages.get(stage).percentileMillis(percentile);
+  }
+
+  /**
+   * @param stage Conversion step
+   * @return number of requests in each histogram bucket, with upper bounds of 1, 2, 5, 10, 25, 50, 100,
+   *         250, 500, 1000, 2500, 5000, 10000 and 30000 milliseconds, then one for slower requests
+   */
+  public long[] getLatencyHistogram(ConversionStage stage) {
+    return stages.get(stage).histogram();
+  }
+
+  /**
+   * @param stage Conversion step
+   * @param wire Whether to count bytes as sent, rather than before compression
+   * @return total size of the request bodies sent for the step
+   */
+  public long getRequestBytes(ConversionStage stage, boolean wire) {
+    StageMetrics metrics = stages.get(stage);
+    return (wire ? metrics.requestWireBytes : metrics.requestBytes).sum();
+  }
+
+  /**
+   * @param stage Conversion step
+   * @param wire Whether to count bytes as received, rather than after decompression
+   * @return total size of the response bodies received for the step
+   */
+  public long getResponseBytes(ConversionStage stage, boolean wire) {
+    StageMetrics metrics = stages.get(stage);
+    return (wire ? metrics.responseWireBytes : metrics.responseBytes).sum();
+  }
+
+  /**
+   * @return number of Observations accepted by the server
+   */
+  public long getObservationsPosted() {
+    return observationsPosted.sum();
+  }
+
+  /**
+   * @return number of transaction Bundles accepted by the server
+   */
+  public long getTransactionsPosted() {
+    return transactionsPosted.sum();
+  }
+
+  /**
+   * @return number of finished conversions, successful or not
+   */
+  public long getConversionCount() {
+    return conversions.count.sum();
+  }
+
+  /**
+   * @return number of finished conversions, keyed by the OperationOutcome issue code they returned
+   */
+  public Map<String, Long> getConversionOutcomes() {
+    Map<String, Long> counts = new TreeMap<>();
+    conversionOutcomes.forEach((code, count) -> counts.put(code, count.sum()));
+    return counts;
+  }
+
+  /**
+   * Estimate a percentile of the time whole conversions took, see
+   * {@link #getLatencyPercentileMillis(ConversionStage, double)}.
+   * @param percentile Percentile between 0 and 100
+   * @return upper bound in milliseconds of the histogram bucket holding the percentile
+   */
+  public long getConversionLatencyPercentileMillis(double percentile) {
+    return conversions.percentileMillis(percentile);
+  }
+
+  /**
+   * @return number of finished {@link MedMorphToCIBMTR#convertAll(java.util.List, String)} calls
+   */
+  public long getBatchCount() {
+    return batches.count.sum();
+  }
+
+  /**
+   * Estimate a percentile of the time whole {@link MedMorphToCIBMTR#convertAll(java.util.List, String)}
+   * calls took, see {@link #getLatencyPercentileMillis(ConversionStage, double)}.
+   * @param percentile Percentile between 0 and 100
+   * @return upper bound in milliseconds of the histogram bucket holding the percentile
+   */
+  public long getBatchLatencyPercentileMillis(double percentile) {
+    return batches.percentileMillis(percentile);
+  }
+
+  /**
+   * Counters for one kind of timed event.
+   */
+  private static class StageMetrics {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final LongAdder requestBytes = new LongAdder();
+    private final LongAdder requestWireBytes = new LongAdder();
+    private final LongAdder responseBytes = new LongAdder();
+    private final LongAdder responseWireBytes = new LongAdder();
+
+    private void record(long durationNanos, String errorClass) {
+      count.increment();
+      totalNanos.add(durationNanos);
+      long millis = TimeUnit.NANOSECONDS.toMillis(durationNanos);
+      int bucket = 0;
+      while (bucket < BUCKET_BOUNDS_MILLIS.length && millis >= BUCKET_BOUNDS_MILLIS[bucket]) bucket++;
+      buckets.incrementAndGet(bucket);
+      if (errorClass != null) {
+        LongAdder errorCount = errors.get(errorClass);
+        if (errorCount == null) errorCount = errors.computeIfAbsent(errorClass, k -> new LongAdder());
+        errorCount.increment();
+      }
+    }
+
+    private long errorCount() {
+      long total = 0;
+      for (LongAdder errorCount : errors.values()) {
+        total += errorCount.sum();
+      }
+      return total;
+    }
+
+    private Map<String, Long> errorCounts() {
+      Map<String, Long> counts = new TreeMap<>();
+      errors.forEach((errorClass, errorCount) -> counts.put(errorClass, errorCount.sum()));
+      return counts;
+    }
+
+    private long[] histogram() {
+      long[] histogram = new long[buckets.length()];
+      for (int i = 0; i < histogram.length; i++) {
+        histogram[i] = buckets.get(i);
+      }
+      return histogram;
+    }
+
+    private long percentileMillis(double percentile) {
+      long[] histogram = histogram();
+      long total = 0;
+      for (long bucketCount : histogram) {
+        total += bucketCount;
+      }
+      if (total == 0) return 0;
+      long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+      long seen = 0;
+      for (int i = 0; i < BUCKET_BOUNDS_MILLIS.length; i++) {
+        seen += histogram[i];
+        if (seen >= rank) return BUCKET_BOUNDS_MILLIS[i];
+      }
+      return Long.MAX_VALUE;
+    }
+  }
+}
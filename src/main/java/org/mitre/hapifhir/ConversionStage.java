@@ -0,0 +1,31 @@
+package org.mitre.hapifhir;
+
+/**
+ * Steps of a conversion that send requests to the CIBMTR server, as reported to a {@link ConversionListener}.
+ */
+public enum ConversionStage {
+  /**
+   * PUT to the /CRID endpoint to obtain the CRID for the patient.
+   */
+  CRID,
+
+  /**
+   * Search for an existing Patient resource with the CRID.
+   */
+  PATIENT_SEARCH,
+
+  /**
+   * POST of a new Patient resource.
+   */
+  PATIENT_CREATE,
+
+  /**
+   * Search for Observations in the report that already exist on the server.
+   */
+  DUPLICATE_CHECK,
+
+  /**
+   * POST of a transaction Bundle of new Observations.
+   */
+  TRANSACTION
+}
@@ -0,0 +1,100 @@
+package org.mitre.hapifhir;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Entity wrapper that counts the bytes of the wrapped entity as they are written to a connection
+ * or read from one. Wrapping both sides of a compressing or decompressing entity gives the size of
+ * a body on the wire and its size uncompressed.
+ */
+class CountingEntity extends HttpEntityWrapper {
+  private long count;
+  private InputStream content;
+  private boolean contentClosed;
+
+  CountingEntity(HttpEntity wrappedEntity) {
+    super(wrappedEntity);
+  }
+
+  /**
+   * @return number of bytes written or read so far
+   */
+  long getCount() {
+    return count;
+  }
+
+  @Override
+  public void writeTo(OutputStream outStream) throws IOException {
+    count = 0;
+    wrappedEntity.writeTo(new FilterOutputStream(outStream) {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        count++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        count += len;
+      }
+    });
+  }
+
+  /**
+   * Read and count the rest of the content, unless it has already been closed.
+   */
+  void drain() throws IOException {
+    if (contentClosed) return;
+    try (InputStream remaining = content != null ? content : getContent()) {
+      if (remaining == null) return;
+      byte[] buffer = new byte[4096];
+      while (remaining.read(buffer) >= 0) {
+        // Counted by the stream
+      }
+    }
+  }
+
+  @Override
+  public InputStream getContent() throws IOException {
+    InputStream wrappedContent = wrappedEntity.getContent();
+    if (wrappedContent == null) return null;
+    contentClosed = false;
+    content = new FilterInputStream(wrappedContent) {
+      @Override
+      public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) count++;
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int read = in.read(b, off, len);
+        if (read > 0) count += read;
+        return read;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        long skipped = in.skip(n);
+        count += skipped;
+        return skipped;
+      }
+
+      @Override
+      public void close() throws IOException {
+        contentClosed = true;
+        super.close();
+      }
+    };
+    return content;
+  }
+}
@@ -0,0 +1,25 @@
+package org.mitre.hapifhir;
+
+/**
+ * Strategy used to find which Observations in a report already exist on the CIBMTR server.
+ */
+public enum DuplicateCheckMode {
+  /**
+   * Search for many Observations at once, using comma-separated identifier values.
+   * Identifiers are split across as many searches as needed to stay under the URL length limit.
+   */
+  BATCHED_SEARCH,
+
+  /**
+   * Search for each Observation on its own, one request at a time.
+   * For servers that do not support multiple values in an identifier search.
+   */
+  SEARCH_EACH,
+
+  /**
+   * Search for each Observation on its own, with several searches in flight at once.
+   * For servers that do not support multiple values in an identifier search,
+   * when one request at a time is too slow.
+   */
+  CONCURRENT_SEARCH_EACH
+}
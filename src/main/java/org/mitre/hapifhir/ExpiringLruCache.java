@@ -0,0 +1,128 @@
+package org.mitre.hapifhir;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * In-memory {@link LookupCache} that holds at most a fixed number of entries, evicting the
+ * least recently used entry when full, and expires entries a fixed time after they were added.
+ * Keeps hit and miss counts so the effectiveness of the cache can be monitored.
+ *
+ * @param <V> Type of the cached value
+ */
+public class ExpiringLruCache<V> implements LookupCache<V> {
+  private final Map<String, CacheEntry<V>> entries;
+  private final long ttlNanos;
+  private final LongSupplier clock;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param maxSize Maximum number of entries to hold
+   * @param ttl How long an entry stays valid after it is added
+   * @param unit Unit of the ttl
+   */
+  public ExpiringLruCache(int maxSize, long ttl, TimeUnit unit) {
+    this(maxSize, ttl, unit, System::nanoTime);
+  }
+
+  ExpiringLruCache(int maxSize, long ttl, TimeUnit unit, LongSupplier clock) {
+    this.ttlNanos = unit.toNanos(ttl);
+    this.clock = clock;
+    this.entries = new BoundedLinkedHashMap<>(maxSize);
+  }
+
+  @Override
+  public V get(String key) {
+    synchronized (entries) {
+      CacheEntry<V> entry = entries.get(key);
+      if (entry != null && clock.getAsLong() - entry.createdNanos >= ttlNanos) {
+        entries.remove(key);
+        entry = null;
+      }
+      if (entry == null) {
+        misses.incrementAndGet();
+        return null;
+      }
+      hits.incrementAndGet();
+      return entry.value;
+    }
+  }
+
+  @Override
+  public void put(String key, V value) {
+    synchronized (entries) {
+      entries.put(key, new CacheEntry<>(value, clock.getAsLong()));
+    }
+  }
+
+  @Override
+  public void invalidate(String key) {
+    synchronized (entries) {
+      entries.remove(key);
+    }
+  }
+
+  /**
+   * Remove all entries. Hit and miss counts are kept.
+   */
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  /**
+   * @return the number of entries currently held, which may include expired entries not yet removed
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return the number of lookups that found a valid entry
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of lookups that found no entry or an expired one
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Access-ordered map that drops its least recently used entry once it holds more than maxSize.
+   */
+  private static class BoundedLinkedHashMap<K, V> extends LinkedHashMap<K, V> {
+    private static final long serialVersionUID = 1L;
+    private final int maxSize;
+
+    private BoundedLinkedHashMap(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+      return size() > maxSize;
+    }
+  }
+
+  private static class CacheEntry<V> {
+    private final V value;
+    private final long createdNanos;
+
+    private CacheEntry(V value, long createdNanos) {
+      this.value = value;
+      this.createdNanos = createdNanos;
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package org.mitre.hapifhir;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+
+/**
+ * {@link SubmissionLedger} kept in an append-only file of 16 byte keys, the first 128 bits of the
+ * SHA-256 hash of each CCN, Patient resource ID and fullUrl. Keys are loaded into an in-memory hash
+ * table when the ledger is opened, which takes about 32 bytes per recorded Observation.
+ * Unlike a Bloom filter, a lookup only matches when the full 128 bit key does, so the chance of
+ * wrongly skipping an Observation is negligible.
+ */
+public class FileSubmissionLedger implements SubmissionLedger, Closeable {
+  private static final int KEY_LENGTH = 16;
+  private final FileOutputStream output;
+  private long[] high;
+  private long[] low;
+  private int size;
+
+  /**
+   * Open the ledger, loading the keys already in the file. A partly written key at the end of
+   * the file, left by a crash, is dropped.
+   * @param file Ledger file, created if it does not exist
+   */
+  public FileSubmissionLedger(File file) throws IOException {
+    byte[] contents = file.exists() ? Files.readAllBytes(file.toPath()) : new byte[0];
+    int keyCount = contents.length / KEY_LENGTH;
+    int capacity = 16;
+    while (capacity < keyCount * 2) capacity <<= 1;
+    high = new long[capacity];
+    low = new long[capacity];
+    ByteBuffer keys = ByteBuffer.wrap(contents, 0, keyCount * KEY_LENGTH);
+    while (keys.hasRemaining()) {
+      add(keys.getLong(), keys.getLong());
+    }
+
+    output = new FileOutputStream(file, true);
+    if (contents.length != keyCount * KEY_LENGTH) output.getChannel().truncate(keyCount * KEY_LENGTH);
+  }
+
+  @Override
+  public synchronized boolean contains(String ccn, String patientId, String fullUrl) {
+    ByteBuffer key = ByteBuffer.wrap(key(ccn, patientId, fullUrl));
+    return indexOf(key.getLong(), key.getLong()) >= 0;
+  }
+
+  @Override
+  public synchronized void record(String ccn, String patientId, Collection<String> fullUrls) throws IOException {
+    ByteBuffer newKeys = ByteBuffer.allocate(fullUrls.size() * KEY_LENGTH);
+    for (String fullUrl : fullUrls) {
+      byte[] key = key(ccn, patientId, fullUrl);
+      ByteBuffer buffer = ByteBuffer.wrap(key);
+      if (add(buffer.getLong(), buffer.getLong())) newKeys.put(key);
+    }
+    if (newKeys.position() == 0) return;
+    output.write(newKeys.array(), 0, newKeys.position());
+    output.getChannel().force(false);
+  }
+
+  /**
+   * @return number of recorded Observations
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    output.close();
+  }
+
+  /**
+   * Hash an Observation to its ledger key.
+   * @param ccn Submitter CCN
+   * @param patientId Patient resource ID
+   * @param fullUrl Observation fullUrl
+   * @return the 16 byte key
+   */
+  private static byte[] key(String ccn, String patientId, String fullUrl) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256
+      throw new IllegalStateException(e);
+    }
+    // The separator cannot appear in any of the values, so different triples never hash the same input
+    byte[] hash = digest.digest((ccn + '\0' + patientId + '\0' + fullUrl).getBytes(StandardCharsets.UTF_8));
+    byte[] key = new byte[KEY_LENGTH];
+    System.arraycopy(hash, 0, key, 0, KEY_LENGTH);
+    return key;
+  }
+
+  /**
+   * Find a key in the hash table, which uses open addressing with linear probing.
+   * The all-zero key marks an empty slot, so a real all-zero key is stored with its lowest bit set.
+   * @return the slot holding the key, or -1 if it is not present
+   */
+  private int indexOf(long keyHigh, long keyLow) {
+    if (keyHigh == 0 && keyLow == 0) keyLow = 1;
+    int mask = high.length - 1;
+    for (int slot = (int) keyLow & mask; ; slot = (slot + 1) & mask) {
+      if (high[slot] == keyHigh && low[slot] == keyLow) return slot;
+      if (high[slot] == 0 && low[slot] == 0) return -1;
+    }
+  }
+
+  /**
+   * Add a key to the hash table, growing it to keep it at most half full.
+   * @return whether the key was added, false if it was already present
+   */
+  private boolean add(long keyHigh, long keyLow) {
+    if (keyHigh == 0 && keyLow == 0) keyLow = 1;
+    if (indexOf(keyHigh, keyLow) >= 0) return false;
+    if ((size + 1) * 2 > high.length) {
+      long[] oldHigh = high;
+      long[] oldLow = low;
+      high = new long[oldHigh.length * 2];
+      low = new long[oldLow.length * 2];
+      size = 0;
+      for (int i = 0; i < oldHigh.length; i++) {
+        if (oldHigh[i] != 0 || oldLow[i] != 0) insert(oldHigh[i], oldLow[i]);
+      }
+    }
+    insert(keyHigh, keyLow);
+    return true;
+  }
+
+  private void insert(long keyHigh, long keyLow) {
+    int mask = high.length - 1;
+    int slot = (int) keyLow & mask;
+    while (high[slot] != 0 || low[slot] != 0) slot = (slot + 1) & mask;
+    high[slot] = keyHigh;
+    low[slot] = keyLow;
+    size++;
+  }
+}
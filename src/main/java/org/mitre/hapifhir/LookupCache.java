@@ -0,0 +1,29 @@
+package org.mitre.hapifhir;
+
+/**
+ * Cache for results of lookups against the CIBMTR server, such as CRIDs and Patient resource IDs.
+ * Implementations must be safe to use from multiple threads.
+ *
+ * @param <V> Type of the cached value
+ */
+public interface LookupCache<V> {
+  /**
+   * Look up a cached value.
+   * @param key Cache key
+   * @return the cached value, or null if there is none or it has expired
+   */
+  V get(String key);
+
+  /**
+   * Add or replace a cached value.
+   * @param key Cache key
+   * @param value Value to cache, must not be null
+   */
+  void put(String key, V value);
+
+  /**
+   * Remove a cached value, if present.
+   * @param key Cache key
+   */
+  void invalidate(String key);
+}
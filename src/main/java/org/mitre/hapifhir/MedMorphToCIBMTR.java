@@ -1,23 +1,68 @@
 package org.mitre.hapifhir;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
-import org.hl7.fhir.r4.model.CodeableConcept;
-import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.MessageHeader;
 import org.hl7.fhir.r4.model.Observation;
@@ -25,323 +70,1631 @@ import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
 import org.hl7.fhir.r4.model.Organization;
 import org.hl7.fhir.r4.model.Patient;
-import org.hl7.fhir.r4.model.Quantity;
-import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.ResourceType;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
-public class MedMorphToCIBMTR {
-  private static final String CCN_SYSTEM = "http://cibmtr.org/codesystem/transplant-center";
-  private static final String CRID_SYSTEM = "http://cibmtr.org/identifier/CRID";
-  private static final String RESOURCE_IDENTIFIER_SYSTEM = "urn:ietf:rfc:3986";
+public class MedMorphToCIBMTR implements AutoCloseable {
+  static final String CCN_SYSTEM = "http://cibmtr.org/codesystem/transplant-center";
+  static final String CRID_SYSTEM = "http://cibmtr.org/identifier/CRID";
+  static final String RESOURCE_IDENTIFIER_SYSTEM = "urn:ietf:rfc:3986";
+  private static final int DEFAULT_MAX_CONNECTIONS = 20;
+  private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+  private static final long DEFAULT_KEEP_ALIVE_MILLIS = 30000;
+  private static final int DEFAULT_OBSERVATION_SEARCH_BATCH_SIZE = 50;
+  private static final int DEFAULT_MAX_SEARCH_URL_LENGTH = 2000;
+  private static final int DEFAULT_DUPLICATE_CHECK_PARALLELISM = 8;
+  private static final int DEFAULT_ASYNC_THREADS = 10;
+  private static final int DEFAULT_MAX_TRANSACTION_ENTRIES = 500;
+  private static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+  private static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 60000;
   private String cibmtrUrl;
+  private final CibmtrTransport transport;
+  private DuplicateCheckMode duplicateCheckMode = DuplicateCheckMode.BATCHED_SEARCH;
+  private int observationSearchBatchSize = DEFAULT_OBSERVATION_SEARCH_BATCH_SIZE;
+  private int maxSearchUrlLength = DEFAULT_MAX_SEARCH_URL_LENGTH;
+  private int duplicateCheckParallelism = DEFAULT_DUPLICATE_CHECK_PARALLELISM;
+  private ExecutorService requestExecutor;
+  // Shared by every conversion, see getRequestExecutor
+  private final RequestPermits requestPermits = new RequestPermits(DEFAULT_DUPLICATE_CHECK_PARALLELISM);
+  private int maxTransactionEntries = DEFAULT_MAX_TRANSACTION_ENTRIES;
+  private long maxTransactionBytes = 0;
+  private int transactionParallelism = 1;
+  private final CibmtrPayloadWriter payloadWriter = new CibmtrPayloadWriter();
+  private final TransactionBundleEntity.EntryWriter<PendingObservation> observationEntryWriter = this::writeObservationEntry;
+  private Executor asyncExecutor;
+  private ExecutorService ownedAsyncExecutor;
+  private LookupCache<Number> cridCache;
+  private LookupCache<String> patientIdCache;
+  private LookupCache<String> observationEntryCache;
+  private ConversionListener conversionListener;
+  private volatile SubmissionQueue submissionQueue;
+  private SubmissionLedger submissionLedger;
+  private boolean conditionalCreate;
+  private final Map<String, CompletableFuture<Number>> cridRequests = new ConcurrentHashMap<>();
+  private final Map<String, CompletableFuture<PatientResolution>> patientResolutions = new ConcurrentHashMap<>();
 
   /**
    * @param cibmtrUrl Base FHIR endpoint for the target CIBMTR environment.
    */
   public MedMorphToCIBMTR(String cibmtrUrl) {
+    this(cibmtrUrl, DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_KEEP_ALIVE_MILLIS);
+  }
+
+  /**
+   * @param cibmtrUrl Base FHIR endpoint for the target CIBMTR environment.
+   * @param maxConnections Maximum number of pooled connections across all routes
+   * @param maxConnectionsPerRoute Maximum number of pooled connections to the CIBMTR host
+   * @param keepAliveMillis How long an idle connection is kept open for reuse
+   */
+  public MedMorphToCIBMTR(String cibmtrUrl, int maxConnections, int maxConnectionsPerRoute, long keepAliveMillis) {
+    this(cibmtrUrl, createHttpClient(maxConnections, maxConnectionsPerRoute, keepAliveMillis));
+  }
+
+  /**
+   * @param cibmtrUrl Base FHIR endpoint for the target CIBMTR environment.
+   * @param httpClient Client used for all requests to CIBMTR. It is closed along with this instance.
+   */
+  public MedMorphToCIBMTR(String cibmtrUrl, CloseableHttpClient httpClient) {
     this.cibmtrUrl = cibmtrUrl;
     if (!this.cibmtrUrl.endsWith("/")) this.cibmtrUrl += "/";
+    this.transport = new CibmtrTransport(httpClient);
+  }
+
+  /**
+   * Build an HTTP client backed by a connection pool, so that repeated requests to CIBMTR
+   * reuse open connections instead of paying for a new TCP and TLS handshake every time.
+   * Requests time out after 10 seconds trying to connect, or 60 seconds waiting for data.
+   * The client leaves compressed responses as they are, so that they are decompressed by
+   * this class, which counts their size before and after.
+   * 
+   * @param maxConnections Maximum number of pooled connections across all routes
+   * @param maxConnectionsPerRoute Maximum number of pooled connections to a single host
+   * @param keepAliveMillis How long an idle connection is kept open for reuse,
+   *        capped by any shorter Keep-Alive timeout the server sends
+   * @return the pooled client
+   */
+  public static CloseableHttpClient createHttpClient(int maxConnections, int maxConnectionsPerRoute, long keepAliveMillis) {
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+
+    return HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectTimeout(DEFAULT_CONNECT_TIMEOUT_MILLIS)
+            .setSocketTimeout(DEFAULT_SOCKET_TIMEOUT_MILLIS)
+            .build())
+        .setKeepAliveStrategy((response, context) -> {
+          long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+          return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAliveMillis) : keepAliveMillis;
+        })
+        .disableContentCompression()
+        .evictExpiredConnections()
+        .evictIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * Set how Observations are checked against the server for duplicates. Defaults to
+   * {@link DuplicateCheckMode#BATCHED_SEARCH}.
+   * @param duplicateCheckMode Duplicate check strategy
+   */
+  public void setDuplicateCheckMode(DuplicateCheckMode duplicateCheckMode) {
+    this.duplicateCheckMode = duplicateCheckMode;
+  }
+
+  /**
+   * Set the maximum number of identifiers sent in a single batched Observation search.
+   * @param observationSearchBatchSize Maximum identifiers per search, defaults to 50
+   */
+  public void setObservationSearchBatchSize(int observationSearchBatchSize) {
+    this.observationSearchBatchSize = observationSearchBatchSize;
+  }
+
+  /**
+   * Set the maximum length of a batched Observation search URL. Identifiers that would push
+   * a search past this length are sent in the next search instead.
+   * @param maxSearchUrlLength Maximum URL length in characters, defaults to 2000
+   */
+  public void setMaxSearchUrlLength(int maxSearchUrlLength) {
+    this.maxSearchUrlLength = maxSearchUrlLength;
+  }
+
+  /**
+   * Set the maximum number of Observation searches in flight at once when using
+   * {@link DuplicateCheckMode#CONCURRENT_SEARCH_EACH}. This should not exceed the
+   * per-route connection limit of the HTTP client, or searches will queue for a connection.
+   * @param duplicateCheckParallelism Maximum concurrent searches, defaults to 8
+   */
+  public void setDuplicateCheckParallelism(int duplicateCheckParallelism) {
+    this.duplicateCheckParallelism = duplicateCheckParallelism;
+    resizeRequestExecutor();
+  }
+
+  /**
+   * Set the maximum number of Observations posted in one transaction Bundle.
+   * Reports with more new Observations are posted as several transactions.
+   * @param maxTransactionEntries Maximum entries per transaction, defaults to 500, 0 for no limit
+   */
+  public void setMaxTransactionEntries(int maxTransactionEntries) {
+    this.maxTransactionEntries = maxTransactionEntries;
+  }
+
+  /**
+   * Set the maximum size of one transaction Bundle request body.
+   * Enforcing this means serializing every entry twice, once to measure and once to send.
+   * @param maxTransactionBytes Maximum bytes per transaction, defaults to 0 for no limit
+   */
+  public void setMaxTransactionBytes(long maxTransactionBytes) {
+    this.maxTransactionBytes = maxTransactionBytes;
+  }
+
+  /**
+   * Set how many transaction Bundles for the same submission may be posted at once.
+   * @param transactionParallelism Maximum concurrent transactions, defaults to 1
+   */
+  public void setTransactionParallelism(int transactionParallelism) {
+    this.transactionParallelism = transactionParallelism;
+    resizeRequestExecutor();
+  }
+
+  /**
+   * Set a cache for CRID lookups, keyed by CCN and the patient demographics sent to the /CRID endpoint.
+   * By default there is no cache and every report requests a CRID.
+   * @param cridCache CRID cache, or null to disable caching
+   */
+  public void setCridCache(LookupCache<Number> cridCache) {
+    this.cridCache = cridCache;
+  }
+
+  /**
+   * Set a cache for Patient resource IDs, keyed by CCN and CRID. The cache is filled both by
+   * searches that find an existing Patient and by newly created Patients.
+   * By default there is no cache and every report searches for the Patient.
+   * @param patientIdCache Patient resource ID cache, or null to disable caching
+   */
+  public void setPatientIdCache(LookupCache<String> patientIdCache) {
+    this.patientIdCache = patientIdCache;
+  }
+
+  /**
+   * Set a cache for the serialized transaction Bundle entries of Observations, keyed by fullUrl,
+   * a hash of the Observation content, CCN, Patient resource ID, the version of the Observation value
+   * mappings and whether conditional create is used. Entries are written more than once for each report, to size the transaction Bundles and
+   * again on every retry, and once more for each resubmission of the report, so the cache saves
+   * mapping the Observation again each time. A changed Observation, or a change to how its value is
+   * mapped, gets a new key, so it is never sent in its old form.
+   * By default there is no cache and every entry is serialized each time it is written.
+   * @param observationEntryCache Serialized entry cache, or null to disable caching
+   */
+  public void setObservationEntryCache(LookupCache<String> observationEntryCache) {
+    this.observationEntryCache = observationEntryCache;
+  }
+
+  /**
+   * Set how Observation values are mapped. Observations with a value type that has no mapping
+   * are not posted, and each one is listed in the diagnostics of the report it came from.
+   * By default the mappings of {@link ObservationValueRegistry#withDefaults()} are used.
+   * @param observationValueRegistry Value mappings
+   */
+  public void setObservationValueRegistry(ObservationValueRegistry observationValueRegistry) {
+    payloadWriter.setValueRegistry(observationValueRegistry);
+  }
+
+  /**
+   * Set a ledger of the Observations known to exist on the server. Observations in the ledger are
+   * skipped without a duplicate check request, and Observations that are posted or found by a
+   * duplicate check are added to it. By default there is no ledger and every Observation of a
+   * known Patient is checked against the server.
+   * @param submissionLedger Ledger, or null to disable
+   */
+  public void setSubmissionLedger(SubmissionLedger submissionLedger) {
+    this.submissionLedger = submissionLedger;
+  }
+
+  /**
+   * Use FHIR conditional create, so the server checks for duplicates as part of each create
+   * instead of in separate searches beforehand. The Patient POST carries an If-None-Exist header
+   * matching the CCN and CRID, and each Observation entry in a transaction Bundle carries an
+   * ifNoneExist matching its identifier. The server then only creates resources that do not exist yet.
+   * If the server finds several Patients matching the CRID, the Patient is looked up with a search as usual.
+   *
+   * By default this is off, and Patients and Observations are searched for before they are posted,
+   * which works with servers that do not support conditional create.
+   * @param conditionalCreate Whether to use conditional create
+   */
+  public void setConditionalCreate(boolean conditionalCreate) {
+    this.conditionalCreate = conditionalCreate;
+  }
+
+  /**
+   * Set the executor that runs the stages of {@link #convertAsync(Bundle, MessageHeader, String)}.
+   * By default a fixed pool of 10 daemon threads is created on first use and shut down by close.
+   * An executor set here is not shut down by close.
+   * @param asyncExecutor Executor for async conversions
+   */
+  public void setAsyncExecutor(Executor asyncExecutor) {
+    this.asyncExecutor = asyncExecutor;
+  }
+
+  /**
+   * Set a listener that is told the duration and outcome of every request to CIBMTR and of
+   * every conversion, for example a {@link ConversionMetrics}.
+   * By default there is no listener, and nothing is timed.
+   * @param conversionListener Listener, or null to disable
+   */
+  public void setConversionListener(ConversionListener conversionListener) {
+    this.conversionListener = conversionListener;
+    transport.setConversionListener(conversionListener);
+  }
+
+  /**
+   * Set the timeouts for every request to CIBMTR, replacing the request configuration of the HTTP client.
+   * A client from {@link #createHttpClient(int, int, long)} already has timeouts of 10 and 60 seconds.
+   * @param connectTimeoutMillis Maximum time to establish a connection, 0 for no limit
+   * @param socketTimeoutMillis Maximum time to wait for data from the server, 0 for no limit
+   */
+  public void setTimeouts(int connectTimeoutMillis, int socketTimeoutMillis) {
+    transport.setTimeouts(connectTimeoutMillis, socketTimeoutMillis);
+  }
+
+  /**
+   * Set how requests that fail with a timeout, a connection error, a 429 or a 5xx status are retried.
+   * GET and PUT requests are retried, since sending them twice has no further effect.
+   * POST requests are only retried when the connection could not be made or the server answered 429,
+   * so the server never acted on them.
+   * The wait before retry n is a random time up to initialBackoffMillis * 2^n, capped at maxBackoffMillis.
+   * @param maxRetries Maximum retries of one request, defaults to 2, 0 to disable retries
+   * @param initialBackoffMillis Upper bound of the wait before the first retry, defaults to 200
+   * @param maxBackoffMillis Upper bound of the wait before any retry, defaults to 5000
+   */
+  public void setRetryPolicy(int maxRetries, long initialBackoffMillis, long maxBackoffMillis) {
+    transport.setRetryPolicy(maxRetries, initialBackoffMillis, maxBackoffMillis);
+  }
+
+  /**
+   * Gzip request bodies of at least the given size before sending them, such as transaction Bundles.
+   * Smaller bodies, like the CRID request, are sent as they are since compressing them saves little.
+   * Bodies whose size is not known up front, which is the case for transaction Bundles, are always compressed.
+   * The server must accept "Content-Encoding: gzip" requests. Responses are requested gzipped regardless.
+   * @param thresholdBytes Smallest body that is compressed, 0 to compress every body,
+   *        or -1 to never compress request bodies, which is the default
+   */
+  public void setRequestCompressionThreshold(int thresholdBytes) {
+    transport.setRequestCompressionThreshold(thresholdBytes);
+  }
+
+  /**
+   * Set a circuit breaker that is told the result of every request to CIBMTR and, while open,
+   * fails requests without sending them. By default there is no circuit breaker.
+   * @param circuitBreaker Circuit breaker, or null to disable
+   */
+  public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+    transport.setCircuitBreaker(circuitBreaker);
+  }
+
+  /**
+   * Switch {@link #convert(Bundle, MessageHeader, String)}, {@link #convertAsync(Bundle, MessageHeader, String)}
+   * and {@link #convertAll(List, String)} to queued mode. Reports that pass the basic checks are
+   * written to a journal file and the call returns straight away, without contacting CIBMTR. Background workers then submit the queued reports, retrying those that fail because
+   * CIBMTR is unavailable. Reports left in the journal by a previous run are submitted as well.
+   * 
+   * Since a report may wait in the queue longer than a token is valid, the workers get a fresh
+   * token for each submission from the token supplier, and the token given to convert is not used.
+   * If the supplier throws, the submission is retried later like one CIBMTR was unavailable for.
+   * 
+   * @param journal Journal file, created if it does not exist
+   * @param authTokenSupplier Supplies the authentication token for each queued submission
+   * @param workers Number of queued reports submitted at once
+   * @return the queue, to monitor its depth or get the outcome of submissions
+   */
+  public SubmissionQueue enableSubmissionQueue(File journal, Supplier<String> authTokenSupplier, int workers) throws IOException {
+    return enableSubmissionQueue(journal, authTokenSupplier, workers, null);
+  }
+
+  /**
+   * Switch to queued mode, as {@link #enableSubmissionQueue(File, Supplier, int)} does, setting
+   * up the queue before its workers start. Use this to set the completion handler, retry delay or
+   * retry limits, so they also apply to reports left in the journal by a previous run.
+   *
+   * @param journal Journal file, created if it does not exist
+   * @param authTokenSupplier Supplies the authentication token for each queued submission
+   * @param workers Number of queued reports submitted at once
+   * @param setup Called with the queue before any report is submitted, or null
+   * @return the queue, to monitor its depth or get the outcome of submissions
+   */
+  public synchronized SubmissionQueue enableSubmissionQueue(File journal, Supplier<String> authTokenSupplier, int workers,
+      Consumer<SubmissionQueue> setup) throws IOException {
+    if (submissionQueue != null) throw new IllegalStateException("Submission queue is already enabled");
+    SubmissionQueue queue = new SubmissionQueue(journal, workers,
+        (medmorphReport, messageHeader) -> submitQueued(medmorphReport, messageHeader, authTokenSupplier));
+    try {
+      if (setup != null) setup.accept(queue);
+      queue.start();
+    } catch (RuntimeException e) {
+      queue.close();
+      throw e;
+    }
+    submissionQueue = queue;
+    return queue;
+  }
+
+  /**
+   * Close the submission queue, if enabled, and the underlying HTTP client,
+   * releasing all pooled connections. Reports still queued stay in the journal.
+   */
+  @Override
+  public void close() throws IOException {
+    SubmissionQueue queue;
+    synchronized (this) {
+      queue = submissionQueue;
+    }
+    try {
+      // First, so submissions in progress can finish with the executors and HTTP client
+      if (queue != null) queue.close();
+    } finally {
+      synchronized (this) {
+        if (requestExecutor != null) requestExecutor.shutdownNow();
+        if (ownedAsyncExecutor != null) ownedAsyncExecutor.shutdown();
+      }
+      transport.close();
+    }
+  }
+
+  /**
+   * Primary entrypoint into the MedMorph-to-CIBMTR translation process. 
+   * Takes in a MedMorph report bundle and parses out resources to submit to the CIBMTR endpoint,
+   * using the submission process defined in the API guidance.
+   *  1. Extract the Patient resource and CCN from the request.
+   *  2. Obtain a CRID for the given patient info via the /CRID endpoint.
+   *  3. Check if a Patient resource for the given CRID already exists.
+   *     If not, POST the Patient resource to the /Patient endpoint.
+   *  4. Check which Observations that are part of the report already exist on the server.
+   *     POST any that do not as part of a Bundle to the /Bundle endpoint.
+   *     
+   *  Returns an OperationOutcome with either error details, if the process was unsuccessful, 
+   *  or basic debugging info if the process was successful. A malformed report that fails with
+   *  an unexpected exception gets an "exception" issue rather than throwing.
+   *  
+   *  If the submission queue is enabled, only step 1 is done here and the report is queued
+   *  for the rest, see {@link #enableSubmissionQueue(File, Supplier, int)}.
+   *  
+   * @param medmorphReport MedMorph reporting Bundle
+   * @param messageHeader MessageHeader preparsed out of the above Bundle
+   * @param authToken Authentication token to passthrough to CIBMTR
+   * 
+   * @return OperationOutcome with details of success or failure
+   */
+  public OperationOutcome convert(Bundle medmorphReport, MessageHeader messageHeader, String authToken) {
+    SubmissionQueue queue = submissionQueue;
+    if (queue == null) return submit(medmorphReport, messageHeader, authToken);
+    return enqueue(queue, medmorphReport, messageHeader, authToken);
+  }
+
+  /**
+   * Check a report and add it to the submission queue.
+   * 
+   * @param queue Submission queue
+   * @param medmorphReport MedMorph reporting Bundle
+   * @param messageHeader MessageHeader preparsed out of the above Bundle
+   * @param authToken Authentication token, only used for the checks
+   * 
+   * @return OperationOutcome with the submission ID, or why the report was not queued
+   */
+  private OperationOutcome enqueue(SubmissionQueue queue, Bundle medmorphReport, MessageHeader messageHeader, String authToken) {
+    try {
+      // Reject reports that can never be submitted now, rather than after queueing them
+      prepareReport(medmorphReport, messageHeader, authToken);
+    } catch (ConversionException e) {
+      return e.toOperationOutcome();
+    } catch (RuntimeException e) {
+      // A malformed report, such as one whose second entry is not a Bundle
+      return createOperationOutcome(false, "exception", "Report could not be queued for submission.", e);
+    }
+    try {
+      String submissionId = queue.enqueue(medmorphReport, messageHeader);
+      return createOperationOutcome(true, "informational", "Report queued for submission with ID " + submissionId, null);
+    } catch (IOException | RuntimeException e) {
+      return createOperationOutcome(false, "exception", "Report could not be queued for submission.", e);
+    }
+  }
+
+  /**
+   * Submit a queued report with a fresh token from the token supplier. A supplier that fails, for
+   * instance because the token service is down, fails the submission as transient, so the queue
+   * keeps the report and retries it rather than completing it.
+   * 
+   * @param medmorphReport MedMorph reporting Bundle
+   * @param messageHeader MessageHeader preparsed out of the above Bundle
+   * @param authTokenSupplier Supplies the authentication token
+   * 
+   * @return OperationOutcome with details of success or failure
+   */
+  private OperationOutcome submitQueued(Bundle medmorphReport, MessageHeader messageHeader, Supplier<String> authTokenSupplier) {
+    String authToken;
+    try {
+      authToken = authTokenSupplier.get();
+    } catch (RuntimeException e) {
+      return createOperationOutcome(false, "transient", "Could not get an authentication token for the queued report.", e);
+    }
+    return submit(medmorphReport, messageHeader, authToken);
+  }
+
+  /**
+   * Run the full submission process for a report, see {@link #convert(Bundle, MessageHeader, String)}.
+   * 
+   * @param medmorphReport MedMorph reporting Bundle
+   * @param messageHeader MessageHeader preparsed out of the above Bundle
+   * @param authToken Authentication token to passthrough to CIBMTR
+   * 
+   * @return OperationOutcome with details of success or failure
+   */
+  private OperationOutcome submit(Bundle medmorphReport, MessageHeader messageHeader, String authToken) {
+    // https://fhir.nmdp.org/ig/cibmtr-reporting/CIBMTR_Direct_FHIR_API_Connection_Guide_STU3.pdf
+    ConversionListener listener = conversionListener;
+    long start = listener != null ? System.nanoTime() : 0;
+    OperationOutcome outcome;
+    try {
+      ReportContext context = prepareReport(medmorphReport, messageHeader, authToken);
+      requestCrid(context);
+      resolvePatient(context);
+      submitObservations(context);
+      outcome = createOperationOutcome(true, "informational", String.join("\n", context.diagnostics), null);
+    } catch (ConversionException e) {
+      outcome = e.toOperationOutcome();
+    } catch (RuntimeException e) {
+      // A malformed report, such as one whose second entry is not a Bundle
+      outcome = createOperationOutcome(false, "exception", "Conversion was not successful.", e);
+    }
+    if (listener != null) notifyConversion(listener, System.nanoTime() - start, outcome);
+    return outcome;
+  }
+
+  /**
+   * Non-blocking version of {@link #convert(Bundle, MessageHeader, String)}.
+   * Each step of the submission process runs as a separate stage on the async executor,
+   * so the calling thread is not held while waiting on CIBMTR.
+   * The returned future always completes normally, with the same OperationOutcome
+   * that convert would have returned.
+   * 
+   * If the submission queue is enabled, the report is only checked and queued, as convert does.
+   * 
+   * @param medmorphReport MedMorph reporting Bundle
+   * @param messageHeader MessageHeader preparsed out of the above Bundle
+   * @param authToken Authentication token to passthrough to CIBMTR
+   * 
+   * @return future OperationOutcome with details of success or failure
+   */
+  public CompletableFuture<OperationOutcome> convertAsync(Bundle medmorphReport, MessageHeader messageHeader, String authToken) {
+    Executor executor = getAsyncExecutor();
+    SubmissionQueue queue = submissionQueue;
+    if (queue != null) {
+      // Writing to the journal waits on the disk, so it also runs on the async executor
+      return CompletableFuture.supplyAsync(() -> enqueue(queue, medmorphReport, messageHeader, authToken), executor);
+    }
+    ConversionListener listener = conversionListener;
+    long start = listener != null ? System.nanoTime() : 0;
+    CompletableFuture<OperationOutcome> outcome = CompletableFuture
+        .supplyAsync(asyncStage(() -> prepareReport(medmorphReport, messageHeader, authToken)), executor)
+        .thenApplyAsync(asyncStage(this::requestCrid), executor)
+        .thenApplyAsync(asyncStage(this::resolvePatient), executor)
+        .thenApplyAsync(asyncStage(this::submitObservations), executor)
+        .handle((context, error) -> {
+          if (error == null) return createOperationOutcome(true, "informational", String.join("\n", context.diagnostics), null);
+          Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+          if (cause instanceof ConversionException) return ((ConversionException) cause).toOperationOutcome();
+          return createOperationOutcome(false, "exception", "Conversion was not successful.",
+              cause instanceof Exception ? (Exception) cause : new Exception(cause));
+        });
+    if (listener == null) return outcome;
+    return outcome.thenApply(result -> {
+      notifyConversion(listener, System.nanoTime() - start, result);
+      return result;
+    });
+  }
+
+  /**
+   * Convert many MedMorph reports in one call, for example a backlog built up during an outage.
+   * Reports are grouped so that there is a single CRID request for each distinct CCN and set of
+   * patient demographics, and a single Patient lookup or creation for each distinct CRID.
+   * The new Observations of all reports are then pooled and posted as transaction Bundles, split into
+   * chunks of at most {@link #setMaxTransactionEntries(int)} entries and {@link #setMaxTransactionBytes(long)}
+   * bytes, so a chunk may hold Observations of several reports. A chunk that fails only fails the
+   * reports owning an Observation in it, with a partial submission outcome; the other reports still succeed.
+   *
+   * Each report must have its MessageHeader as a Bundle entry.
+   * 
+   * If the submission queue is enabled, each report is only checked and queued, as convert does.
+   * 
+   * @param medmorphReports MedMorph reporting Bundles
+   * @param authToken Authentication token to passthrough to CIBMTR
+   * 
+   * @return one OperationOutcome per report, in the same order as the reports
+   */
+  public List<OperationOutcome> convertAll(List<Bundle> medmorphReports, String authToken) {
+    SubmissionQueue queue = submissionQueue;
+    if (queue != null) return enqueueAll(queue, medmorphReports, authToken);
+
+    ConversionListener listener = conversionListener;
+    long start = listener != null ? System.nanoTime() : 0;
+    List<OperationOutcome> outcomes = new ArrayList<>(medmorphReports.size());
+    List<ReportContext> contexts = new ArrayList<>(medmorphReports.size());
+    Map<String, List<ReportContext>> cridGroups = new LinkedHashMap<>();
+    for (int i = 0; i < medmorphReports.size(); i++) {
+      Bundle medmorphReport = medmorphReports.get(i);
+      ReportContext context = null;
+      try {
+        MessageHeader messageHeader = findMessageHeader(medmorphReport);
+        if (messageHeader == null) throw new ConversionException("required", "Submitted report bundle must contain a MessageHeader", null);
+        context = prepareReport(medmorphReport, messageHeader, authToken);
+        String key;
+        try {
+          key = cridKey(context.ccn, context.patient);
+        } catch (RuntimeException e) {
+          // Incomplete demographics, let the CRID request report the error for this report alone
+          key = "report-" + i;
+        }
+        cridGroups.computeIfAbsent(key, k -> new ArrayList<>()).add(context);
+        outcomes.add(null);
+      } catch (ConversionException e) {
+        outcomes.add(e.toOperationOutcome());
+      } catch (RuntimeException e) {
+        // A malformed report, which fails alone rather than failing the whole call
+        outcomes.add(createOperationOutcome(false, "exception", "Conversion was not successful.", e));
+      }
+      contexts.add(context);
+    }
+
+    Map<String, List<ReportContext>> patientGroups = new LinkedHashMap<>();
+    for (List<ReportContext> group : cridGroups.values()) {
+      runSharedStep(group, this::requestCrid, (source, target) -> target.crid = source.crid);
+      for (ReportContext context : group) {
+        if (context.failure == null) patientGroups.computeIfAbsent(context.ccn + "|" + context.crid, k -> new ArrayList<>()).add(context);
+      }
+    }
+
+    List<PendingObservation> pendingObservations = new ArrayList<>();
+    Map<ReportContext, List<PendingObservation>> reportObservations = new LinkedHashMap<>();
+    for (List<ReportContext> group : patientGroups.values()) {
+      runSharedStep(group, this::resolvePatient, (source, target) -> {
+        target.resourceId = source.resourceId;
+        target.isPatientNew = source.isPatientNew;
+      });
+      ReportContext first = group.get(0);
+      if (first.failure != null) continue;
+
+      // The same Observation may appear in several reports, only post it once
+      Map<String, BundleEntryComponent> observationEntries = new LinkedHashMap<>();
+      Map<String, ReportContext> owners = new HashMap<>();
+      for (ReportContext context : group) {
+        reportObservations.put(context, new ArrayList<>());
+        for (BundleEntryComponent entry : selectMappableObservations(context.content.getEntries(ResourceType.Observation), context.diagnostics)) {
+          if (!entry.hasFullUrl()) continue;
+          if (observationEntries.putIfAbsent(entry.getFullUrl(), entry) == null) owners.put(entry.getFullUrl(), context);
+        }
+      }
+
+      try {
+        List<BundleEntryComponent> newEntries = filterNewObservations(authToken, first.ccn, first.resourceId,
+            new ArrayList<>(observationEntries.values()), first.isPatientNew);
+        PatientTarget target = new PatientTarget(first.ccn, first.resourceId);
+        for (BundleEntryComponent entry : newEntries) {
+          PendingObservation pending = new PendingObservation(entry, target);
+          pendingObservations.add(pending);
+          reportObservations.get(owners.get(entry.getFullUrl())).add(pending);
+        }
+      } catch (Exception e) {
+        ConversionException failure = new ConversionException("processing", "Posting Observations as a Bundle was not successful.", e);
+        for (ReportContext context : group) {
+          context.failure = failure;
+          reportObservations.remove(context);
+        }
+      }
+    }
+
+    TransactionResult result;
+    try {
+      result = postTransactions(authToken, pendingObservations);
+    } catch (Exception e) {
+      ConversionException failure = new ConversionException("processing", "Posting Observations as a Bundle was not successful.", e);
+      for (ReportContext context : reportObservations.keySet()) {
+        context.failure = failure;
+      }
+      reportObservations.clear();
+      result = null;
+    }
+    for (Map.Entry<ReportContext, List<PendingObservation>> report : reportObservations.entrySet()) {
+      ReportContext context = report.getKey();
+      int posted = 0;
+      for (PendingObservation pending : report.getValue()) {
+        if (!result.failedObservations.contains(pending)) posted++;
+      }
+      if (posted < report.getValue().size()) {
+        context.failure = new ConversionException("processing", "Posting Observations as a Bundle was not successful.",
+            new PartialSubmissionException(result, posted, report.getValue().size()));
+      } else {
+        context.diagnostics.add("Number of observations posted: " + posted);
+        context.diagnostics.add("Number of transaction Bundles posted: " + result.chunksPosted);
+      }
+    }
+
+    for (int i = 0; i < contexts.size(); i++) {
+      ReportContext context = contexts.get(i);
+      if (context == null) continue;
+      outcomes.set(i, context.failure != null ? context.failure.toOperationOutcome()
+          : createOperationOutcome(true, "informational", String.join("\n", context.diagnostics), null));
+    }
+    if (listener != null) {
+      // The reports shared the requests, so each is given an equal share of the call
+      long durationNanos = System.nanoTime() - start;
+      for (OperationOutcome outcome : outcomes) {
+        notifyConversion(listener, durationNanos / outcomes.size(), outcome);
+      }
+      listener.onBatchConversion(durationNanos, outcomes.size());
+    }
+    return outcomes;
+  }
+
+  /**
+   * Check many reports and add them to the submission queue, see {@link #enqueue(SubmissionQueue, Bundle, MessageHeader, String)}.
+   * 
+   * @param queue Submission queue
+   * @param medmorphReports MedMorph reporting Bundles
+   * @param authToken Authentication token, only used for the checks
+   * 
+   * @return one OperationOutcome per report, in the same order as the reports
+   */
+  private List<OperationOutcome> enqueueAll(SubmissionQueue queue, List<Bundle> medmorphReports, String authToken) {
+    List<OperationOutcome> outcomes = new ArrayList<>(medmorphReports.size());
+    for (Bundle medmorphReport : medmorphReports) {
+      MessageHeader messageHeader = findMessageHeader(medmorphReport);
+      if (messageHeader == null) {
+        outcomes.add(new ConversionException("required", "Submitted report bundle must contain a MessageHeader", null).toOperationOutcome());
+      } else {
+        outcomes.add(enqueue(queue, medmorphReport, messageHeader, authToken));
+      }
+    }
+    return outcomes;
+  }
+
+  /**
+   * Convert many MedMorph reports in one call. See {@link #convertAll(List, String)}.
+   * 
+   * @param medmorphReports MedMorph reporting Bundles
+   * @param authToken Authentication token to passthrough to CIBMTR
+   * 
+   * @return one OperationOutcome per report, in the same order as the reports
+   */
+  public List<OperationOutcome> convertAll(Stream<Bundle> medmorphReports, String authToken) {
+    return convertAll(medmorphReports.collect(Collectors.toList()), authToken);
+  }
+
+  /**
+   * Report a finished conversion to the listener.
+   * @param listener Conversion listener
+   * @param durationNanos Time the conversion took
+   * @param outcome OperationOutcome the conversion returned
+   */
+  private static void notifyConversion(ConversionListener listener, long durationNanos, OperationOutcome outcome) {
+    OperationOutcomeIssueComponent issue = outcome.getIssueFirstRep();
+    listener.onConversion(durationNanos, issue.getSeverity() == OperationOutcome.IssueSeverity.INFORMATION,
+        issue.getCode().toCode());
+  }
+
+  /**
+   * Run a conversion step once for a group of reports that share its result,
+   * then copy the result and the diagnostics it added to the rest of the group.
+   * If the step fails, every report in the group fails with it.
+   * 
+   * @param group Reports that share the step result
+   * @param step Conversion step to run on the first report
+   * @param copyResult Copies the step result from the first report to another
+   */
+  private void runSharedStep(List<ReportContext> group, Step<ReportContext, ReportContext> step,
+      BiConsumer<ReportContext, ReportContext> copyResult) {
+    ReportContext first = group.get(0);
+    int diagnosticsBefore = first.diagnostics.size();
+    try {
+      step.apply(first);
+    } catch (ConversionException e) {
+      for (ReportContext context : group) {
+        context.failure = e;
+      }
+      return;
+    }
+    List<String> addedDiagnostics = first.diagnostics.subList(diagnosticsBefore, first.diagnostics.size());
+    for (ReportContext context : group.subList(1, group.size())) {
+      copyResult.accept(first, context);
+      context.diagnostics.addAll(addedDiagnostics);
+    }
+  }
+
+  /**
+   * Find the MessageHeader in a MedMorph report, which should be the first entry.
+   * @param medmorphReport MedMorph reporting Bundle
+   * @return the MessageHeader, or null if the report has none
+   */
+  protected static MessageHeader findMessageHeader(Bundle medmorphReport) {
+    for (BundleEntryComponent entry : medmorphReport.getEntry()) {
+      if (entry.getResource() instanceof MessageHeader) return (MessageHeader) entry.getResource();
+    }
+    return null;
+  }
+
+  /**
+   * Step 1: extract the content bundle, Patient resource and CCN from the report.
+   * @param medmorphReport MedMorph reporting Bundle
+   * @param messageHeader MessageHeader preparsed out of the above Bundle
+   * @param authToken Authentication token to passthrough to CIBMTR
+   * @return context to carry through the remaining steps
+   */
+  private ReportContext prepareReport(Bundle medmorphReport, MessageHeader messageHeader, String authToken) throws ConversionException {
+    if (!medmorphReport.hasEntry() || medmorphReport.getEntry().size() < 2) {
+      throw new ConversionException("required", "Submitted report bundle must contain 2 entries", null);
+    }
+    List<BundleEntryComponent> reportEntries = medmorphReport.getEntry();
+    // Content bundle should be 2nd entry in report bundle
+    Bundle contentBundle = (Bundle) reportEntries.get(1).getResource();
+    ReportIndex content = new ReportIndex(contentBundle.getEntry());
+    Patient patient = (Patient) content.getFirst(ResourceType.Patient);
+    String ccn = getCcn(new ReportIndex(reportEntries), messageHeader);
+    if (patient == null || ccn == null) {
+      throw new ConversionException("required", "Patient resource and Organization resource with ccn value are required in report bundle.", null);
+    }
+
+    return new ReportContext(authToken, ccn, patient, content);
+  }
+
+  /**
+   * Step 2: obtain the CRID for the report's patient.
+   * @param context Report being converted
+   * @return the same context, with the CRID set
+   */
+  private ReportContext requestCrid(ReportContext context) throws ConversionException {
+    try {
+      context.crid = getCrid(context.authToken, context.ccn, context.patient);
+    } catch (Exception e) {
+      throw new ConversionException("processing", "Request for CRID was not successful.", e);
+    }
+    context.diagnostics.add("CRID response successful - received value: " + context.crid);
+    return context;
+  }
+
+  /**
+   * Step 3: find the Patient resource for the CRID, creating it if it does not exist yet.
+   * @param context Report being converted
+   * @return the same context, with the Patient resource ID set
+   */
+  private ReportContext resolvePatient(ReportContext context) throws ConversionException {
+    try {
+      // Concurrent reports for the same patient share one search and at most one create,
+      // so they cannot both find no Patient and both create one
+      String crid = context.crid.toString();
+      AtomicBoolean resolvedHere = new AtomicBoolean();
+      String flightKey = flightKey(context.authToken, context.ccn + "|" + crid);
+      PatientResolution resolution = singleFlight(patientResolutions, flightKey, () -> {
+        resolvedHere.set(true);
+        if (conditionalCreate) {
+          String cachedResourceId = patientIdCache != null ? patientIdCache.get(context.ccn + "|" + crid) : null;
+          if (cachedResourceId != null) return new PatientResolution(cachedResourceId, false);
+          PatientResolution created = createPatient(context.authToken, context.ccn, crid, true);
+          // Null when the server gave no Patient resource ID, fall back to a search
+          if (created != null) return created;
+        }
+        String resourceId = checkIfPatientExists(context.authToken, context.ccn, crid);
+        if (resourceId != null) return new PatientResolution(resourceId, false);
+        return createPatient(context.authToken, context.ccn, crid, false);
+      });
+      context.resourceId = resolution.resourceId;
+      // Only the report that created the Patient can skip the duplicate check, the others
+      // may be posting the same Observations at the same time
+      if (resolution.created && resolvedHere.get()) {
+        context.isPatientNew = true;
+        context.diagnostics.add("Patient for CRID did not already exist");
+      }
+    } catch (Exception e) {
+      throw new ConversionException("processing", "Posting Patient resource and retrieving resource ID was not successful.", e);
+    }
+
+    if (context.resourceId == null) {
+      throw new ConversionException("processing", "Posting Patient resource and retrieving resource ID was not successful.", null);
+    }
+    context.diagnostics.add("Patient resource ID: " + context.resourceId);
+    return context;
+  }
+
+  /**
+   * Step 4: POST the Observations that are not already on the server.
+   * @param context Report being converted
+   * @return the same context
+   */
+  private ReportContext submitObservations(ReportContext context) throws ConversionException {
+    try {
+      TransactionResult result = submitBundle(context.authToken, context.ccn, context.content.getEntries(ResourceType.Observation),
+          context.resourceId, context.isPatientNew);
+      context.diagnostics.addAll(result.skippedObservations);
+      context.diagnostics.add("Number of observations posted: " + result.observationsPosted);
+      context.diagnostics.add("Number of transaction Bundles posted: " + result.chunksPosted);
+    } catch (Exception e) {
+      throw new ConversionException("processing", "Posting Observations as a Bundle was not successful.", e);
+    }
+    return context;
+  }
+
+  /**
+   * Register patient with CIBMTR and returns CRID.
+   * Concurrent calls for the same CCN, patient demographics and authentication token share a single request.
+   * 
+   * @param authToken Authentication token
+   * @param ccn Submitter CCN
+   * @param patient Patient resource
+   * @return CRID
+   */
+  protected Number getCrid(String authToken, String ccn, Patient patient) throws Exception {
+    String firstName = patient.getName().get(0).getGiven().get(0).getValue();
+    String lastName = patient.getName().get(0).getFamily();
+    String birthDate = patient.getBirthDate().toString();
+    String gender = patient.getGender().getDisplay();
+
+    String cacheKey = cridKey(ccn, patient);
+    if (cridCache != null) {
+      Number cachedCrid = cridCache.get(cacheKey);
+      if (cachedCrid != null) return cachedCrid;
+    }
+
+    return singleFlight(cridRequests, flightKey(authToken, cacheKey), () -> {
+      Number crid = putCrid(authToken, ccn, firstName, lastName, birthDate, gender);
+      if (cridCache != null) cridCache.put(cacheKey, crid);
+      return crid;
+    });
+  }
+
+  /**
+   * PUT the patient demographics to the /CRID endpoint.
+   * @param authToken Authentication token
+   * @param ccn Submitter CCN
+   * @param firstName Patient given name
+   * @param lastName Patient family name
+   * @param birthDate Patient birth date
+   * @param gender Patient gender display
+   * @return CRID of the perfect match
+   */
+  private Number putCrid(String authToken, String ccn, String firstName, String lastName, String birthDate, String gender) throws Exception {
+    HttpPut httpPut = new HttpPut(cibmtrUrl + "CRID");
+    httpPut.setHeader("Accept", "application/json");
+    httpPut.setHeader("Content-type", "application/json");
+    httpPut.setHeader("Authorization", authToken);
+
+    String cridRequestBody = payloadWriter.cridRequest(ccn, firstName, lastName, birthDate, gender);
+    httpPut.setEntity(new StringEntity(cridRequestBody, StandardCharsets.UTF_8));
+    ResponseHandler<String> responseHandler = response -> {
+      int status = response.getStatusLine().getStatusCode();
+      HttpEntity entity = response.getEntity();
+      String responseBody = entity != null ? EntityUtils.toString(entity) : "";
+      if (status != 200) throw new HttpResponseException(status, "CRID request failed with status " + status + ": " + responseBody);
+      return responseBody;
+    };
+
+    String responseBody = transport.execute(ConversionStage.CRID, httpPut, responseHandler);
+    JSONObject responseObj = new JSONObject(responseBody);
+    JSONArray perfectMatch = responseObj.getJSONArray("perfectMatch");
+    if (!perfectMatch.isEmpty()) return perfectMatch.getJSONObject(0).getNumber("crid");
+    throw new Exception("Unexpected CRID response format: " + responseBody);
+  }
+
+  /**
+   * Key identifying a CRID request: the CCN plus the patient demographics sent to the /CRID endpoint.
+   * @param ccn Submitter CCN
+   * @param patient Patient resource
+   * @return the key
+   */
+  private static String cridKey(String ccn, Patient patient) {
+    return String.join("|", ccn, patient.getName().get(0).getGiven().get(0).getValue(), patient.getName().get(0).getFamily(),
+        patient.getBirthDate().toString(), patient.getGender().getDisplay());
+  }
+
+  /**
+   * Check if a Patient resource for the given CRID already exists on the server.
+   * 
+   * @param authToken Authentication token
+   * @param ccn Submitter CCN
+   * @param crid Patient CRID
+   * @return Patient resource ID, if one already exists, or null if not
+   */
+  protected String checkIfPatientExists(String authToken, String ccn, String crid) throws Exception {
+    if (patientIdCache != null) {
+      String cachedResourceId = patientIdCache.get(ccn + "|" + crid);
+      if (cachedResourceId != null) return cachedResourceId;
+    }
+
+    // Check if patient has already been submitted, only the ID of the first match is needed
+    FirstMatch firstMatch = new FirstMatch();
+    String searchUrl = cibmtrUrl + "Patient?_security=" + CCN_SYSTEM + "%7Crc_" + ccn + "&identifier=" + crid + "&_elements=identifier";
+    search(ConversionStage.PATIENT_SEARCH, authToken, searchUrl, firstMatch);
+    if (firstMatch.found()) {
+      // Return patient resource id if patient exists
+      if (firstMatch.resourceId == null) throw new JSONException("Patient search reported a match but returned no entries");
+      if (patientIdCache != null) patientIdCache.put(ccn + "|" + crid, firstMatch.resourceId);
+      return firstMatch.resourceId;
+    }
+
+    return null;
+  }
+
+  /**
+   * POST Patient resource with CRID and return the new resource id.
+   * @param authToken Authentication token
+   * @param ccn Submitter CCN
+   * @param crid Patient CRID
+   * @return New Patient resource id, that new Observations will link to
+   */
+  protected String postPatient(String authToken, String ccn, String crid) throws Exception {
+    return createPatient(authToken, ccn, crid, false).resourceId;
+  }
+
+  /**
+   * POST Patient resource with CRID, optionally as a conditional create.
+   * @param authToken Authentication token
+   * @param ccn Submitter CCN
+   * @param crid Patient CRID
+   * @param conditional Whether to only create the Patient if none exists for the CCN and CRID
+   * @return the Patient resource ID, which is null if the response had none, and whether the server created it;
+   *         or null for a conditional create that gave no resource ID, for example because several Patients
+   *         matched, the Patient already existed and the server sent no Location, or the server does not
+   *         accept conditional creates
+   */
+  private PatientResolution createPatient(String authToken, String ccn, String crid, boolean conditional) throws Exception {
+    HttpPost httpPost = new HttpPost(cibmtrUrl + "Patient");
+    httpPost.setHeader("Content-Type", "application/fhir+json");
+    httpPost.setHeader("Authorization", authToken);
+    if (conditional) httpPost.setHeader("If-None-Exist", "_security=" + CCN_SYSTEM + "%7Crc_" + ccn + "&identifier=" + crid);
+
+    String patientRequestBody = payloadWriter.patient(ccn, crid);
+    httpPost.setEntity(new StringEntity(patientRequestBody, StandardCharsets.UTF_8));
+    ResponseHandler<PatientResolution> responseHandler = response -> {
+      int status = response.getStatusLine().getStatusCode();
+      String resourceId = null;
+      Header location = response.getFirstHeader("Location");
+      if ((status == 200 || status == 201) && location != null) {
+        int index = location.getValue().indexOf("Patient/");
+        if (index > 0) resourceId = location.getValue().substring(index + 8);
+      }
+      if (conditional && resourceId == null) return null;
+      // A conditional create answers 200 when the Patient already existed
+      return new PatientResolution(resourceId, !conditional || status == 201);
+    };
+
+    PatientResolution resolution = transport.execute(ConversionStage.PATIENT_CREATE, httpPost, responseHandler);
+    if (resolution != null && resolution.resourceId != null && patientIdCache != null) {
+      patientIdCache.put(ccn + "|" + crid, resolution.resourceId);
+    }
+    return resolution;
+  }
+
+  /**
+   * Convert and POST bundle of observations to the /Bundle endpoint
+   * @param authToken Authentication token
+   * @param ccn Submitter CCN
+   * @param entries All entries from the content bundle
+   * @param resourceId Patient resource ID
+   * @param isPatientNew Whether or not the patient resource is new, if it is then there is no need to dup check on the server
+   * @return the number of Observations that were POSTed, for informational purposes
+   */
+  protected int postBundle(String authToken, String ccn, List<BundleEntryComponent> entries, String resourceId, boolean isPatientNew) throws Exception {
+    return submitBundle(authToken, ccn, new ReportIndex(entries).getEntries(ResourceType.Observation), resourceId, isPatientNew).observationsPosted;
+  }
+
+  /**
+   * Post the new Observations out of the content bundle, split into transaction Bundles that
+   * respect the configured entry and size limits.
+   * 
+   * @param authToken Authentication token
+   * @param ccn Submitter CCN
+   * @param observationEntries Observation entries from the content bundle
+   * @param resourceId Patient resource ID
+   * @param isPatientNew Whether or not the patient resource is new, if it is then there is no need to dup check on the server
+   * @return counts of what was posted, and which Observations could not be mapped
+   * @throws PartialSubmissionException if any transaction Bundle failed
+   */
+  private TransactionResult submitBundle(String authToken, String ccn, List<BundleEntryComponent> observationEntries, String resourceId, boolean isPatientNew) throws Exception {
+    PatientTarget target = new PatientTarget(ccn, resourceId);
+    List<String> skippedObservations = new ArrayList<>();
+    List<BundleEntryComponent> mappableEntries = selectMappableObservations(observationEntries, skippedObservations);
+    List<PendingObservation> pendingObservations = new ArrayList<>();
+    for (BundleEntryComponent entry : filterNewObservations(authToken, ccn, resourceId, mappableEntries, isPatientNew)) {
+      pendingObservations.add(new PendingObservation(entry, target));
+    }
+
+    TransactionResult result = postTransactions(authToken, pendingObservations);
+    result.skippedObservations.addAll(skippedObservations);
+    if (!result.failedObservations.isEmpty()) {
+      throw new PartialSubmissionException(result, result.observationsPosted, pendingObservations.size());
+    }
+    return result;
+  }
+
+  /**
+   * Split the Observations into chunks within the configured limits and POST each chunk as its
+   * own transaction Bundle, running up to transactionParallelism at once.
+   * Each transaction succeeds or fails as a whole on the server, so a failed chunk can be resent
+   * on its own; a failure is recorded in the result rather than stopping the other chunks.
+   * 
+   * @param authToken Authentication token
+   * @param pendingObservations Observations to create
+   * @return counts of what was posted and which Observations failed
+   */
+  private TransactionResult postTransactions(String authToken, List<PendingObservation> pendingObservations) throws Exception {
+    List<List<PendingObservation>> chunks = chunkObservations(pendingObservations);
+    List<Callable<Integer>> posts = new ArrayList<>(chunks.size());
+    for (List<PendingObservation> chunk : chunks) {
+      posts.add(() -> {
+        int created = postTransaction(authToken, chunk);
+        SubmissionLedger ledger = submissionLedger;
+        if (ledger != null) {
+          Map<PatientTarget, List<String>> postedByTarget = new LinkedHashMap<>();
+          for (PendingObservation pending : chunk) {
+            postedByTarget.computeIfAbsent(pending.target, k -> new ArrayList<>()).add(pending.entry.getFullUrl());
+          }
+          postedByTarget.forEach((target, fullUrls) -> recordInLedger(ledger, target.ccn, target.resourceId, fullUrls));
+        }
+        return created;
+      });
+    }
+
+    TransactionResult result = new TransactionResult(chunks.size());
+    List<Future<Integer>> futures = runBounded(posts, transactionParallelism, false);
+    for (int i = 0; i < futures.size(); i++) {
+      try {
+        result.observationsPosted += futures.get(i).get();
+        result.chunksPosted++;
+      } catch (ExecutionException e) {
+        result.failedObservations.addAll(chunks.get(i));
+        if (result.firstFailure == null) result.firstFailure = e.getCause();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Run a call, unless a call with the same key is already running, in which case wait for
+   * that call instead and share its result or failure.
+   * @param inFlight Calls currently running, by key
+   * @param key Key identifying equivalent calls
+   * @param call Call to run
+   * @return the result of the call
+   */
+  private static <T> T singleFlight(Map<String, CompletableFuture<T>> inFlight, String key, Callable<T> call) throws Exception {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    CompletableFuture<T> running = inFlight.putIfAbsent(key, future);
+    if (running != null) {
+      try {
+        return running.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) throw (Exception) cause;
+        throw e;
+      }
+    }
+
+    try {
+      T result = call.call();
+      future.complete(result);
+      return result;
+    } catch (Throwable e) {
+      // Waiters must always be released, whatever the failure
+      future.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, future);
+    }
+  }
+
+  /**
+   * Key for {@link #singleFlight(Map, String, Callable)} that only joins calls made with the same
+   * authentication token, so a caller never gets a result fetched with someone else's credentials,
+   * or fails because their token was refused.
+   * @param authToken Authentication token the call is made with
+   * @param key Key identifying equivalent calls
+   * @return the key
+   */
+  private static String flightKey(String authToken, String key) {
+    return key + "|" + authToken;
+  }
+
+  /**
+   * Add Observations that now exist on the server to the submission ledger.
+   * A failure to record is ignored: the ledger only saves requests, and an Observation missing
+   * from it is still found by the duplicate check.
+   * @param ledger Submission ledger
+   * @param ccn Submitter CCN
+   * @param resourceId Patient resource ID the observations are linked to
+   * @param fullUrls Observation fullUrls
+   */
+  private static void recordInLedger(SubmissionLedger ledger, String ccn, String resourceId, Collection<String> fullUrls) {
+    try {
+      ledger.record(ccn, resourceId, fullUrls);
+    } catch (IOException e) {
+      // Not recorded, the Observations are checked against the server next time
+    }
+  }
+
+  /**
+   * Split Observations into chunks of at most maxTransactionEntries entries and, if set,
+   * maxTransactionBytes bytes of serialized Bundle. An Observation larger than the byte limit
+   * on its own still gets a chunk of its own.
+   * @param pendingObservations Observations to create
+   * @return the chunks, in order
+   */
+  private List<List<PendingObservation>> chunkObservations(List<PendingObservation> pendingObservations) throws IOException {
+    List<List<PendingObservation>> chunks = new ArrayList<>();
+    List<PendingObservation> chunk = new ArrayList<>();
+    long chunkBytes = TransactionBundleEntity.ENVELOPE_LENGTH;
+    for (PendingObservation pending : pendingObservations) {
+      // Measuring means serializing the entry an extra time, so only do it when there is a byte limit
+      long entryBytes = maxTransactionBytes > 0 ? TransactionBundleEntity.entryLength(pending, observationEntryWriter) + 1 : 0;
+      boolean full = (maxTransactionEntries > 0 && chunk.size() >= maxTransactionEntries)
+          || (maxTransactionBytes > 0 && chunkBytes + entryBytes > maxTransactionBytes);
+      if (!chunk.isEmpty() && full) {
+        chunks.add(chunk);
+        chunk = new ArrayList<>();
+        chunkBytes = TransactionBundleEntity.ENVELOPE_LENGTH;
+      }
+      chunk.add(pending);
+      chunkBytes += entryBytes;
+    }
+    if (!chunk.isEmpty()) chunks.add(chunk);
+    return chunks;
+  }
+
+  /**
+   * POST a transaction Bundle creating the given Observations to the /Bundle endpoint.
+   * The Bundle is streamed to the server, each entry is built just before it is written.
+   * @param authToken Authentication token
+   * @param pendingObservations Observations to create
+   * @return the number of Observations created. With conditional create, this is the number of
+   *         entries the server answered with 201 Created, if it sent back the entry responses
+   */
+  private int postTransaction(String authToken, List<PendingObservation> pendingObservations) throws Exception {
+    HttpPost httpPost = new HttpPost(cibmtrUrl + "Bundle");
+    httpPost.setHeader("Content-Type", "application/fhir+json");
+    httpPost.setHeader("Authorization", authToken);
+    httpPost.setEntity(new TransactionBundleEntity<>(pendingObservations, observationEntryWriter));
+    int created = transport.execute(ConversionStage.TRANSACTION, httpPost, response -> {
+      int status = response.getStatusLine().getStatusCode();
+      if (status != 200 && status != 201) {
+        HttpEntity entity = response.getEntity();
+        String responseBody = entity != null ? EntityUtils.toString(entity) : "";
+        throw new HttpResponseException(status, "Transaction Bundle was rejected with status " + status + ": " + responseBody);
+      }
+      if (!conditionalCreate) return pendingObservations.size();
+      HttpEntity entity = response.getEntity();
+      return entity != null ? countCreatedEntries(EntityUtils.toString(entity), pendingObservations.size()) : pendingObservations.size();
+    });
+    ConversionListener listener = conversionListener;
+    if (listener != null) listener.onObservationsPosted(created);
+    return created;
+  }
+
+  /**
+   * Count the entries of a transaction-response Bundle that were created rather than matched
+   * to an existing resource by a conditional create.
+   * @param responseBody Transaction response
+   * @param entryCount Number of entries sent, returned if the response does not list the entries
+   * @return the number of created entries
+   */
+  private static int countCreatedEntries(String responseBody, int entryCount) {
+    JSONArray entries;
+    try {
+      entries = new JSONObject(responseBody).optJSONArray("entry");
+    } catch (JSONException e) {
+      return entryCount;
+    }
+    if (entries == null || entries.length() != entryCount) return entryCount;
+    int created = 0;
+    for (int i = 0; i < entries.length(); i++) {
+      JSONObject entryResponse = entries.getJSONObject(i).optJSONObject("response");
+      if (entryResponse == null || entryResponse.optString("status").startsWith("201")) created++;
+    }
+    return created;
+  }
+
+  /**
+   * Construct a list of bundle entries for the relevant Observations out of the provided list.
+   * Each observation is first checked to see if it already exists on the server, to avoid duplicates.
+   * 
+   * @param authToken Authentication token to use for dup checking
+   * @param ccn Submitter CCN
+   * @param observationEntries List of observation entries from the submitted content bundle
+   * @param resourceId Patient resource ID to update observation references
+   * @param isPatientNew Whether or not the patient already existed on the server 
+   *        - if not, we know none of the Observations already exist either so we can skip the dup check
+   * @return JSONArray of observation entries, leaving out Observations that cannot be mapped
+   */
+  protected JSONArray getObservationEntries(String authToken, String ccn,
+      List<BundleEntryComponent> observationEntries, String resourceId, boolean isPatientNew) throws Exception {
+    JSONArray entryArray = new JSONArray();
+    List<BundleEntryComponent> mappableEntries = selectMappableObservations(observationEntries, new ArrayList<>());
+    for (BundleEntryComponent entry : filterNewObservations(authToken, ccn, resourceId, mappableEntries, isPatientNew)) {
+      entryArray.put(buildObservationEntry(entry, ccn, resourceId));
+    }
+    return entryArray;
   }
 
   /**
-   * Primary entrypoint into the MedMorph-to-CIBMTR translation process. 
-   * Takes in a MedMorph report bundle and parses out resources to submit to the CIBMTR endpoint,
-   * using the submission process defined in the API guidance.
-   *  1. Extract the Patient resource and CCN from the request.
-   *  2. Obtain a CRID for the given patient info via the /CRID endpoint.
-   *  3. Check if a Patient resource for the given CRID already exists.
-   *     If not, POST the Patient resource to the /Patient endpoint.
-   *  4. Check which Observations that are part of the report already exist on the server.
-   *     POST any that do not as part of a Bundle to the /Bundle endpoint.
-   *     
-   *  Returns an OperationOutcome with either error details, if the process was unsuccessful, 
-   *  or basic debugging info if the process was successful.
-   *  
-   * @param medmorphReport MedMorph reporting Bundle
-   * @param messageHeader MessageHeader preparsed out of the above Bundle
-   * @param authToken Authentication token to passthrough to CIBMTR
+   * Leave out the Observations that cannot be mapped to what CIBMTR accepts, such as ones with
+   * a value type that has no mapping, so that they do not fail the rest of the report.
+   * Entries without a fullUrl are kept, they are never posted either way.
+   *
+   * @param observationEntries List of observation entries from the submitted content bundle
+   * @param skippedObservations Receives a message for each Observation left out
+   * @return the entries that can be mapped
+   */
+  private List<BundleEntryComponent> selectMappableObservations(List<BundleEntryComponent> observationEntries,
+      List<String> skippedObservations) {
+    List<BundleEntryComponent> mappableEntries = new ArrayList<>(observationEntries.size());
+    for (BundleEntryComponent entry : observationEntries) {
+      String reason = entry.hasFullUrl() ? payloadWriter.unmappableReason((Observation) entry.getResource()) : null;
+      if (reason == null) mappableEntries.add(entry);
+      else skippedObservations.add("Observation " + entry.getFullUrl() + " was not posted: " + reason);
+    }
+    return mappableEntries;
+  }
+
+  /**
+   * Select the Observations that should be posted: those with a fullUrl that do not already
+   * exist on the server. Observations in the submission ledger are known to exist, only the
+   * rest are checked against the server.
    * 
-   * @return OperationOutcome with details of success or failure
+   * @param authToken Authentication token to use for dup checking
+   * @param ccn Submitter CCN
+   * @param resourceId Patient resource ID the observations are linked to
+   * @param observationEntries List of observation entries from the submitted content bundle
+   * @param isPatientNew Whether or not the patient already existed on the server 
+   *        - if not, we know none of the Observations already exist either so we can skip the dup check
+   * @return the observation entries to post, in their original order
    */
-  public OperationOutcome convert(Bundle medmorphReport, MessageHeader messageHeader, String authToken) {
-    // https://fhir.nmdp.org/ig/cibmtr-reporting/CIBMTR_Direct_FHIR_API_Connection_Guide_STU3.pdf
-    if (medmorphReport.hasEntry() && medmorphReport.getEntry().size() >= 2) {
-      List<String> diagnostics = new LinkedList<>();
-      List<BundleEntryComponent> reportEntries = medmorphReport.getEntry();
-      // Content bundle should be 2nd entry in report bundle
-      Bundle contentBundle = (Bundle) reportEntries.get(1).getResource();
-      List<BundleEntryComponent> contentEntries = contentBundle.getEntry();
-      BundleEntryComponent patientEntry = contentEntries.stream().filter(entry -> entry.getResource().getResourceType() == ResourceType.Patient).findAny().orElse(null);
-      String ccn = getCcn(reportEntries, messageHeader);
-      if (patientEntry == null || ccn == null) return createOperationOutcome(false, "required", "Patient resource and Organization resource with ccn value are required in report bundle.", null);
-
-      Patient patient = (Patient) patientEntry.getResource();
-      Number crid;
-      try {
-        crid = getCrid(authToken, ccn, patient);
-      } catch (Exception e) {
-        return createOperationOutcome(false, "processing", "Request for CRID was not successful.", e);
+  protected List<BundleEntryComponent> filterNewObservations(String authToken, String ccn, String resourceId,
+      List<BundleEntryComponent> observationEntries, boolean isPatientNew) throws Exception {
+    Set<String> existingObservations = new HashSet<>();
+    // Only check if patient isn't new
+    if (!isPatientNew) {
+      SubmissionLedger ledger = submissionLedger;
+      List<String> fullUrls = new ArrayList<>(observationEntries.size());
+      for (BundleEntryComponent entry : observationEntries) {
+        if (!entry.hasFullUrl()) continue;
+        if (ledger != null && ledger.contains(ccn, resourceId, entry.getFullUrl())) existingObservations.add(entry.getFullUrl());
+        else fullUrls.add(entry.getFullUrl());
       }
-      diagnostics.add("CRID response successful - received value: " + crid);
-      
-      
-      String resourceId;
-      boolean isPatientNew = false;
-      try {
-        resourceId = checkIfPatientExists(authToken, ccn, crid.toString());
-        if (resourceId == null) {
-          isPatientNew = true;
-          resourceId = postPatient(authToken, ccn, crid.toString());
-          diagnostics.add("Patient for CRID did not already exist");
-        }
-      } catch (Exception e) {
-        return createOperationOutcome(false, "processing", "Posting Patient resource and retrieving resource ID was not successful.", e);
+      // With conditional create the server skips existing Observations itself
+      if (!fullUrls.isEmpty() && !conditionalCreate) {
+        Set<String> foundObservations = findExistingObservations(authToken, fullUrls);
+        existingObservations.addAll(foundObservations);
+        if (ledger != null && !foundObservations.isEmpty()) recordInLedger(ledger, ccn, resourceId, foundObservations);
       }
+    }
 
-      if (resourceId == null) return createOperationOutcome(false, "processing", "Posting Patient resource and retrieving resource ID was not successful.", null);
-      
-      diagnostics.add("Patient resource ID: " + resourceId);
-      
-      try {
-        int numObsPosted = postBundle(authToken, ccn, contentEntries, resourceId, isPatientNew);
-        diagnostics.add("Number of observations posted: " + numObsPosted);
-      } catch (Exception e) {
-        return createOperationOutcome(false, "processing", "Posting Observations as a Bundle was not successful.", e);
-      }
-      
-      return createOperationOutcome(true, "informational", String.join("\n", diagnostics), null);
-      
-    } else {
-      return createOperationOutcome(false, "required", "Submitted report bundle must contain 2 entries", null);
+    List<BundleEntryComponent> newEntries = new ArrayList<>(observationEntries.size());
+    for (BundleEntryComponent entry : observationEntries) {
+      // If observation already exists on server, skip posting of resource
+      if (entry.hasFullUrl() && !existingObservations.contains(entry.getFullUrl())) newEntries.add(entry);
     }
+    return newEntries;
   }
 
   /**
-   * Register patient with CIBMTR and returns CRID
+   * Build the transaction Bundle entry that creates the given Observation on the server.
    * 
-   * @param authToken Authentication token
+   * @param entry Observation entry from the submitted content bundle
    * @param ccn Submitter CCN
-   * @param patient Patient resource
-   * @return CRID
+   * @param resourceId Patient resource ID to update the observation reference
+   * @return JSONObject for the Bundle entry
    */
-  protected Number getCrid(String authToken, String ccn, Patient patient) throws Exception {
-    try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-      HttpPut httpPut = new HttpPut(cibmtrUrl + "CRID");
-      httpPut.setHeader("Accept", "application/json");
-      httpPut.setHeader("Content-type", "application/json");
-      httpPut.setHeader("Authorization", authToken);
-
-      JSONObject cridRequestBody = new JSONObject();
-      cridRequestBody.put("ccn", ccn);
-      JSONObject patientJson = new JSONObject();
-      patientJson.put("firstName", patient.getName().get(0).getGiven().get(0));
-      patientJson.put("lastName", patient.getName().get(0).getFamily());
-      patientJson.put("birthDate", patient.getBirthDate().toString());
-      patientJson.put("gender", patient.getGender().getDisplay());
-      cridRequestBody.put("patient", patientJson);
-
-      StringEntity stringEntity = new StringEntity(cridRequestBody.toString());
-      httpPut.setEntity(stringEntity);
-      ResponseHandler<String> responseHandler = response -> {
-        HttpEntity entity = response.getEntity();
-        return entity != null ? EntityUtils.toString(entity) : null;
-      };
+  protected JSONObject buildObservationEntry(BundleEntryComponent entry, String ccn, String resourceId) {
+    StringWriter writer = new StringWriter();
+    try {
+      payloadWriter.writeObservationEntry(writer, (Observation) entry.getResource(), entry.getFullUrl(),
+          payloadWriter.meta(ccn), payloadWriter.subject(resourceId));
+    } catch (IOException e) {
+      // StringWriter does not throw
+      throw new IllegalStateException(e);
+    }
+    return new JSONObject(writer.toString());
+  }
 
-      String responseBody = httpClient.execute(httpPut, responseHandler);
-      JSONObject responseObj = new JSONObject(responseBody.toString());
-      JSONArray perfectMatch = responseObj.getJSONArray("perfectMatch");
-      if (!perfectMatch.isEmpty()) return perfectMatch.getJSONObject(0).getNumber("crid");
-      throw new Exception("Unexpected CRID response format: " + responseBody);
-    } 
+  /**
+   * Write the transaction Bundle entry for an Observation being posted, from the entry cache if it
+   * is set and holds the entry.
+   * @param pending Observation to write
+   * @param writer Destination
+   */
+  private void writeObservationEntry(PendingObservation pending, Writer writer) throws IOException {
+    LookupCache<String> cache = observationEntryCache;
+    if (cache == null) {
+      writeObservationEntryUncached(pending, writer);
+      return;
+    }
+    String key = pending.cacheKey();
+    String serialized = cache.get(key);
+    if (serialized == null) {
+      StringWriter entryWriter = new StringWriter(1024);
+      writeObservationEntryUncached(pending, entryWriter);
+      serialized = entryWriter.toString();
+      cache.put(key, serialized);
+    }
+    writer.write(serialized);
   }
 
-  private ResponseHandler<String> getResponseHandler = response -> {
-    int status = response.getStatusLine().getStatusCode();
-    if (status != 200) return null;
-    HttpEntity entity = response.getEntity();
-    return entity != null ? EntityUtils.toString(entity) : null;
-  };
+  private void writeObservationEntryUncached(PendingObservation pending, Writer writer) throws IOException {
+    String fullUrl = pending.entry.getFullUrl();
+    payloadWriter.writeObservationEntry(writer, (Observation) pending.entry.getResource(), fullUrl,
+        pending.target.meta, pending.target.subject, conditionalCreate ? "identifier=" + encodeSearchValue(fullUrl) : null);
+  }
 
   /**
-   * Check if a Patient resource for the given CRID already exists on the server.
+   * Find which of the given Observation identifiers already exist on the server,
+   * using the configured {@link DuplicateCheckMode}.
    * 
    * @param authToken Authentication token
-   * @param ccn Submitter CCN
-   * @param crid Patient CRID
-   * @return Patient resource ID, if one already exists, or null if not
+   * @param fullUrls Observation fullUrls, which are used as the Observation identifier on the server
+   * @return the subset of fullUrls that already exist
    */
-  protected String checkIfPatientExists(String authToken, String ccn, String crid) throws Exception {
-    try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-      // Check if patient has already been submitted
-      HttpGet httpGet = new HttpGet(cibmtrUrl + "Patient?_security=" + CCN_SYSTEM + "%7Crc_" + ccn + "&identifier=" + crid);
-      httpGet.setHeader("Content-Type", "application/fhir+json");
-      httpGet.setHeader("Authorization", authToken);
-
-      String responseBody = httpClient.execute(httpGet, getResponseHandler);
-      if (responseBody != null) {
-        JSONObject responseObj = new JSONObject(responseBody.toString());
-        if (responseObj.getInt("total") > 0) {
-          // Return patient resource id if patient exists
-          return responseObj.getJSONArray("entry").getJSONObject(0).getJSONObject("resource").getString("id");
-        }
+  protected Set<String> findExistingObservations(String authToken, List<String> fullUrls) throws Exception {
+    Set<String> existing = new HashSet<>();
+    if (duplicateCheckMode == DuplicateCheckMode.SEARCH_EACH) {
+      for (String fullUrl : fullUrls) {
+        if (observationExists(authToken, fullUrl)) existing.add(fullUrl);
       }
+      return existing;
+    } else if (duplicateCheckMode == DuplicateCheckMode.CONCURRENT_SEARCH_EACH) {
+      return findExistingObservationsConcurrently(authToken, fullUrls);
+    }
 
-      return null;
+    // Only the identifiers are needed to match results back to the report
+    String searchUrl = cibmtrUrl + "Observation?_elements=identifier&_count=" + observationSearchBatchSize + "&identifier=";
+    StringBuilder identifierParam = new StringBuilder();
+    int batchCount = 0;
+    for (String fullUrl : fullUrls) {
+      String value = encodeSearchValue(fullUrl);
+      boolean full = batchCount == observationSearchBatchSize
+          || searchUrl.length() + identifierParam.length() + value.length() + 1 > maxSearchUrlLength;
+      if (batchCount > 0 && full) {
+        searchObservationIdentifiers(authToken, searchUrl + identifierParam, existing);
+        identifierParam.setLength(0);
+        batchCount = 0;
+      }
+      if (batchCount > 0) identifierParam.append(',');
+      identifierParam.append(value);
+      batchCount++;
     }
+    if (batchCount > 0) searchObservationIdentifiers(authToken, searchUrl + identifierParam, existing);
+
+    existing.retainAll(new HashSet<>(fullUrls));
+    return existing;
   }
 
   /**
-   * POST Patient resource with CRID and return the new resource id.
+   * Check each Observation identifier with its own search, running up to
+   * duplicateCheckParallelism searches at once. If any search fails, the searches still pending
+   * are cancelled and the first failure is thrown.
+   * 
    * @param authToken Authentication token
-   * @param ccn Submitter CCN
-   * @param crid Patient CRID
-   * @return New Patient resource id, that new Observations will link to
+   * @param fullUrls Observation fullUrls, which are used as the Observation identifier on the server
+   * @return the subset of fullUrls that already exist
    */
-  protected String postPatient(String authToken, String ccn, String crid) throws Exception {
-    try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-      HttpPost httpPost = new HttpPost(cibmtrUrl + "Patient");
-      httpPost.setHeader("Content-Type", "application/fhir+json");
-      httpPost.setHeader("Authorization", authToken);
-
-      JSONObject patientRequestBody = new JSONObject();
-      patientRequestBody.put("resourceType", "Patient");
-      patientRequestBody.put("meta", buildMeta(ccn));
-      patientRequestBody.put("text", (new JSONObject()).put("status", "empty"));
-      JSONArray identifierArray = new JSONArray();
-      JSONObject identifierObject = new JSONObject();
-      identifierObject.put("use", "official");
-      identifierObject.put("system", CRID_SYSTEM);
-      identifierObject.put("value", crid);
-      identifierArray.put(identifierObject);
-      patientRequestBody.put("identifier", identifierArray);
-
-      StringEntity stringEntity = new StringEntity(patientRequestBody.toString());
-      httpPost.setEntity(stringEntity);
-      ResponseHandler<String> responseHandler = response -> {
-        int status = response.getStatusLine().getStatusCode();
-        if (status == 200 || status == 201) {
-          String location = response.getFirstHeader("Location").getValue();
-          int index = location.indexOf("Patient/");
-          if (index > 0) return location.substring(index + 8);
-        }
+  private Set<String> findExistingObservationsConcurrently(String authToken, List<String> fullUrls) throws Exception {
+    List<Callable<Boolean>> searches = new ArrayList<>(fullUrls.size());
+    for (String fullUrl : fullUrls) {
+      searches.add(() -> observationExists(authToken, fullUrl));
+    }
+    // Stop sending new searches once one has failed, the batch is going to fail anyway
+    List<Future<Boolean>> results = runBounded(searches, duplicateCheckParallelism, true);
+    try {
+      Set<String> existing = new HashSet<>();
+      for (int i = 0; i < results.size(); i++) {
+        if (results.get(i).get()) existing.add(fullUrls.get(i));
+      }
+      return existing;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) throw (Exception) cause;
+      throw e;
+    } finally {
+      for (Future<Boolean> result : results) {
+        result.cancel(true);
+      }
+    }
+  }
 
-        return null;
-      };
+  /**
+   * Run tasks on the request executor with at most the given number running at once for this
+   * call, and no more than the shared request limit running at once across all calls.
+   * 
+   * @param tasks Tasks to run
+   * @param parallelism Maximum number of tasks running at once
+   * @param stopOnFailure Whether to stop starting new tasks once one has failed
+   * @return futures for the tasks that were started, in the same order as the tasks
+   */
+  private <T> List<Future<T>> runBounded(List<Callable<T>> tasks, int parallelism, boolean stopOnFailure) throws InterruptedException {
+    ExecutorService executor = getRequestExecutor();
+    Semaphore permits = new Semaphore(Math.max(1, parallelism));
+    AtomicBoolean failed = new AtomicBoolean(false);
+    List<Future<T>> results = new ArrayList<>(tasks.size());
+    for (Callable<T> task : tasks) {
+      permits.acquire();
+      if (stopOnFailure && failed.get()) {
+        permits.release();
+        break;
+      }
+      try {
+        requestPermits.acquire();
+      } catch (InterruptedException e) {
+        permits.release();
+        throw e;
+      }
+      try {
+        results.add(executor.submit(() -> {
+          try {
+            return task.call();
+          } catch (Exception e) {
+            failed.set(true);
+            throw e;
+          } finally {
+            requestPermits.release();
+            permits.release();
+          }
+        }));
+      } catch (RuntimeException e) {
+        // The executor was shut down by close
+        requestPermits.release();
+        permits.release();
+        throw e;
+      }
+    }
+    return results;
+  }
 
-      return httpClient.execute(httpPost, responseHandler);
+  /**
+   * Lazily create the executor used to run requests to CIBMTR concurrently.
+   * Uses virtual threads when running on a JDK that has them, otherwise a fixed pool of daemon
+   * threads, one per request the parallelism settings allow at once. Either way runBounded takes
+   * one of the shared request permits, as many as the pool has threads, for each task, so
+   * concurrent conversions together never run more requests than that at once.
+   * @return the executor
+   */
+  private synchronized ExecutorService getRequestExecutor() {
+    if (requestExecutor == null) {
+      try {
+        requestExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+        int threads = requestThreadCount();
+        requestExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+            daemonThreadFactory("medmorph-request-"));
+      }
     }
+    return requestExecutor;
   }
 
   /**
-   * Convert and POST bundle of observations to the /Bundle endpoint
-   * @param authToken Authentication token
-   * @param ccn Submitter CCN
-   * @param entries All entries from the content bundle
-   * @param resourceId Patient resource ID
-   * @param isPatientNew Whether or not the patient resource is new, if it is then there is no need to dup check on the server
-   * @return the number of Observations that were POSTed, for informational purposes
+   * Resize the shared request permits, and the fixed request pool if one has been created,
+   * after a parallelism setting changed.
    */
-  protected int postBundle(String authToken, String ccn, List<BundleEntryComponent> entries, String resourceId, boolean isPatientNew) throws Exception {
-    List<BundleEntryComponent> observationEntries = entries.stream().filter(entry -> entry.getResource().getResourceType() == ResourceType.Observation).collect(Collectors.toList());
-    try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-      HttpPost httpPost = new HttpPost(cibmtrUrl + "Bundle");
-      httpPost.setHeader("Content-Type", "application/fhir+json");
-      httpPost.setHeader("Authorization", authToken);
+  private synchronized void resizeRequestExecutor() {
+    requestPermits.resize(requestThreadCount());
+    if (!(requestExecutor instanceof ThreadPoolExecutor)) return;
+    ThreadPoolExecutor pool = (ThreadPoolExecutor) requestExecutor;
+    int threads = requestThreadCount();
+    // The core size may never exceed the maximum, so change them in an order that keeps it that way
+    if (threads > pool.getMaximumPoolSize()) {
+      pool.setMaximumPoolSize(threads);
+      pool.setCorePoolSize(threads);
+    } else {
+      pool.setCorePoolSize(threads);
+      pool.setMaximumPoolSize(threads);
+    }
+  }
 
-      JSONObject bundleRequestBody = new JSONObject();
-      bundleRequestBody.put("resourceType", "Bundle");
-      bundleRequestBody.put("type", "transaction");
-      JSONArray observationArray = getObservationEntries(httpClient, authToken, ccn, observationEntries, resourceId, isPatientNew);
-      if (observationArray.isEmpty()) {
-        // Don't post bundle if there are no observations to post
-        return 0;
-      }
-      bundleRequestBody.put("entry", observationArray);
+  private int requestThreadCount() {
+    return Math.max(1, Math.max(duplicateCheckParallelism, transactionParallelism));
+  }
 
-      StringEntity stringEntity = new StringEntity(bundleRequestBody.toString());
-      httpPost.setEntity(stringEntity);
-      httpClient.execute(httpPost);
-      return observationArray.length();
+  /**
+   * Get the executor for async conversions, creating the default one on first use.
+   * @return the executor
+   */
+  private synchronized Executor getAsyncExecutor() {
+    if (asyncExecutor != null) return asyncExecutor;
+    if (ownedAsyncExecutor == null) {
+      ownedAsyncExecutor = Executors.newFixedThreadPool(DEFAULT_ASYNC_THREADS, daemonThreadFactory("medmorph-async-"));
     }
+    return ownedAsyncExecutor;
   }
 
   /**
-   * Construct a list of bundle entries for the relevant Observations out of the provided list.
-   * Each observation is first checked to see if it already exists on the server, to avoid duplicates.
-   * 
-   * @param httpClient Client to use to check if resources already exist
-   * @param authToken Authentication token to use for dup checking
-   * @param ccn Submitter CCN
-   * @param observationEntries List of observation entries from the submitted content bundle
-   * @param resourceId Patient resource ID to update observation references
-   * @param isPatientNew Whether or not the patient already existed on the server 
-   *        - if not, we know none of the Observations already exist either so we can skip the dup check
-   * @return JSONArray of observation entries
+   * Thread factory for the executors this class creates. Threads are daemons so an
+   * instance that is never closed does not keep the JVM alive.
+   * @param namePrefix Prefix for thread names, followed by a counter
+   * @return the thread factory
    */
-  protected JSONArray getObservationEntries(CloseableHttpClient httpClient, String authToken, String ccn,
-      List<BundleEntryComponent> observationEntries, String resourceId, boolean isPatientNew) throws Exception {
-    JSONArray entryArray = new JSONArray();
+  private static ThreadFactory daemonThreadFactory(String namePrefix) {
+    AtomicInteger threadCount = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, namePrefix + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
 
-    for (BundleEntryComponent entry : observationEntries) {
-      // If observation already exists on server, skip posting of resource
-      if (!entry.hasFullUrl()) continue;
-      String fullUrl = entry.getFullUrl();
-
-      // Only check if patient isn't new
-      if (!isPatientNew) {
-        HttpGet httpGet = new HttpGet(cibmtrUrl + "Observation?identifier=" + fullUrl);
-        httpGet.setHeader("Content-Type", "application/fhir+json");
-        httpGet.setHeader("Authorization", authToken);
-        String responseBody = httpClient.execute(httpGet, getResponseHandler);
-        if (responseBody != null) {
-          JSONObject responseObj = new JSONObject(responseBody.toString());
-          if (responseObj.getInt("total") > 0) {
-            // Don't add this observation if it already exists
-            continue;
-          }
-        }
-      }
+  /**
+   * Check if a single Observation with the given identifier already exists on the server.
+   * @param authToken Authentication token
+   * @param fullUrl Observation fullUrl, which is used as the Observation identifier on the server
+   * @return whether the server has a matching Observation
+   */
+  protected boolean observationExists(String authToken, String fullUrl) throws Exception {
+    // Only the count is needed, so the server need not send the matches
+    FirstMatch firstMatch = new FirstMatch();
+    String searchUrl = cibmtrUrl + "Observation?identifier=" + encodeSearchValue(fullUrl) + "&_summary=count";
+    search(ConversionStage.DUPLICATE_CHECK, authToken, searchUrl, firstMatch);
+    return firstMatch.found();
+  }
 
-      JSONObject observationObject = new JSONObject();
-      JSONObject requestObject = new JSONObject();
-      requestObject.put("method", "POST");
-      requestObject.put("url", "Observation");
-      observationObject.put("request", requestObject);
-
-      Observation observation = (Observation)entry.getResource();
-      JSONObject observationResourceObject = new JSONObject();
-      observationResourceObject.put("resourceType", "Observation");
-      observationResourceObject.put("meta", buildMeta(ccn));
-      observationResourceObject.put("subject", (new JSONObject()).put("reference", "Patient/" + resourceId));
-      observationResourceObject.put("effectiveDateTime", observation.getEffectiveDateTimeType().dateTimeValue().getValue());
-      CodeableConcept code = observation.getCode();
-      Coding coding = code.getCoding().get(0);
-      JSONObject codingObject = new JSONObject();
-      codingObject.put("system", coding.getSystem());
-      codingObject.put("code", coding.getCode());
-      codingObject.put("display", coding.getDisplay());
-      JSONObject codeObject = new JSONObject();
-      codeObject.put("coding", (new JSONArray()).put(codingObject));
-      observationResourceObject.put("code", codeObject);
-      Quantity quantity = observation.getValueQuantity();
-      JSONObject quantityObject = new JSONObject();
-      quantityObject.put("value", quantity.getValue());
-      quantityObject.put("unit", quantity.getUnit());
-      quantityObject.put("system", quantity.getSystem());
-      quantityObject.put("code", quantity.getCode());
-      observationResourceObject.put("valueQuantity", quantityObject);
-      JSONObject identifierObject = new JSONObject();
-      identifierObject.put("use", "official");
-      identifierObject.put("system", RESOURCE_IDENTIFIER_SYSTEM);
-      identifierObject.put("value", fullUrl);
-      observationResourceObject.put("identifier", (new JSONArray()).put(identifierObject));
-      observationObject.put("resource", observationResourceObject);
-      entryArray.put(observationObject);
+  /**
+   * Run an Observation search and collect the identifier values of every match,
+   * following next links if the server pages the results.
+   * @param authToken Authentication token
+   * @param searchUrl Full search URL
+   * @param identifiers Set to add found identifier values to
+   */
+  private void searchObservationIdentifiers(String authToken, String searchUrl, Set<String> identifiers) throws Exception {
+    String nextUrl = searchUrl;
+    while (nextUrl != null) {
+      IdentifierCollector collector = new IdentifierCollector(identifiers);
+      search(ConversionStage.DUPLICATE_CHECK, authToken, nextUrl, collector);
+      nextUrl = collector.nextUrl;
     }
+  }
 
-    return entryArray;
+  /**
+   * Run a search and read the result as it arrives with a {@link SearchResultReader}, so the
+   * response is never held in memory as a whole.
+   * @param stage Conversion step the search is for
+   * @param authToken Authentication token
+   * @param searchUrl Full search URL
+   * @param visitor Visitor for the search result
+   * @throws HttpResponseException if the server did not return 200, since reading a failed search
+   *         as one without matches would post duplicates
+   */
+  private void search(ConversionStage stage, String authToken, String searchUrl, SearchResultReader.Visitor visitor) throws IOException {
+    HttpGet httpGet = new HttpGet(searchUrl);
+    httpGet.setHeader("Content-Type", "application/fhir+json");
+    httpGet.setHeader("Authorization", authToken);
+    transport.execute(stage, httpGet, response -> {
+      int status = response.getStatusLine().getStatusCode();
+      HttpEntity entity = response.getEntity();
+      if (status != 200) {
+        String responseBody = entity != null ? EntityUtils.toString(entity) : "";
+        throw new HttpResponseException(status, "Search failed with status " + status + ": " + responseBody);
+      }
+      if (entity == null) throw new JSONException("Search returned no result");
+      // JSON is UTF-8 unless the server says otherwise
+      Charset charset = ContentType.getOrDefault(entity).getCharset();
+      try (Reader reader = new InputStreamReader(entity.getContent(), charset != null ? charset : StandardCharsets.UTF_8)) {
+        SearchResultReader.read(reader, visitor);
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Escape a value for use in a comma-separated FHIR search parameter, then URL encode it.
+   * @param value Raw search value
+   * @return the encoded value
+   */
+  private static String encodeSearchValue(String value) throws UnsupportedEncodingException {
+    String escaped = value.replace("\\", "\\\\").replace(",", "\\,").replace("$", "\\$").replace("|", "\\|");
+    return URLEncoder.encode(escaped, "UTF-8");
   }
 
   /**
@@ -369,22 +1722,20 @@ public class MedMorphToCIBMTR {
    * @return CCN string
    */
   protected String getCcn(List<BundleEntryComponent> bundleEntries, MessageHeader messageHeader) {
-    Reference sender = messageHeader.getSender();
-    String orgReference = sender.getReference();
-
-    // Assuming the organization reference is 'Organization/id'
-    if (!orgReference.contains("Organization/")) return null;
-    String orgId = orgReference.substring(13);
-
-    // HAPI sometimes includes the resource type in the ID so we need to make 2 comparisons to the entry id
-    BundleEntryComponent orgEntry = bundleEntries.stream().filter(entry ->
-      entry.getResource().getId() != null
-      && (entry.getResource().getId().equals(orgReference)
-      || entry.getResource().getId().equals(orgId))
-    ).findAny().orElse(null);
-    if (orgEntry == null) return null;
-
-    Organization orgResource = (Organization) orgEntry.getResource();
+    return getCcn(new ReportIndex(bundleEntries), messageHeader);
+  }
+
+  /**
+   * Extract the CCN for the submitter from MessageHeader.sender.identifier, resolving the
+   * sender against an index of the report entries.
+   * @param reportIndex Index of the report Bundle entries
+   * @param messageHeader MessageHeader resource that points to the sender
+   * @return CCN string
+   */
+  private static String getCcn(ReportIndex reportIndex, MessageHeader messageHeader) {
+    Organization orgResource = (Organization) reportIndex.resolve(ResourceType.Organization, messageHeader.getSender().getReference());
+    if (orgResource == null) return null;
+
     List<Identifier> ids = orgResource.getIdentifier();
     if (ids != null) {
       for (Identifier id : ids) {
@@ -408,7 +1759,7 @@ public class MedMorphToCIBMTR {
    * @param e Any exception that might have occurred
    * @return the OperationOutcome
    */
-  private OperationOutcome createOperationOutcome(boolean success, String code, String diagnostics, Exception e) {
+  private static OperationOutcome createOperationOutcome(boolean success, String code, String diagnostics, Exception e) {
     OperationOutcome result = new OperationOutcome();
     OperationOutcomeIssueComponent issue = result.addIssue();
     issue.getSeverityElement().setValueAsString(success ? "information" : "error");
@@ -420,4 +1771,272 @@ public class MedMorphToCIBMTR {
 
     return result;
   }
+
+  /**
+   * A conversion step that may fail with a ConversionException.
+   */
+  @FunctionalInterface
+  private interface Step<T, R> {
+    R apply(T input) throws ConversionException;
+  }
+
+  /**
+   * Adapt a conversion step for use as a CompletableFuture stage.
+   * @param step Conversion step
+   * @return function that rethrows step failures as CompletionException
+   */
+  private static <T, R> Function<T, R> asyncStage(Step<T, R> step) {
+    return input -> {
+      try {
+        return step.apply(input);
+      } catch (ConversionException e) {
+        throw new CompletionException(e);
+      }
+    };
+  }
+
+  /**
+   * Adapt the first conversion step, which has no input, for use as a CompletableFuture stage.
+   * @param step Conversion step
+   * @return supplier that rethrows step failures as CompletionException
+   */
+  private static <R> Supplier<R> asyncStage(Callable<R> step) {
+    return () -> {
+      try {
+        return step.call();
+      } catch (Exception e) {
+        throw new CompletionException(e);
+      }
+    };
+  }
+
+  /**
+   * State for a single report as it moves through the conversion steps.
+   */
+  private static class ReportContext {
+    private final String authToken;
+    private final String ccn;
+    private final Patient patient;
+    private final ReportIndex content;
+    private final List<String> diagnostics = new LinkedList<>();
+    private Number crid;
+    private String resourceId;
+    private boolean isPatientNew;
+    private ConversionException failure;
+
+    private ReportContext(String authToken, String ccn, Patient patient, ReportIndex content) {
+      this.authToken = authToken;
+      this.ccn = ccn;
+      this.patient = patient;
+      this.content = content;
+    }
+  }
+
+  /**
+   * The CCN and Patient resource that Observations are posted under, along with the
+   * JSON fragments for them, so they are built once per patient rather than once per Observation.
+   */
+  private class PatientTarget {
+    private final String ccn;
+    private final String resourceId;
+    private final String meta;
+    private final String subject;
+
+    private PatientTarget(String ccn, String resourceId) {
+      this.ccn = ccn;
+      this.resourceId = resourceId;
+      this.meta = payloadWriter.meta(ccn);
+      this.subject = payloadWriter.subject(resourceId);
+    }
+  }
+
+  /**
+   * Reads whether a search matched anything, and the resource ID of the first match if the
+   * server sent the matches. Stops reading once it has found either.
+   */
+  private static class FirstMatch implements SearchResultReader.Visitor {
+    private Integer total;
+    private String resourceId;
+
+    @Override
+    public boolean onTotal(int total) {
+      this.total = total;
+      return total > 0;
+    }
+
+    @Override
+    public boolean onEntry(JSONObject entry) {
+      resourceId = entry.getJSONObject("resource").getString("id");
+      return false;
+    }
+
+    private boolean found() {
+      if (resourceId != null) return true;
+      if (total == null) throw new JSONException("Search result has no total");
+      return total > 0;
+    }
+  }
+
+  /**
+   * Collects the identifier values of every resource in a page of search results, along with
+   * the link to the next page.
+   */
+  private static class IdentifierCollector implements SearchResultReader.Visitor {
+    private final Set<String> identifiers;
+    private String nextUrl;
+
+    private IdentifierCollector(Set<String> identifiers) {
+      this.identifiers = identifiers;
+    }
+
+    @Override
+    public boolean onEntry(JSONObject entry) {
+      JSONObject resource = entry.optJSONObject("resource");
+      JSONArray resourceIdentifiers = resource == null ? null : resource.optJSONArray("identifier");
+      if (resourceIdentifiers == null) return true;
+      for (int i = 0; i < resourceIdentifiers.length(); i++) {
+        String value = resourceIdentifiers.getJSONObject(i).optString("value", null);
+        if (value != null) identifiers.add(value);
+      }
+      return true;
+    }
+
+    @Override
+    public boolean onLink(JSONObject link) {
+      if ("next".equals(link.optString("relation"))) nextUrl = link.optString("url", null);
+      return true;
+    }
+  }
+
+  /**
+   * Patient resource found or created for a CRID.
+   */
+  private static class PatientResolution {
+    private final String resourceId;
+    private final boolean created;
+
+    private PatientResolution(String resourceId, boolean created) {
+      this.resourceId = resourceId;
+      this.created = created;
+    }
+  }
+
+  /**
+   * An Observation waiting to be posted, with the Patient it is posted under.
+   */
+  private class PendingObservation {
+    private final BundleEntryComponent entry;
+    private final PatientTarget target;
+    private String cacheKey;
+
+    private PendingObservation(BundleEntryComponent entry, PatientTarget target) {
+      this.entry = entry;
+      this.target = target;
+    }
+
+    /**
+     * @return the key of the serialized entry in the entry cache, worked out on first use
+     */
+    private String cacheKey() {
+      if (cacheKey == null) {
+        long contentHash = payloadWriter.contentHash((Observation) entry.getResource());
+        cacheKey = entry.getFullUrl() + "|" + Long.toHexString(contentHash) + "|" + target.ccn + "|"
+            + target.resourceId + "|" + payloadWriter.valueMappingVersion() + (conditionalCreate ? "|conditional" : "");
+      }
+      return cacheKey;
+    }
+  }
+
+  /**
+   * Outcome of posting Observations as one or more transaction Bundles.
+   */
+  private static class TransactionResult {
+    private final int chunkCount;
+    private int chunksPosted;
+    private int observationsPosted;
+    private final Set<PendingObservation> failedObservations = new HashSet<>();
+    private final List<String> skippedObservations = new ArrayList<>();
+    private Throwable firstFailure;
+
+    private TransactionResult(int chunkCount) {
+      this.chunkCount = chunkCount;
+    }
+  }
+
+  /**
+   * Limit on the requests run at once across all conversions, which can be changed while
+   * requests hold permits. Lowering it takes effect as those requests finish.
+   */
+  private static class RequestPermits extends Semaphore {
+    private static final long serialVersionUID = 1L;
+    private int limit;
+
+    private RequestPermits(int limit) {
+      super(limit);
+      this.limit = limit;
+    }
+
+    private synchronized void resize(int newLimit) {
+      if (newLimit > limit) release(newLimit - limit);
+      else reducePermits(limit - newLimit);
+      limit = newLimit;
+    }
+  }
+
+  /**
+   * Some, but not necessarily all, of the transaction Bundles for a submission failed.
+   * The message records how much got through; since posted Observations are found by the
+   * duplicate check, resubmitting the report only sends the Observations that failed.
+   */
+  private static class PartialSubmissionException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private PartialSubmissionException(TransactionResult result, int observationsPosted, int observationCount) {
+      super(String.format("%d of %d transaction Bundles were posted, %d of %d observations were posted."
+          + " Resubmitting the report will only post the observations that failed.",
+          result.chunksPosted, result.chunkCount, observationsPosted, observationCount), result.firstFailure);
+    }
+  }
+
+  /**
+   * Failure of a conversion step, carrying what is needed to build the OperationOutcome.
+   */
+  private static class ConversionException extends Exception {
+    private static final long serialVersionUID = 1L;
+    private final String code;
+    private final Exception exception;
+
+    private ConversionException(String code, String diagnostics, Exception exception) {
+      super(diagnostics, exception);
+      this.code = exception != null ? requestFailureCode(exception, code) : code;
+      this.exception = exception;
+    }
+
+    /**
+     * Pick a more specific issue code when a step failed because a request to CIBMTR did,
+     * so callers can tell an outage, which is worth retrying later, from a bad report.
+     * Requests the circuit breaker refused to send get "too-costly", so they can be told apart
+     * from requests that were sent and failed.
+     * @param exception Step failure
+     * @param code Issue code to use if the failure was not a failed request
+     * @return "timeout", "throttled", "transient", "too-costly" or the given code
+     */
+    private static String requestFailureCode(Exception exception, String code) {
+      for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+        if (cause instanceof CircuitOpenException) return "too-costly";
+        if (cause instanceof SocketTimeoutException || cause instanceof ConnectTimeoutException) return "timeout";
+        if (cause instanceof ConnectException) return "transient";
+        if (cause instanceof HttpResponseException) {
+          int status = ((HttpResponseException) cause).getStatusCode();
+          if (status == 429) return "throttled";
+          if (status >= 500) return "transient";
+        }
+      }
+      return code;
+    }
+
+    private OperationOutcome toOperationOutcome() {
+      return createOperationOutcome(false, code, getMessage(), exception);
+    }
+  }
 }
@@ -0,0 +1,139 @@
+package org.mitre.hapifhir;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Type;
+import org.json.JSONObject;
+
+/**
+ * Table of how each FHIR data type is written as the value[x] of an Observation, or of an
+ * Observation component, in the payload sent to CIBMTR. A value type is looked up in the table
+ * once; subtypes such as SimpleQuantity use the mapping of their nearest registered supertype,
+ * and the result is kept so later values of the same type go straight to their writer.
+ *
+ * <p>An Observation with a value of a type that has no mapping cannot be sent. It is left out of
+ * the submission and reported on its own, and the rest of the report is still posted.
+ */
+public class ObservationValueRegistry {
+  /**
+   * Writes a value as JSON.
+   *
+   * @param <T> Type of the value
+   */
+  @FunctionalInterface
+  public interface ValueWriter<T extends Type> {
+    /**
+     * @param value Value to write, not empty
+     * @param writer Destination, for exactly one complete JSON value
+     */
+    void write(T value, Writer writer) throws IOException;
+  }
+
+  private static final Mapping UNMAPPED = new Mapping(null, null);
+  // Shared by all registries, so no two sets of mappings have the same version
+  private static final AtomicLong VERSIONS = new AtomicLong();
+
+  private final Map<Class<?>, Mapping> registered = new ConcurrentHashMap<>();
+  private final Map<Class<?>, Mapping> resolved = new ConcurrentHashMap<>();
+  private volatile long version = VERSIONS.incrementAndGet();
+
+  /**
+   * @return a registry with mappings for valueQuantity, valueCodeableConcept, valueString,
+   *         valueBoolean, valueInteger and valueDateTime
+   */
+  public static ObservationValueRegistry withDefaults() {
+    ObservationValueRegistry registry = new ObservationValueRegistry();
+    registry.register(Quantity.class, "valueQuantity", CibmtrPayloadWriter::writeQuantity);
+    registry.register(CodeableConcept.class, "valueCodeableConcept", CibmtrPayloadWriter::writeCodeableConcept);
+    registry.register(StringType.class, "valueString", (value, writer) -> JSONObject.quote(value.getValue(), writer));
+    registry.register(BooleanType.class, "valueBoolean", (value, writer) -> writer.write(value.getValue().toString()));
+    registry.register(IntegerType.class, "valueInteger", (value, writer) -> writer.write(value.getValue().toString()));
+    registry.register(DateTimeType.class, "valueDateTime", (value, writer) -> JSONObject.quote(value.getValueAsString(), writer));
+    return registry;
+  }
+
+  /**
+   * Add or replace the mapping for a value type. It also applies to subtypes that have no
+   * mapping of their own.
+   * @param type Value type
+   * @param fieldName JSON field the value is written to, such as valueQuantity
+   * @param writer Writer for the value
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized <T extends Type> void register(Class<T> type, String fieldName, ValueWriter<? super T> writer) {
+    registered.put(type, new Mapping(fieldName, (ValueWriter<Type>) writer));
+    resolved.clear();
+    version = VERSIONS.incrementAndGet();
+  }
+
+  /**
+   * @return a number that changes whenever a mapping is registered, and that no other registry has
+   */
+  long getVersion() {
+    return version;
+  }
+
+  /**
+   * Find the mapping for a value.
+   * @param value Value to map
+   * @return the mapping, or null if the value type has none
+   */
+  Mapping resolve(Type value) {
+    Class<?> type = value.getClass();
+    Mapping mapping = resolved.get(type);
+    if (mapping == null) mapping = resolveUncached(type);
+    return mapping == UNMAPPED ? null : mapping;
+  }
+
+  /**
+   * Look up the mapping for a value type and keep it. Synchronized with register, so a mapping
+   * looked up while another is being registered cannot be kept after the register has finished.
+   * @param type Value type
+   * @return the mapping, or UNMAPPED
+   */
+  private synchronized Mapping resolveUncached(Class<?> type) {
+    Mapping mapping = UNMAPPED;
+    for (Class<?> candidate = type; candidate != null; candidate = candidate.getSuperclass()) {
+      Mapping candidateMapping = registered.get(candidate);
+      if (candidateMapping != null) {
+        mapping = candidateMapping;
+        break;
+      }
+    }
+    resolved.put(type, mapping);
+    return mapping;
+  }
+
+  /**
+   * How one value type is written.
+   */
+  static final class Mapping {
+    private final String fieldStart;
+    private final ValueWriter<Type> writer;
+
+    private Mapping(String fieldName, ValueWriter<Type> writer) {
+      this.fieldStart = fieldName == null ? null : JSONObject.quote(fieldName) + ":";
+      this.writer = writer;
+    }
+
+    /**
+     * Write the value as a JSON field.
+     * @param value Value of the mapped type
+     * @param writer Destination
+     */
+    void write(Type value, Writer writer) throws IOException {
+      writer.write(fieldStart);
+      this.writer.write(value, writer);
+    }
+  }
+}
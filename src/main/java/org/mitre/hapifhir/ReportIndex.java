@@ -0,0 +1,68 @@
+package org.mitre.hapifhir;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+
+/**
+ * Index of the resources in a list of Bundle entries, by resource type and by ID,
+ * built in a single pass so the conversion steps do not each rescan the entries.
+ */
+class ReportIndex {
+  private final Map<ResourceType, List<BundleEntryComponent>> entriesByType = new EnumMap<>(ResourceType.class);
+  private final Map<String, Resource> resourcesById = new HashMap<>();
+
+  /**
+   * @param entries Bundle entries to index, entries without a resource are skipped
+   */
+  ReportIndex(List<BundleEntryComponent> entries) {
+    for (BundleEntryComponent entry : entries) {
+      Resource resource = entry.getResource();
+      if (resource == null) continue;
+      ResourceType type = resource.getResourceType();
+      entriesByType.computeIfAbsent(type, k -> new ArrayList<>()).add(entry);
+      // HAPI sometimes includes the resource type in the ID, so the key is built from the ID part alone
+      String idPart = resource.getIdElement().getIdPart();
+      if (idPart != null) resourcesById.putIfAbsent(type.name() + "/" + idPart, resource);
+    }
+  }
+
+  /**
+   * @param type Resource type
+   * @return the entries with a resource of the given type, in their original order
+   */
+  List<BundleEntryComponent> getEntries(ResourceType type) {
+    List<BundleEntryComponent> entries = entriesByType.get(type);
+    return entries != null ? Collections.unmodifiableList(entries) : Collections.emptyList();
+  }
+
+  /**
+   * @param type Resource type
+   * @return the first resource of the given type, or null if there is none
+   */
+  Resource getFirst(ResourceType type) {
+    List<BundleEntryComponent> entries = entriesByType.get(type);
+    return entries != null ? entries.get(0).getResource() : null;
+  }
+
+  /**
+   * Resolve a reference to one of the indexed resources.
+   * @param type Expected resource type
+   * @param reference Reference such as "Organization/id", or an absolute URL ending that way
+   * @return the referenced resource, or null if the reference is not to a resource of the given type in the index
+   */
+  Resource resolve(ResourceType type, String reference) {
+    if (reference == null) return null;
+    IdType id = new IdType(reference);
+    if (!type.name().equals(id.getResourceType()) || id.getIdPart() == null) return null;
+    return resourcesById.get(type.name() + "/" + id.getIdPart());
+  }
+}
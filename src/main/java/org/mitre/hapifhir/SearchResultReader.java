@@ -0,0 +1,131 @@
+package org.mitre.hapifhir;
+
+import java.io.Reader;
+import java.util.function.Predicate;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Reads the parts of a FHIR search result Bundle that are needed for a duplicate check straight
+ * off the response, instead of buffering the whole response and parsing it into a JSONObject.
+ * The total is read as a number, each entry and link is parsed on its own as it is reached, and
+ * every other field is skipped over without being built. Reading stops as soon as the visitor
+ * has what it needs.
+ */
+final class SearchResultReader {
+  /**
+   * Receives the fields of a search result as they are read.
+   * Each method returns whether to keep reading.
+   */
+  interface Visitor {
+    default boolean onTotal(int total) {
+      return true;
+    }
+
+    default boolean onEntry(JSONObject entry) {
+      return true;
+    }
+
+    default boolean onLink(JSONObject link) {
+      return true;
+    }
+  }
+
+  private SearchResultReader() {
+  }
+
+  /**
+   * Read a search result Bundle, passing its total, entries and links to the visitor in the order
+   * they appear, until the end of the Bundle or until the visitor asks to stop.
+   * @param reader Search result JSON
+   * @param visitor Visitor for the fields
+   * @throws JSONException if the response is not a JSON object
+   */
+  static void read(Reader reader, Visitor visitor) {
+    JSONTokener tokener = new JSONTokener(reader);
+    if (tokener.nextClean() != '{') throw tokener.syntaxError("A search result must begin with '{'");
+    if (tokener.nextClean() == '}') return;
+    tokener.back();
+    while (true) {
+      if (tokener.nextClean() != '"') throw tokener.syntaxError("Expected a key");
+      String key = tokener.nextString('"');
+      if (tokener.nextClean() != ':') throw tokener.syntaxError("Expected a ':' after a key");
+
+      boolean keepReading = true;
+      if ("total".equals(key)) {
+        Object total = tokener.nextValue();
+        if (!(total instanceof Number)) throw tokener.syntaxError("total must be a number");
+        keepReading = visitor.onTotal(((Number) total).intValue());
+      } else if ("entry".equals(key)) {
+        keepReading = readObjects(tokener, visitor::onEntry);
+      } else if ("link".equals(key)) {
+        keepReading = readObjects(tokener, visitor::onLink);
+      } else {
+        skipValue(tokener);
+      }
+      if (!keepReading) return;
+
+      char next = tokener.nextClean();
+      if (next == '}') return;
+      if (next != ',') throw tokener.syntaxError("Expected a ',' or '}'");
+    }
+  }
+
+  /**
+   * Read an array, parsing one object at a time.
+   * @param tokener Tokener positioned before the array
+   * @param visitor Called with each object element, returns whether to keep reading
+   * @return false if the visitor stopped reading
+   */
+  private static boolean readObjects(JSONTokener tokener, Predicate<JSONObject> visitor) {
+    if (tokener.nextClean() != '[') throw tokener.syntaxError("Expected an array");
+    if (tokener.nextClean() == ']') return true;
+    tokener.back();
+    while (true) {
+      Object element = tokener.nextValue();
+      if (element instanceof JSONObject && !visitor.test((JSONObject) element)) return false;
+      char next = tokener.nextClean();
+      if (next == ']') return true;
+      if (next != ',') throw tokener.syntaxError("Expected a ',' or ']'");
+    }
+  }
+
+  /**
+   * Move past a value without building it.
+   * @param tokener Tokener positioned before the value
+   */
+  private static void skipValue(JSONTokener tokener) {
+    char first = tokener.nextClean();
+    if (first == '"') {
+      skipString(tokener);
+    } else if (first == '{' || first == '[') {
+      int depth = 1;
+      while (depth > 0) {
+        char next = tokener.next();
+        if (next == 0 && tokener.end()) throw tokener.syntaxError("Unterminated object or array");
+        if (next == '"') skipString(tokener);
+        else if (next == '{' || next == '[') depth++;
+        else if (next == '}' || next == ']') depth--;
+      }
+    } else {
+      // Number, boolean or null
+      tokener.back();
+      tokener.nextValue();
+    }
+  }
+
+  /**
+   * Move past the rest of a string.
+   * @param tokener Tokener positioned after the opening quote
+   */
+  private static void skipString(JSONTokener tokener) {
+    while (true) {
+      char next = tokener.next();
+      if (next == '"') return;
+      if (next == '\\') tokener.next();
+      else if (next == 0 || next == '\n' || next == '\r') throw tokener.syntaxError("Unterminated string");
+    }
+  }
+}
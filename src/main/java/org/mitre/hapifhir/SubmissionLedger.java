@@ -0,0 +1,29 @@
+package org.mitre.hapifhir;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Record of the Observations known to exist on the CIBMTR server, so they can be skipped
+ * without asking the server. Observations are identified by the CCN and Patient resource they
+ * were posted under, along with their fullUrl. Implementations must be exact: an Observation that
+ * was never recorded must never be reported as known, or it would not be posted.
+ * Implementations must be safe to use from multiple threads.
+ */
+public interface SubmissionLedger {
+  /**
+   * @param ccn Submitter CCN
+   * @param patientId Patient resource ID the Observation is linked to
+   * @param fullUrl Observation fullUrl, which is used as the Observation identifier on the server
+   * @return whether the Observation has been recorded
+   */
+  boolean contains(String ccn, String patientId, String fullUrl);
+
+  /**
+   * Record Observations that now exist on the server.
+   * @param ccn Submitter CCN
+   * @param patientId Patient resource ID the Observations are linked to
+   * @param fullUrls Observation fullUrls
+   */
+  void record(String ccn, String patientId, Collection<String> fullUrls) throws IOException;
+}
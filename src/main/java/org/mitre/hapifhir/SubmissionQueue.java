@@ -0,0 +1,699 @@
+package org.mitre.hapifhir;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.OperationOutcome;
+
+/**
+ * Durable queue of reports waiting to be submitted to CIBMTR, drained by background workers.
+ * Reports are written to an append-only journal file before they are acknowledged, so reports
+ * accepted during a CIBMTR outage are not lost, and a restart resumes with whatever was still pending.
+ * Only the ID and journal position of each pending report are held in memory, a report is read
+ * back from the journal when a worker takes it, so a long outage uses disk rather than heap.
+ *
+ * The journal holds one record per line: "ENQ", the submission ID, the time it was enqueued in
+ * milliseconds since the epoch, then the MessageHeader and report as FHIR JSON, tab-separated; or "ACK"
+ * and the submission ID once the report has been submitted. It is compacted to just the pending
+ * reports when the queue is opened, whenever it empties, and whenever there are at least as many
+ * completed reports in it as pending ones. A compacted journal starts with "SEQ" and the next
+ * submission ID, so IDs are not reused once the reports that had them are compacted away.
+ *
+ * A last line with no line separator is a record that was being written when the process stopped,
+ * and is ignored. Any other record that cannot be read is moved to the quarantine file, the journal
+ * with ".bad" added to its name, when the queue is opened, so it can be looked into rather than lost.
+ *
+ * A submission that fails with a transient, timeout or throttled issue, or that the circuit breaker
+ * refused to send (too-costly), stays queued and is retried after the retry delay, until it reaches
+ * the retry limits. Any other outcome, success or failure, completes the submission, as does an
+ * unexpected exception from the submitter. A submission that reaches the retry limits completes
+ * with the outcome of its last attempt.
+ *
+ * Workers only start once {@link #start()} is called, so the completion handler and retry delay can
+ * be set before any report left over from a previous run is submitted.
+ *
+ * @see MedMorphToCIBMTR#enableSubmissionQueue(File, java.util.function.Supplier, int, java.util.function.Consumer)
+ */
+public class SubmissionQueue implements Closeable {
+  private static final long DEFAULT_RETRY_DELAY_MILLIS = 30000;
+  private static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+  private static final int COPY_BUFFER_BYTES = 65536;
+  private static final String ENQUEUED = "ENQ";
+  private static final String ACKNOWLEDGED = "ACK";
+  private static final String SEQUENCE = "SEQ";
+  private static FhirContext fhirContext;
+
+  private final File journal;
+  private final Submitter submitter;
+  private final BlockingQueue<Submission> pending = new LinkedBlockingQueue<>();
+  // Every submission in the journal that is not complete, whether waiting, being submitted or waiting to retry
+  private final Map<String, Submission> outstanding = new LinkedHashMap<>();
+  private final List<Thread> workers = new ArrayList<>();
+  private final Set<Thread> busyWorkers = new HashSet<>();
+  private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "medmorph-submission-retry");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final int workerCount;
+  private final AtomicLong nextId = new AtomicLong(1);
+  private final Object journalLock = new Object();
+  private FileOutputStream journalStream;
+  private FileChannel journalReader;
+  private long journalSize;
+  private int depth;
+  private int completedInJournal;
+  private volatile long retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+  private volatile int maxAttempts;
+  private volatile long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+  private volatile BiConsumer<String, OperationOutcome> completionHandler;
+  private volatile boolean closed;
+  private boolean started;
+
+  /**
+   * Submits a queued report to CIBMTR.
+   */
+  @FunctionalInterface
+  interface Submitter {
+    OperationOutcome submit(Bundle medmorphReport, MessageHeader messageHeader);
+  }
+
+  /**
+   * Open the journal, loading any reports still pending from a previous run.
+   * Nothing is submitted until {@link #start()} is called.
+   * @param journal Journal file, created if it does not exist
+   * @param workerCount Number of reports submitted at once
+   * @param submitter Submits a report and returns the outcome
+   */
+  SubmissionQueue(File journal, int workerCount, Submitter submitter) throws IOException {
+    this.journal = journal;
+    this.workerCount = Math.max(1, workerCount);
+    this.submitter = submitter;
+    synchronized (journalLock) {
+      for (Submission submission : readPendingSubmissions()) {
+        pending.add(submission);
+        outstanding.put(submission.id, submission);
+        depth++;
+      }
+      // The pending reports are copied from the journal as it is now
+      if (journal.exists()) journalReader = FileChannel.open(journal.toPath(), StandardOpenOption.READ);
+      rewriteJournal();
+    }
+  }
+
+  /**
+   * Start the workers, which begin with any reports left over from a previous run.
+   * Calling this again has no effect.
+   */
+  public void start() {
+    synchronized (journalLock) {
+      if (closed) throw new IllegalStateException("Submission queue is closed");
+      if (started) return;
+      started = true;
+      for (int i = 0; i < workerCount; i++) {
+        Thread worker = new Thread(this::drain, "medmorph-submission-" + (i + 1));
+        worker.setDaemon(true);
+        worker.start();
+        workers.add(worker);
+      }
+    }
+  }
+
+  /**
+   * Set how long a submission that failed with a transient error waits before it is retried.
+   * The workers go on with other reports meanwhile.
+   * @param retryDelay Delay before a retry, defaults to 30 seconds
+   * @param unit Unit of the retryDelay
+   */
+  public void setRetryDelay(long retryDelay, TimeUnit unit) {
+    this.retryDelayMillis = unit.toMillis(retryDelay);
+  }
+
+  /**
+   * Set when a submission that keeps failing with a transient error is given up on, so that a report
+   * CIBMTR keeps rejecting does not hold up the queue for good. The submission then completes with
+   * the outcome of its last attempt. A submission is given up on once it has been attempted
+   * maxAttempts times, or once it was enqueued longer than maxAge ago. Attempts are counted from
+   * when the queue was opened, the age from when the report was first enqueued.
+   * @param maxAttempts Maximum attempts of one submission, defaults to 0 for no limit
+   * @param maxAge Maximum time since a submission was enqueued, defaults to 1 day, 0 for no limit
+   * @param unit Unit of the maxAge
+   */
+  public void setRetryLimits(int maxAttempts, long maxAge, TimeUnit unit) {
+    this.maxAttempts = maxAttempts;
+    this.maxAgeMillis = unit.toMillis(maxAge);
+  }
+
+  /**
+   * Set a handler that is given the ID and final OperationOutcome of every completed submission.
+   * It is called on a worker thread.
+   * @param completionHandler Completion handler, or null for none
+   */
+  public void setCompletionHandler(BiConsumer<String, OperationOutcome> completionHandler) {
+    this.completionHandler = completionHandler;
+  }
+
+  /**
+   * @return number of reports accepted but not yet submitted, including those being submitted right now
+   */
+  public int getDepth() {
+    synchronized (journalLock) {
+      return depth;
+    }
+  }
+
+  /**
+   * @return file that journal records which could not be read are moved to, see the class description
+   */
+  public File getQuarantineFile() {
+    return new File(journal.getPath() + ".bad");
+  }
+
+  /**
+   * Write a report to the journal and queue it for submission.
+   * Returns once the journal record has been flushed to disk.
+   * @param medmorphReport MedMorph reporting Bundle
+   * @param messageHeader MessageHeader preparsed out of the above Bundle
+   * @return submission ID
+   */
+  public String enqueue(Bundle medmorphReport, MessageHeader messageHeader) throws IOException {
+    String id = Long.toString(nextId.getAndIncrement());
+    long enqueuedAt = System.currentTimeMillis();
+    byte[] prefix = enqueuedPrefix(id, enqueuedAt);
+    byte[] payload = (getFhirContext().newJsonParser().encodeResourceToString(messageHeader) + "\t"
+        + getFhirContext().newJsonParser().encodeResourceToString(medmorphReport)).getBytes(StandardCharsets.UTF_8);
+    Submission submission;
+    synchronized (journalLock) {
+      if (closed) throw new IOException("Submission queue is closed");
+      submission = new Submission(id, enqueuedAt, journalSize + prefix.length, payload.length);
+      appendRecord(prefix, payload);
+      outstanding.put(submission.id, submission);
+      depth++;
+    }
+    pending.add(submission);
+    return submission.id;
+  }
+
+  /**
+   * Stop the workers and close the journal. Reports that were not submitted stay in the journal,
+   * and are submitted when a queue is next opened on it. Submissions in progress are not
+   * interrupted, close waits for them so a report CIBMTR accepted is still acknowledged in the journal.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (journalLock) {
+      if (closed) return;
+      closed = true;
+      // Submissions waiting to be retried stay in the journal for next time
+      retryScheduler.shutdownNow();
+      // Wake the idle workers, busy ones stop once their submission is done
+      for (Thread worker : workers) {
+        if (!busyWorkers.contains(worker)) worker.interrupt();
+      }
+    }
+    try {
+      for (Thread worker : workers) {
+        worker.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      synchronized (journalLock) {
+        try {
+          journalStream.close();
+        } finally {
+          journalReader.close();
+          journalStream = null;
+          journalReader = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Worker loop: submit queued reports until the queue is closed.
+   */
+  private void drain() {
+    Thread worker = Thread.currentThread();
+    while (true) {
+      Submission submission;
+      try {
+        submission = pending.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      synchronized (journalLock) {
+        // Closing, the submission is still in the journal for next time
+        if (closed) return;
+        busyWorkers.add(worker);
+      }
+
+      submission.attempts++;
+      OperationOutcome outcome = submit(submission);
+      OperationOutcome.IssueType issueType = outcome.getIssueFirstRep().getCode();
+      String code = issueType != null ? issueType.toCode() : null;
+      boolean retry = ("transient".equals(code) || "timeout".equals(code) || "throttled".equals(code) || "too-costly".equals(code))
+          && !retryLimitReached(submission);
+      if (!retry) {
+        try {
+          acknowledge(submission);
+        } catch (IOException e) {
+          // The submission is done, at worst it is sent again after a restart and dup checking skips it
+        }
+      }
+      synchronized (journalLock) {
+        busyWorkers.remove(worker);
+        if (closed) return;
+      }
+
+      if (retry) {
+        // Waits off the worker, which goes on with other reports
+        try {
+          retryScheduler.schedule(() -> pending.add(submission), retryDelayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+          // Closing, the submission is still in the journal for next time
+        }
+        continue;
+      }
+      BiConsumer<String, OperationOutcome> handler = completionHandler;
+      if (handler != null) {
+        try {
+          handler.accept(submission.id, outcome);
+        } catch (RuntimeException e) {
+          // The submission is complete either way, keep the worker running for the rest
+        }
+      }
+    }
+  }
+
+  /**
+   * Read the report of a submission back from the journal and submit it. A report that no longer
+   * parses is moved to the quarantine file and fails with an exception issue. A journal that cannot
+   * be read fails the attempt as transient, the report is still in it.
+   * @param submission Submission
+   * @return the outcome of the attempt
+   */
+  private OperationOutcome submit(Submission submission) {
+    String payload;
+    try {
+      payload = readPayload(submission);
+    } catch (IOException e) {
+      return errorOutcome(OperationOutcome.IssueType.TRANSIENT, "Queued report could not be read from the journal: " + e);
+    }
+    QueuedReport report;
+    try {
+      report = parsePayload(payload);
+    } catch (RuntimeException e) {
+      try {
+        quarantine(Collections.singletonList(
+            new String(enqueuedPrefix(submission.id, submission.enqueuedAt), StandardCharsets.UTF_8) + payload));
+      } catch (IOException quarantineFailure) {
+        return errorOutcome(OperationOutcome.IssueType.TRANSIENT,
+            "Queued report could not be parsed or moved to the quarantine file: " + quarantineFailure);
+      }
+      return errorOutcome(OperationOutcome.IssueType.EXCEPTION,
+          "Queued report could not be parsed and was moved to the quarantine file: " + e);
+    }
+    try {
+      OperationOutcome outcome = submitter.submit(report.medmorphReport, report.messageHeader);
+      if (outcome == null) throw new IllegalStateException("Submitter returned no outcome");
+      return outcome;
+    } catch (RuntimeException e) {
+      // A bug rather than an outage, retrying would fail the same way
+      return errorOutcome(OperationOutcome.IssueType.EXCEPTION, "Submission failed with an unexpected error: " + e);
+    }
+  }
+
+  /**
+   * Whether a submission has reached the retry limits, see {@link #setRetryLimits(int, long, TimeUnit)}.
+   * @param submission Submission that just failed with a transient error
+   * @return true if it should not be retried
+   */
+  private boolean retryLimitReached(Submission submission) {
+    int attemptLimit = maxAttempts;
+    long ageLimit = maxAgeMillis;
+    return (attemptLimit > 0 && submission.attempts >= attemptLimit)
+        || (ageLimit > 0 && System.currentTimeMillis() - submission.enqueuedAt >= ageLimit);
+  }
+
+  /**
+   * Build the outcome of a submission that could not be made or failed with an unexpected exception.
+   * @param code Issue type
+   * @param diagnostics What went wrong
+   * @return an error OperationOutcome
+   */
+  private static OperationOutcome errorOutcome(OperationOutcome.IssueType code, String diagnostics) {
+    OperationOutcome outcome = new OperationOutcome();
+    outcome.addIssue()
+        .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+        .setCode(code)
+        .setDiagnostics(diagnostics);
+    return outcome;
+  }
+
+  /**
+   * Record that a submission is complete. The journal is compacted instead if that leaves at least
+   * as many completed reports in it as pending ones, so that it does not keep growing while reports
+   * are enqueued faster than they complete, as they are during an outage. Each compaction rewrites
+   * the pending reports, and is followed by at least as many completions before the next one.
+   * @param submission Completed submission
+   */
+  private void acknowledge(Submission submission) throws IOException {
+    synchronized (journalLock) {
+      depth--;
+      outstanding.remove(submission.id);
+      // Only gone if close gave up waiting for the workers
+      if (journalStream == null) return;
+      completedInJournal++;
+      if (completedInJournal >= depth) {
+        rewriteJournal();
+      } else {
+        appendRecord(String.join("\t", ACKNOWLEDGED, submission.id).getBytes(StandardCharsets.UTF_8));
+      }
+    }
+  }
+
+  /**
+   * Append a record to the journal and force it to disk.
+   * @param parts Journal record, in one or more parts, without the line separator
+   */
+  private void appendRecord(byte[]... parts) throws IOException {
+    for (byte[] part : parts) {
+      journalStream.write(part);
+      journalSize += part.length;
+    }
+    journalStream.write('\n');
+    journalSize++;
+    journalStream.getChannel().force(false);
+  }
+
+  /**
+   * Read the MessageHeader and report of a submission back from the journal.
+   * @param submission Submission
+   * @return the tab-separated MessageHeader and report JSON
+   */
+  private String readPayload(Submission submission) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(submission.payloadLength);
+    synchronized (journalLock) {
+      if (journalReader == null) throw new IOException("Submission queue is closed");
+      while (buffer.hasRemaining()) {
+        if (journalReader.read(buffer, submission.payloadOffset + buffer.position()) < 0) {
+          throw new EOFException("Journal ends before the report of submission " + submission.id);
+        }
+      }
+    }
+    return new String(buffer.array(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Read the journal and return the submissions with no ACK record, in the order they were enqueued.
+   * Each report is parsed to check it, but only its position in the journal is kept.
+   * A last line with no line separator was being written when the process stopped, so it is ignored.
+   * Any other record that cannot be read is appended to the quarantine file, and forced to disk,
+   * before the journal is compacted without it. The next submission ID is set past every ID in the
+   * journal and to at least the one its SEQ record gives.
+   * @return pending submissions
+   */
+  private List<Submission> readPendingSubmissions() throws IOException {
+    Map<String, Submission> enqueued = new LinkedHashMap<>();
+    List<String> badRecords = new ArrayList<>();
+    long firstFreeId = 1;
+    if (journal.exists()) {
+      try (InputStream in = new BufferedInputStream(Files.newInputStream(journal.toPath()))) {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long now = System.currentTimeMillis();
+        long lineOffset = 0;
+        while (true) {
+          line.reset();
+          boolean complete = readLine(in, line);
+          // A torn last line, never acknowledged to whoever wrote it
+          if (!complete) break;
+          long recordOffset = lineOffset;
+          lineOffset += line.size() + 1;
+          String record = new String(line.toByteArray(), StandardCharsets.UTF_8);
+          String[] fields = record.split("\t");
+          if (fields.length == 2 && ACKNOWLEDGED.equals(fields[0])) {
+            enqueued.remove(fields[1]);
+            continue;
+          }
+          if (fields.length == 2 && SEQUENCE.equals(fields[0])) {
+            try {
+              firstFreeId = Math.max(firstFreeId, Long.parseLong(fields[1]));
+            } catch (NumberFormatException e) {
+              badRecords.add(record);
+            }
+            continue;
+          }
+          Submission submission;
+          try {
+            submission = parseEnqueuedRecord(fields, recordOffset, line.size(), now);
+          } catch (RuntimeException e) {
+            badRecords.add(record);
+            continue;
+          }
+          enqueued.put(submission.id, submission);
+          try {
+            firstFreeId = Math.max(firstFreeId, Long.parseLong(submission.id) + 1);
+          } catch (NumberFormatException e) {
+            // Not one of ours, it keeps its ID
+          }
+        }
+      }
+    }
+    if (!badRecords.isEmpty()) quarantine(badRecords);
+    nextId.set(firstFreeId);
+    return new ArrayList<>(enqueued.values());
+  }
+
+  /**
+   * Read one line of the journal.
+   * @param in Journal
+   * @param line Receives the line, without the line separator
+   * @return true if the line ended with a line separator, false if the journal ended first
+   */
+  private static boolean readLine(InputStream in, ByteArrayOutputStream line) throws IOException {
+    int b;
+    while ((b = in.read()) != -1) {
+      if (b == '\n') return true;
+      line.write(b);
+    }
+    return false;
+  }
+
+  /**
+   * Parse an ENQ record. Journals written before the enqueue time was recorded have one field less,
+   * their submissions are taken to have been enqueued now.
+   * @param fields Tab-separated fields of the record
+   * @param recordOffset Position of the record in the journal
+   * @param recordLength Length of the record in bytes, without the line separator
+   * @param now Current time in milliseconds since the epoch
+   * @return the submission
+   * @throws IllegalArgumentException if it is not a complete ENQ record
+   */
+  private static Submission parseEnqueuedRecord(String[] fields, long recordOffset, int recordLength, long now) {
+    if ((fields.length != 5 && fields.length != 4) || !ENQUEUED.equals(fields[0])) {
+      throw new IllegalArgumentException("Not an ENQ record");
+    }
+    int resources = fields.length - 2;
+    long enqueuedAt = fields.length == 5 ? Long.parseLong(fields[2]) : now;
+    parsePayload(fields[resources] + "\t" + fields[resources + 1]);
+    int prefixLength = 0;
+    for (int i = 0; i < resources; i++) {
+      prefixLength += fields[i].getBytes(StandardCharsets.UTF_8).length + 1;
+    }
+    return new Submission(fields[1], enqueuedAt, recordOffset + prefixLength, recordLength - prefixLength);
+  }
+
+  /**
+   * Parse the MessageHeader and report of an ENQ record.
+   * @param payload Tab-separated MessageHeader and report JSON
+   * @return the report
+   * @throws RuntimeException if either cannot be parsed
+   */
+  private static QueuedReport parsePayload(String payload) {
+    String[] resources = payload.split("\t");
+    if (resources.length != 2) throw new IllegalArgumentException("Not a MessageHeader and report");
+    MessageHeader messageHeader = getFhirContext().newJsonParser().parseResource(MessageHeader.class, resources[0]);
+    Bundle medmorphReport = getFhirContext().newJsonParser().parseResource(Bundle.class, resources[1]);
+    return new QueuedReport(medmorphReport, messageHeader);
+  }
+
+  /**
+   * Append records that could not be read to the quarantine file and force them to disk.
+   * @param records Records, without the line separator
+   */
+  private void quarantine(List<String> records) throws IOException {
+    try (FileOutputStream stream = new FileOutputStream(getQuarantineFile(), true)) {
+      Writer writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+      for (String record : records) {
+        writer.write(record);
+        writer.write('\n');
+      }
+      writer.flush();
+      stream.getChannel().force(false);
+    }
+  }
+
+  /**
+   * Build the start of the journal record that enqueues a submission, up to the MessageHeader.
+   * @param id Submission ID
+   * @param enqueuedAt Time the submission was enqueued in milliseconds since the epoch
+   * @return the fields before the MessageHeader, each followed by a tab
+   */
+  private static byte[] enqueuedPrefix(String id, long enqueuedAt) {
+    return (String.join("\t", ENQUEUED, id, Long.toString(enqueuedAt)) + "\t").getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Replace the journal with one holding the next submission ID and the outstanding submissions,
+   * then reopen it. The reports are copied from the old journal as they are, without parsing them.
+   */
+  private void rewriteJournal() throws IOException {
+    File compacted = new File(journal.getPath() + ".tmp");
+    long[] offsets = new long[outstanding.size()];
+    long size = 0;
+    FileOutputStream compactedStream = new FileOutputStream(compacted);
+    try (OutputStream out = new BufferedOutputStream(compactedStream)) {
+      byte[] sequence = String.join("\t", SEQUENCE, Long.toString(nextId.get())).getBytes(StandardCharsets.UTF_8);
+      out.write(sequence);
+      out.write('\n');
+      size += sequence.length + 1;
+      byte[] buffer = new byte[COPY_BUFFER_BYTES];
+      int i = 0;
+      for (Submission submission : outstanding.values()) {
+        byte[] prefix = enqueuedPrefix(submission.id, submission.enqueuedAt);
+        out.write(prefix);
+        size += prefix.length;
+        offsets[i++] = size;
+        copyPayload(submission, out, buffer);
+        out.write('\n');
+        size += submission.payloadLength + 1;
+      }
+      out.flush();
+      // On disk before it replaces the journal, or a crash could leave neither
+      compactedStream.getChannel().force(true);
+    }
+    Files.move(compacted.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    syncDirectory(journal.getAbsoluteFile().getParentFile());
+
+    // Only now that the new journal is in place, so a failed compaction leaves the old one in use
+    int i = 0;
+    for (Submission submission : outstanding.values()) {
+      submission.payloadOffset = offsets[i++];
+    }
+    if (journalStream != null) journalStream.close();
+    if (journalReader != null) journalReader.close();
+    journalStream = new FileOutputStream(journal, true);
+    journalReader = FileChannel.open(journal.toPath(), StandardOpenOption.READ);
+    journalSize = size;
+    completedInJournal = 0;
+  }
+
+  /**
+   * Copy the MessageHeader and report of a submission out of the journal.
+   * @param submission Submission
+   * @param out Stream to copy them to
+   * @param buffer Buffer to copy through
+   */
+  private void copyPayload(Submission submission, OutputStream out, byte[] buffer) throws IOException {
+    long position = submission.payloadOffset;
+    int remaining = submission.payloadLength;
+    while (remaining > 0) {
+      int read = journalReader.read(ByteBuffer.wrap(buffer, 0, Math.min(buffer.length, remaining)), position);
+      if (read < 0) throw new EOFException("Journal ends before the report of submission " + submission.id);
+      out.write(buffer, 0, read);
+      position += read;
+      remaining -= read;
+    }
+  }
+
+  /**
+   * Make a rename in a directory durable. Not every platform can open a directory to sync it,
+   * where it cannot the rename is left to the file system.
+   * @param directory Directory the journal is in
+   */
+  private static void syncDirectory(File directory) {
+    try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // Windows, for one, does not allow it
+    }
+  }
+
+
+  /**
+   * The FHIR context is expensive to create, so it is only created once a queue is used.
+   * @return the shared R4 context
+   */
+  private static synchronized FhirContext getFhirContext() {
+    if (fhirContext == null) fhirContext = FhirContext.forR4();
+    return fhirContext;
+  }
+
+  /**
+   * A report waiting to be submitted, held as where it is in the journal.
+   */
+  private static class Submission {
+    private final String id;
+    private final long enqueuedAt;
+    // Where the MessageHeader and report are in the journal, moved by compaction
+    private long payloadOffset;
+    private final int payloadLength;
+    // Only touched by the worker submitting it
+    private int attempts;
+
+    private Submission(String id, long enqueuedAt, long payloadOffset, int payloadLength) {
+      this.id = id;
+      this.enqueuedAt = enqueuedAt;
+      this.payloadOffset = payloadOffset;
+      this.payloadLength = payloadLength;
+    }
+  }
+
+  /**
+   * A report read back from the journal for submission.
+   */
+  private static class QueuedReport {
+    private final Bundle medmorphReport;
+    private final MessageHeader messageHeader;
+
+    private QueuedReport(Bundle medmorphReport, MessageHeader messageHeader) {
+      this.medmorphReport = medmorphReport;
+      this.messageHeader = messageHeader;
+    }
+  }
+}
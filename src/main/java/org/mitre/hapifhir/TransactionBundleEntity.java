@@ -0,0 +1,117 @@
+package org.mitre.hapifhir;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Request body for a transaction Bundle that serializes its entries directly to the connection
+ * as the request is sent, one entry at a time, instead of building the whole Bundle as a String
+ * up front. Entries are written in order by an {@link EntryWriter}, so only one entry needs to be
+ * in its JSON form at any point.
+ * 
+ * <p>The entity can be written any number of times, so requests using it can be retried.
+ *
+ * @param <T> Type of the items that are turned into Bundle entries
+ */
+class TransactionBundleEntity<T> extends AbstractHttpEntity {
+  /**
+   * Writes one item as a JSON Bundle entry.
+   */
+  @FunctionalInterface
+  interface EntryWriter<T> {
+    void write(T item, Writer writer) throws IOException;
+  }
+
+  // Field order matches what org.json produced when the Bundle was built as a JSONObject
+  private static final String BUNDLE_START = "{\"entry\":[";
+  private static final String BUNDLE_END = "],\"type\":\"transaction\",\"resourceType\":\"Bundle\"}";
+
+  /**
+   * Length in bytes of a Bundle with no entries.
+   */
+  static final int ENVELOPE_LENGTH = BUNDLE_START.length() + BUNDLE_END.length();
+
+  private final List<T> items;
+  private final EntryWriter<T> entryWriter;
+
+  TransactionBundleEntity(List<T> items, EntryWriter<T> entryWriter) {
+    this.items = items;
+    this.entryWriter = entryWriter;
+    setContentType("application/fhir+json; charset=UTF-8");
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public long getContentLength() {
+    // Unknown until written, the body is sent with chunked transfer encoding
+    return -1;
+  }
+
+  @Override
+  public InputStream getContent() throws IOException {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    writeTo(content);
+    return new ByteArrayInputStream(content.toByteArray());
+  }
+
+  @Override
+  public void writeTo(OutputStream outStream) throws IOException {
+    Writer writer = new BufferedWriter(new OutputStreamWriter(outStream, StandardCharsets.UTF_8));
+    writer.write(BUNDLE_START);
+    boolean first = true;
+    for (T item : items) {
+      if (!first) writer.write(',');
+      entryWriter.write(item, writer);
+      first = false;
+    }
+    writer.write(BUNDLE_END);
+    writer.flush();
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return false;
+  }
+
+  /**
+   * Measure how many bytes one entry takes up, without keeping the serialized form around.
+   * @param item Item to measure
+   * @param entryWriter Writer that serializes the item
+   * @return length of the entry in bytes
+   */
+  static <T> long entryLength(T item, EntryWriter<T> entryWriter) throws IOException {
+    CountingOutputStream counter = new CountingOutputStream();
+    Writer writer = new BufferedWriter(new OutputStreamWriter(counter, StandardCharsets.UTF_8));
+    entryWriter.write(item, writer);
+    writer.flush();
+    return counter.count;
+  }
+
+  private static class CountingOutputStream extends OutputStream {
+    private long count;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
@@ -0,0 +1,274 @@
+package org.mitre.hapifhir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.Date;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Ratio;
+import org.hl7.fhir.r4.model.SimpleQuantity;
+import org.hl7.fhir.r4.model.StringType;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Checks CibmtrPayloadWriter against the JSONObject-based code it replaced, which is kept here
+ * as the reference implementation.
+ */
+public class CibmtrPayloadWriterTest {
+  private static final String CCN = "12001";
+  private static final String RESOURCE_ID = "8557319952834071";
+
+  private final CibmtrPayloadWriter payloadWriter = new CibmtrPayloadWriter();
+
+  private static JSONObject legacyMeta(String ccn) {
+    JSONObject metaObject = new JSONObject();
+    JSONArray securityArray = new JSONArray();
+    JSONObject securityObject = new JSONObject();
+    securityObject.put("system", MedMorphToCIBMTR.CCN_SYSTEM);
+    securityObject.put("code", "rc_" + ccn);
+    securityArray.put(securityObject);
+    metaObject.put("security", securityArray);
+    return metaObject;
+  }
+
+  private static String legacyObservationEntry(Observation observation, String fullUrl, String ccn, String resourceId) {
+    JSONObject observationObject = new JSONObject();
+    JSONObject requestObject = new JSONObject();
+    requestObject.put("method", "POST");
+    requestObject.put("url", "Observation");
+    observationObject.put("request", requestObject);
+
+    JSONObject observationResourceObject = new JSONObject();
+    observationResourceObject.put("resourceType", "Observation");
+    observationResourceObject.put("meta", legacyMeta(ccn));
+    observationResourceObject.put("subject", (new JSONObject()).put("reference", "Patient/" + resourceId));
+    observationResourceObject.put("effectiveDateTime", observation.getEffectiveDateTimeType().dateTimeValue().getValue());
+    CodeableConcept code = observation.getCode();
+    Coding coding = code.getCoding().get(0);
+    JSONObject codingObject = new JSONObject();
+    codingObject.put("system", coding.getSystem());
+    codingObject.put("code", coding.getCode());
+    codingObject.put("display", coding.getDisplay());
+    JSONObject codeObject = new JSONObject();
+    codeObject.put("coding", (new JSONArray()).put(codingObject));
+    observationResourceObject.put("code", codeObject);
+    Quantity quantity = observation.getValueQuantity();
+    JSONObject quantityObject = new JSONObject();
+    quantityObject.put("value", quantity.getValue());
+    quantityObject.put("unit", quantity.getUnit());
+    quantityObject.put("system", quantity.getSystem());
+    quantityObject.put("code", quantity.getCode());
+    observationResourceObject.put("valueQuantity", quantityObject);
+    JSONObject identifierObject = new JSONObject();
+    identifierObject.put("use", "official");
+    identifierObject.put("system", MedMorphToCIBMTR.RESOURCE_IDENTIFIER_SYSTEM);
+    identifierObject.put("value", fullUrl);
+    observationResourceObject.put("identifier", (new JSONArray()).put(identifierObject));
+    observationObject.put("resource", observationResourceObject);
+    return observationObject.toString();
+  }
+
+  private String observationEntry(Observation observation, String fullUrl, String ccn, String resourceId) throws Exception {
+    StringWriter writer = new StringWriter();
+    payloadWriter.writeObservationEntry(writer, observation, fullUrl, payloadWriter.meta(ccn), payloadWriter.subject(resourceId));
+    return writer.toString();
+  }
+
+  @Test
+  public void observationEntryTest() throws Exception {
+    Observation observation = new Observation();
+    observation.setEffective(new DateTimeType("2010-01-01T10:30:00-05:00"));
+    observation.getCode().addCoding().setCode("8302-2").setSystem("http://loinc.org").setDisplay("Body \"Height\" </b>");
+    observation.setValue(new Quantity().setValue(69.80).setUnit("cm").setSystem("http://unitsofmeasure.org").setCode("cm"));
+    String fullUrl = "urn:uuid:5a1f0c4e-8b1a-4c1e-9a3c-2b1f3f6d7e80";
+    assertEquals(legacyObservationEntry(observation, fullUrl, CCN, RESOURCE_ID), observationEntry(observation, fullUrl, CCN, RESOURCE_ID));
+  }
+
+  @Test
+  public void observationEntryMissingValuesTest() throws Exception {
+    // Null values are left out, as a JSONObject does
+    Observation observation = new Observation();
+    observation.setEffective(new DateTimeType("2010-01-01"));
+    observation.getCode().addCoding().setCode("29463-7");
+    observation.setValue(new Quantity().setUnit("kg\u00b5\t")); // micro sign and tab, to check escaping
+    String fullUrl = "http://example.org/fhir/Observation/1";
+    assertEquals(legacyObservationEntry(observation, fullUrl, CCN, RESOURCE_ID), observationEntry(observation, fullUrl, CCN, RESOURCE_ID));
+
+    observation.getCode().getCodingFirstRep().setCode(null);
+    observation.setValue(new Quantity().setValue(1e-10));
+    assertEquals(legacyObservationEntry(observation, fullUrl, CCN, RESOURCE_ID), observationEntry(observation, fullUrl, CCN, RESOURCE_ID));
+  }
+
+  @Test
+  public void conditionalObservationEntryTest() throws Exception {
+    Observation observation = new Observation();
+    observation.setEffective(new DateTimeType("2010-01-01"));
+    observation.getCode().addCoding().setCode("8302-2").setSystem("http://loinc.org");
+    observation.setValue(new Quantity().setValue(69.80).setUnit("cm"));
+    String fullUrl = "http://example.org/fhir/Observation/1";
+    String ifNoneExist = "identifier=http%3A%2F%2Fexample.org%2Ffhir%2FObservation%2F1";
+
+    JSONObject expected = new JSONObject(legacyObservationEntry(observation, fullUrl, CCN, RESOURCE_ID));
+    expected.getJSONObject("request").put("ifNoneExist", ifNoneExist);
+    StringWriter writer = new StringWriter();
+    payloadWriter.writeObservationEntry(writer, observation, fullUrl, payloadWriter.meta(CCN), payloadWriter.subject(RESOURCE_ID), ifNoneExist);
+    assertEquals(expected.toString(), writer.toString());
+  }
+
+  @Test
+  public void valueTypesTest() throws Exception {
+    Observation observation = new Observation();
+    observation.setEffective(new DateTimeType("2010-01-01"));
+    observation.getCode().addCoding().setCode("8302-2").setSystem("http://loinc.org");
+    observation.getCode().addCoding().setCode("50373000").setSystem("http://snomed.info/sct").setDisplay("Body height");
+    observation.getCode().setText("Height");
+    String fullUrl = "http://example.org/fhir/Observation/1";
+
+    // Everything but the value is written as before
+    JSONObject base = new JSONObject(observationEntry(observation, fullUrl, CCN, RESOURCE_ID)).getJSONObject("resource");
+    assertEquals(2, base.getJSONObject("code").getJSONArray("coding").length());
+    assertEquals("http://snomed.info/sct", base.getJSONObject("code").getJSONArray("coding").getJSONObject(1).getString("system"));
+    assertEquals("Height", base.getJSONObject("code").getString("text"));
+    assertFalse(base.has("valueQuantity"));
+
+    observation.setValue(new CodeableConcept().addCoding(new Coding("http://snomed.info/sct", "10828004", "Positive")));
+    JSONObject resource = new JSONObject(observationEntry(observation, fullUrl, CCN, RESOURCE_ID)).getJSONObject("resource");
+    assertEquals("10828004", resource.getJSONObject("valueCodeableConcept").getJSONArray("coding").getJSONObject(0).getString("code"));
+
+    observation.setValue(new StringType("a \"quoted\" value"));
+    resource = new JSONObject(observationEntry(observation, fullUrl, CCN, RESOURCE_ID)).getJSONObject("resource");
+    assertEquals("a \"quoted\" value", resource.getString("valueString"));
+
+    observation.setValue(new BooleanType(true));
+    resource = new JSONObject(observationEntry(observation, fullUrl, CCN, RESOURCE_ID)).getJSONObject("resource");
+    assertTrue(resource.getBoolean("valueBoolean"));
+
+    // A primitive with only a data-absent-reason has no value to write
+    BooleanType absent = new BooleanType();
+    absent.addExtension("http://hl7.org/fhir/StructureDefinition/data-absent-reason", new CodeType("unknown"));
+    observation.setValue(absent);
+    assertNull(payloadWriter.unmappableReason(observation));
+    resource = new JSONObject(observationEntry(observation, fullUrl, CCN, RESOURCE_ID)).getJSONObject("resource");
+    assertFalse(resource.has("valueBoolean"));
+
+    // Quantity subtypes use the Quantity mapping
+    observation.setValue(null);
+    observation.addComponent().setValue(new SimpleQuantity().setValue(120).setUnit("mm[Hg]"))
+        .getCode().addCoding().setCode("8480-6").setSystem("http://loinc.org");
+    observation.addComponent().setValue(new IntegerType(3)).getCode().addCoding().setCode("count");
+    resource = new JSONObject(observationEntry(observation, fullUrl, CCN, RESOURCE_ID)).getJSONObject("resource");
+    assertFalse(resource.has("valueBoolean"));
+    JSONArray components = resource.getJSONArray("component");
+    assertEquals(2, components.length());
+    assertEquals("8480-6", components.getJSONObject(0).getJSONObject("code").getJSONArray("coding").getJSONObject(0).getString("code"));
+    assertEquals(120, components.getJSONObject(0).getJSONObject("valueQuantity").getInt("value"));
+    assertEquals(3, components.getJSONObject(1).getInt("valueInteger"));
+    assertNull(payloadWriter.unmappableReason(observation));
+  }
+
+  @Test
+  public void unmappableReasonTest() {
+    Observation observation = new Observation();
+    observation.setEffective(new DateTimeType("2010-01-01"));
+    observation.setValue(new Quantity().setValue(1));
+    assertEquals("code has no coding", payloadWriter.unmappableReason(observation));
+
+    observation.getCode().addCoding().setCode("8302-2");
+    assertNull(payloadWriter.unmappableReason(observation));
+    observation.setValue(new Period());
+    // An empty value is left out rather than mapped
+    assertNull(payloadWriter.unmappableReason(observation));
+    observation.setValue(new Ratio().setNumerator(new Quantity().setValue(1)));
+    assertEquals("value[x] of type Ratio is not supported", payloadWriter.unmappableReason(observation));
+
+    observation.setValue(null);
+    observation.addComponent().setValue(new StringType("ok")).getCode().addCoding().setCode("a");
+    observation.addComponent().setValue(new Ratio().setNumerator(new Quantity().setValue(1))).getCode().addCoding().setCode("b");
+    assertEquals("component 1 value[x] of type Ratio is not supported", payloadWriter.unmappableReason(observation));
+    observation.getComponent().get(1).getCode().getCoding().clear();
+    assertEquals("component 1 code has no coding", payloadWriter.unmappableReason(observation));
+
+    observation.getComponent().clear();
+    observation.setEffective(new Period().setStart(new Date()));
+    assertEquals("effective[x] is a Period, only dateTime is supported", payloadWriter.unmappableReason(observation));
+  }
+
+  @Test
+  public void contentHashTest() {
+    Observation observation = new Observation();
+    observation.setEffective(new DateTimeType("2010-01-01"));
+    observation.getCode().addCoding().setCode("8302-2").setSystem("http://loinc.org");
+    observation.setValue(new Quantity().setValue(69.80).setUnit("cm"));
+    long hash = payloadWriter.contentHash(observation);
+    assertEquals(hash, payloadWriter.contentHash(observation.copy()));
+
+    // Anything that is written changes the hash
+    observation.getValueQuantity().setValue(69.81);
+    assertNotEquals(hash, payloadWriter.contentHash(observation));
+    observation.getValueQuantity().setValue(69.80);
+    observation.getCode().getCodingFirstRep().setDisplay("Body Height");
+    assertNotEquals(hash, payloadWriter.contentHash(observation));
+    observation.getCode().getCodingFirstRep().setDisplay(null);
+    assertEquals(hash, payloadWriter.contentHash(observation));
+    observation.setEffective(new DateTimeType("2010-01-02"));
+    assertNotEquals(hash, payloadWriter.contentHash(observation));
+    // Values are kept apart, so moving characters between fields changes the hash
+    observation.setEffective(new DateTimeType("2010-01-01"));
+    observation.getCode().getCodingFirstRep().setCode("8302").setSystem("http://loinc.org-2");
+    assertNotEquals(hash, payloadWriter.contentHash(observation));
+  }
+
+  @Test
+  public void patientTest() {
+    JSONObject patientRequestBody = new JSONObject();
+    patientRequestBody.put("resourceType", "Patient");
+    patientRequestBody.put("meta", legacyMeta(CCN));
+    patientRequestBody.put("text", (new JSONObject()).put("status", "empty"));
+    JSONArray identifierArray = new JSONArray();
+    JSONObject identifierObject = new JSONObject();
+    identifierObject.put("use", "official");
+    identifierObject.put("system", MedMorphToCIBMTR.CRID_SYSTEM);
+    identifierObject.put("value", "1982897480019337");
+    identifierArray.put(identifierObject);
+    patientRequestBody.put("identifier", identifierArray);
+
+    assertEquals(patientRequestBody.toString(), payloadWriter.patient(CCN, "1982897480019337"));
+  }
+
+  @Test
+  public void cridRequestTest() {
+    JSONObject cridRequestBody = new JSONObject();
+    cridRequestBody.put("ccn", CCN);
+    JSONObject patientJson = new JSONObject();
+    patientJson.put("firstName", "Ren\u00e9e"); // e-acute
+    patientJson.put("lastName", "O'Brien");
+    patientJson.put("birthDate", "Sat Jan 01 00:00:00 UTC 2000");
+    patientJson.put("gender", "Female");
+    cridRequestBody.put("patient", patientJson);
+
+    assertEquals(cridRequestBody.toString(),
+        payloadWriter.cridRequest(CCN, "Ren\u00e9e", "O'Brien", "Sat Jan 01 00:00:00 UTC 2000", "Female"));
+  }
+
+  @Test
+  public void metaTest() {
+    assertEquals(legacyMeta(CCN).toString(), payloadWriter.meta(CCN));
+    // Built once per CCN
+    assertEquals(System.identityHashCode(payloadWriter.meta(CCN)), System.identityHashCode(payloadWriter.meta(CCN)));
+  }
+}
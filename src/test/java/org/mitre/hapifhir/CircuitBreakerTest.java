@@ -0,0 +1,52 @@
+package org.mitre.hapifhir;
+
+import org.junit.Test;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CircuitBreakerTest {
+  private final AtomicLong now = new AtomicLong();
+  private final CircuitBreaker circuitBreaker = new CircuitBreaker(3, 10, TimeUnit.NANOSECONDS, now::get);
+
+  @Test
+  public void opensAfterConsecutiveFailuresTest() {
+    circuitBreaker.recordFailure();
+    circuitBreaker.recordFailure();
+    circuitBreaker.recordSuccess();
+    circuitBreaker.recordFailure();
+    circuitBreaker.recordFailure();
+    assertFalse(circuitBreaker.isOpen());
+    assertTrue(circuitBreaker.allowRequest());
+
+    circuitBreaker.recordFailure();
+    assertTrue(circuitBreaker.isOpen());
+    assertFalse(circuitBreaker.allowRequest());
+  }
+
+  @Test
+  public void trialRequestTest() {
+    for (int i = 0; i < 3; i++) {
+      circuitBreaker.recordFailure();
+    }
+    now.set(9);
+    assertFalse(circuitBreaker.allowRequest());
+
+    // Only one trial request once the open period has passed
+    now.set(10);
+    assertTrue(circuitBreaker.allowRequest());
+    assertFalse(circuitBreaker.allowRequest());
+
+    // A failed trial keeps the breaker open for another period
+    circuitBreaker.recordFailure();
+    assertFalse(circuitBreaker.allowRequest());
+    now.set(20);
+    assertTrue(circuitBreaker.allowRequest());
+
+    circuitBreaker.recordSuccess();
+    assertFalse(circuitBreaker.isOpen());
+    assertTrue(circuitBreaker.allowRequest());
+    assertTrue(circuitBreaker.allowRequest());
+  }
+}
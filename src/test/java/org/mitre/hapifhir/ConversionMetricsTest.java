@@ -0,0 +1,82 @@
+package org.mitre.hapifhir;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+public class ConversionMetricsTest {
+  @Test
+  public void histogramTest() {
+    ConversionMetrics metrics = new ConversionMetrics();
+    assertEquals(0, metrics.getLatencyPercentileMillis(ConversionStage.CRID, 50));
+
+    for (int i = 0; i < 98; i++) {
+      metrics.onRequest(ConversionStage.CRID, TimeUnit.MILLISECONDS.toNanos(3), null);
+    }
+    metrics.onRequest(ConversionStage.CRID, TimeUnit.MILLISECONDS.toNanos(400), null);
+    metrics.onRequest(ConversionStage.CRID, TimeUnit.SECONDS.toNanos(60), null);
+
+    assertEquals(100, metrics.getRequestCount(ConversionStage.CRID));
+    assertEquals(5, metrics.getLatencyPercentileMillis(ConversionStage.CRID, 50));
+    assertEquals(500, metrics.getLatencyPercentileMillis(ConversionStage.CRID, 99));
+    assertEquals(Long.MAX_VALUE, metrics.getLatencyPercentileMillis(ConversionStage.CRID, 100));
+    assertArrayEquals(new long[] { 0, 0, 98, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0, 1 },
+        metrics.getLatencyHistogram(ConversionStage.CRID));
+    assertEquals(98 * 3 + 400 + 60000, metrics.getTotalTime(ConversionStage.CRID, TimeUnit.MILLISECONDS));
+    assertEquals(0, metrics.getRequestCount(ConversionStage.TRANSACTION));
+  }
+
+  @Test
+  public void errorCountTest() {
+    ConversionMetrics metrics = new ConversionMetrics();
+    metrics.onRequest(ConversionStage.DUPLICATE_CHECK, 1000, new SocketTimeoutException());
+    metrics.onRequest(ConversionStage.DUPLICATE_CHECK, 1000, new SocketTimeoutException());
+    metrics.onRequest(ConversionStage.DUPLICATE_CHECK, 1000, new IOException());
+    metrics.onRequest(ConversionStage.DUPLICATE_CHECK, 1000, null);
+
+    assertEquals(4, metrics.getRequestCount(ConversionStage.DUPLICATE_CHECK));
+    assertEquals(3, metrics.getErrorCount(ConversionStage.DUPLICATE_CHECK));
+    assertEquals(Long.valueOf(2), metrics.getErrorCounts(ConversionStage.DUPLICATE_CHECK).get("java.net.SocketTimeoutException"));
+    assertEquals(Long.valueOf(1), metrics.getErrorCounts(ConversionStage.DUPLICATE_CHECK).get("java.io.IOException"));
+    assertEquals(0, metrics.getErrorCount(ConversionStage.CRID));
+  }
+
+  @Test
+  public void transferTest() {
+    ConversionMetrics metrics = new ConversionMetrics();
+    metrics.onTransfer(ConversionStage.TRANSACTION, 5000, 800, 300, 300);
+    metrics.onTransfer(ConversionStage.TRANSACTION, 7000, 1200, 200, 100);
+
+    assertEquals(12000, metrics.getRequestBytes(ConversionStage.TRANSACTION, false));
+    assertEquals(2000, metrics.getRequestBytes(ConversionStage.TRANSACTION, true));
+    assertEquals(500, metrics.getResponseBytes(ConversionStage.TRANSACTION, false));
+    assertEquals(400, metrics.getResponseBytes(ConversionStage.TRANSACTION, true));
+    assertEquals(0, metrics.getRequestBytes(ConversionStage.CRID, true));
+  }
+
+  @Test
+  public void conversionTest() {
+    ConversionMetrics metrics = new ConversionMetrics();
+    metrics.onObservationsPosted(500);
+    metrics.onObservationsPosted(20);
+    metrics.onConversion(1000, true, "informational");
+    metrics.onConversion(1000, false, "processing");
+    metrics.onConversion(1000, true, "informational");
+
+    assertEquals(520, metrics.getObservationsPosted());
+    assertEquals(2, metrics.getTransactionsPosted());
+    assertEquals(3, metrics.getConversionCount());
+    assertEquals(Long.valueOf(2), metrics.getConversionOutcomes().get("informational"));
+    assertEquals(Long.valueOf(1), metrics.getConversionOutcomes().get("processing"));
+    assertEquals(0, metrics.getBatchCount());
+
+    // A batch of reports is counted once, apart from its reports
+    metrics.onBatchConversion(TimeUnit.MILLISECONDS.toNanos(300), 3);
+    assertEquals(1, metrics.getBatchCount());
+    assertEquals(3, metrics.getConversionCount());
+    assertEquals(500, metrics.getBatchLatencyPercentileMillis(50));
+  }
+}
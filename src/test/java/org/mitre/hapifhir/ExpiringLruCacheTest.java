@@ -0,0 +1,52 @@
+package org.mitre.hapifhir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class ExpiringLruCacheTest {
+  @Test
+  public void evictLeastRecentlyUsedTest() {
+    ExpiringLruCache<String> cache = new ExpiringLruCache<>(2, 1, TimeUnit.HOURS);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    // Touch "a" so "b" becomes the least recently used entry
+    assertEquals("1", cache.get("a"));
+    cache.put("c", "3");
+
+    assertEquals(2, cache.size());
+    assertNull(cache.get("b"));
+    assertEquals("1", cache.get("a"));
+    assertEquals("3", cache.get("c"));
+    assertEquals(3, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void expireTest() {
+    AtomicLong now = new AtomicLong();
+    ExpiringLruCache<String> cache = new ExpiringLruCache<>(10, 5, TimeUnit.SECONDS, now::get);
+    cache.put("a", "1");
+
+    now.set(TimeUnit.SECONDS.toNanos(4));
+    assertEquals("1", cache.get("a"));
+
+    now.set(TimeUnit.SECONDS.toNanos(5));
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test
+  public void invalidateTest() {
+    ExpiringLruCache<String> cache = new ExpiringLruCache<>(10, 1, TimeUnit.HOURS);
+    cache.put("a", "1");
+    cache.invalidate("a");
+    assertNull(cache.get("a"));
+  }
+}
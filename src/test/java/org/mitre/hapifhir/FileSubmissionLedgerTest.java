@@ -0,0 +1,61 @@
+package org.mitre.hapifhir;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FileSubmissionLedgerTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void recordTest() throws Exception {
+    File file = new File(folder.getRoot(), "ledger");
+    try (FileSubmissionLedger ledger = new FileSubmissionLedger(file)) {
+      ledger.record("12001", "p1", Arrays.asList("http://example.org/fhir/Observation/ob1", "http://example.org/fhir/Observation/ob2"));
+      // Already recorded keys are not written again
+      ledger.record("12001", "p1", Arrays.asList("http://example.org/fhir/Observation/ob1"));
+
+      assertTrue(ledger.contains("12001", "p1", "http://example.org/fhir/Observation/ob1"));
+      assertFalse(ledger.contains("12001", "p2", "http://example.org/fhir/Observation/ob1"));
+      assertFalse(ledger.contains("12002", "p1", "http://example.org/fhir/Observation/ob1"));
+      assertFalse(ledger.contains("12001", "p1", "http://example.org/fhir/Observation/ob3"));
+      assertEquals(2, ledger.size());
+    }
+    assertEquals(32, file.length());
+  }
+
+  @Test
+  public void reopenTest() throws Exception {
+    File file = new File(folder.getRoot(), "ledger");
+    List<String> fullUrls = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      fullUrls.add("http://example.org/fhir/Observation/" + i);
+    }
+    try (FileSubmissionLedger ledger = new FileSubmissionLedger(file)) {
+      ledger.record("12001", "p1", fullUrls);
+    }
+    // Simulate a crash part way through writing a key
+    try (FileOutputStream output = new FileOutputStream(file, true)) {
+      output.write(new byte[5]);
+    }
+
+    try (FileSubmissionLedger ledger = new FileSubmissionLedger(file)) {
+      assertEquals(1000, ledger.size());
+      for (String fullUrl : fullUrls) {
+        assertTrue(ledger.contains("12001", "p1", fullUrl));
+      }
+      assertFalse(ledger.contains("12001", "p1", "http://example.org/fhir/Observation/1000"));
+      ledger.record("12001", "p1", Arrays.asList("http://example.org/fhir/Observation/1000"));
+    }
+    assertEquals(1001 * 16, file.length());
+  }
+}
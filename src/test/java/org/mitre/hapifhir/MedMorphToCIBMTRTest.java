@@ -1,15 +1,43 @@
 package org.mitre.hapifhir;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import org.apache.http.client.HttpResponseException;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.DateType;
@@ -18,15 +46,21 @@ import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
 import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.MessageHeader;
 import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Period;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Quantity;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 public class MedMorphToCIBMTRTest {
   @Rule
   public WireMockRule wireMockRule = new WireMockRule(4444);
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
 
   Bundle medmorphReport;
   MessageHeader messageHeader;
@@ -63,7 +97,7 @@ public class MedMorphToCIBMTRTest {
     ob1.getValueQuantity().setSystem("http://unitsofmeasure.org");
     ob1.getValueQuantity().setUnit("cm");
     ob1.getValueQuantity().setValue(69.8);
-    contentBundle.addEntry().setResource(ob1);
+    contentBundle.addEntry().setFullUrl("http://example.org/fhir/Observation/ob1").setResource(ob1);
 
     Observation ob2 = new Observation();
     ob2.setSubject(new Reference("Patient/" + expectedResourceId));
@@ -74,7 +108,7 @@ public class MedMorphToCIBMTRTest {
     ob2.getValueQuantity().setSystem("http://unitsofmeasure.org");
     ob2.getValueQuantity().setUnit("kg");
     ob2.getValueQuantity().setValue(68.2);
-    contentBundle.addEntry().setResource(ob2);
+    contentBundle.addEntry().setFullUrl("http://example.org/fhir/Observation/ob2").setResource(ob2);
     medmorphReport.addEntry().setResource(contentBundle);
 
     Organization organization = new Organization();
@@ -90,6 +124,723 @@ public class MedMorphToCIBMTRTest {
     medmorphToCIBMTR = new MedMorphToCIBMTR("http://localhost:4444/");
   }
 
+  @After
+  public void tearDown() throws Exception {
+    medmorphToCIBMTR.close();
+  }
+
+  private void stubSuccessfulSubmission() {
+    stubFor(put(urlMatching("/CRID"))
+      .willReturn(aResponse()
+        .withBody("{\"perfectMatch\":[{\"crid\":" + expectedCrid + "}]}")));
+    stubFor(get(urlMatching("/Patient\\?(.)+"))
+      .willReturn(aResponse().withBody("{\"total\":0}")));
+    stubFor(get(urlMatching("/Observation\\?(.)+"))
+      .willReturn(aResponse().withBody("{\"total\":0}")));
+    stubFor(post(urlMatching("/Patient"))
+      .willReturn(aResponse()
+        .withStatus(201)
+        .withHeader("Location", "http://localhost:4444/Patient/" + expectedResourceId)));
+    stubFor(post(urlMatching("/Bundle"))
+      .willReturn(aResponse().withBody("{\"resourceType\":\"Bundle\"}")));
+  }
+
+  @Test
+  public void convertTest() throws Exception {
+    stubSuccessfulSubmission();
+
+    OperationOutcome outcome = medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    OperationOutcome.OperationOutcomeIssueComponent issue = outcome.getIssueFirstRep();
+    assertEquals(OperationOutcome.IssueSeverity.INFORMATION, issue.getSeverity());
+    assertEquals("CRID response successful - received value: " + expectedCrid + "\n"
+        + "Patient for CRID did not already exist\n"
+        + "Patient resource ID: " + expectedResourceId + "\n"
+        + "Number of observations posted: 2\n"
+        + "Number of transaction Bundles posted: 1", issue.getDiagnostics());
+  }
+
+  @Test
+  public void convertAsyncTest() throws Exception {
+    stubSuccessfulSubmission();
+
+    OperationOutcome expected = medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    OperationOutcome actual = medmorphToCIBMTR.convertAsync(medmorphReport, messageHeader, "").get();
+    assertEquals(expected.getIssueFirstRep().getSeverity(), actual.getIssueFirstRep().getSeverity());
+    assertEquals(expected.getIssueFirstRep().getDiagnostics(), actual.getIssueFirstRep().getDiagnostics());
+  }
+
+  @Test
+  public void convertAsyncFailureTest() throws Exception {
+    stubFor(put(urlMatching("/CRID"))
+      .willReturn(aResponse().withStatus(500).withBody("{}")));
+    medmorphToCIBMTR.setRetryPolicy(0, 0, 0);
+
+    OperationOutcome outcome = medmorphToCIBMTR.convertAsync(medmorphReport, messageHeader, "").get();
+    OperationOutcome.OperationOutcomeIssueComponent issue = outcome.getIssueFirstRep();
+    assertEquals(OperationOutcome.IssueSeverity.ERROR, issue.getSeverity());
+    assertEquals(OperationOutcome.IssueType.TRANSIENT, issue.getCode());
+    assertTrue(issue.getDiagnostics().startsWith("Request for CRID was not successful."));
+
+    // Validation failures come back the same way
+    outcome = medmorphToCIBMTR.convertAsync(new Bundle(), messageHeader, "").get();
+    assertEquals(OperationOutcome.IssueType.REQUIRED, outcome.getIssueFirstRep().getCode());
+    assertEquals("Submitted report bundle must contain 2 entries", outcome.getIssueFirstRep().getDiagnostics());
+  }
+
+  @Test
+  public void malformedReportTest() throws Exception {
+    // The second entry should be the content Bundle
+    Bundle malformedReport = new Bundle();
+    malformedReport.addEntry().setResource(messageHeader);
+    malformedReport.addEntry().setResource(patient);
+
+    // Both calls return the same outcome rather than failing
+    OperationOutcome expected = medmorphToCIBMTR.convert(malformedReport, messageHeader, "");
+    OperationOutcome actual = medmorphToCIBMTR.convertAsync(malformedReport, messageHeader, "").get();
+    for (OperationOutcome outcome : Arrays.asList(expected, actual)) {
+      assertEquals(OperationOutcome.IssueSeverity.ERROR, outcome.getIssueFirstRep().getSeverity());
+      assertEquals(OperationOutcome.IssueType.EXCEPTION, outcome.getIssueFirstRep().getCode());
+      assertTrue(outcome.getIssueFirstRep().getDiagnostics().startsWith("Conversion was not successful.\n"));
+      assertTrue(outcome.getIssueFirstRep().getDiagnostics().contains("ClassCastException"));
+    }
+  }
+
+  private Bundle buildReport(String givenName, String... observationIds) {
+    Bundle report = new Bundle();
+    MessageHeader header = new MessageHeader();
+    header.setSender(new Reference().setReference("Organization/" + orgId));
+    report.addEntry().setResource(header);
+
+    Bundle content = new Bundle();
+    Patient reportPatient = new Patient();
+    reportPatient.addName().setFamily("Doe").addGiven(givenName);
+    reportPatient.setGender(AdministrativeGender.FEMALE);
+    reportPatient.setBirthDateElement(new DateType("1990-01-01"));
+    content.addEntry().setResource(reportPatient);
+    for (String observationId : observationIds) {
+      Observation observation = new Observation();
+      observation.setEffective(new DateTimeType("2020-01-01"));
+      observation.getCode().addCoding().setCode("8302-2").setSystem("http://loinc.org").setDisplay("Body Height");
+      observation.setValue(new Quantity().setValue(150).setUnit("cm"));
+      content.addEntry().setFullUrl("http://example.org/fhir/Observation/" + observationId).setResource(observation);
+    }
+    report.addEntry().setResource(content);
+    report.addEntry().setResource(medmorphReport.getEntry().get(2).getResource());
+    return report;
+  }
+
+  @Test
+  public void convertAllTest() throws Exception {
+    stubSuccessfulSubmission();
+    stubFor(put(urlMatching("/CRID")).withRequestBody(containing("Jane"))
+      .willReturn(aResponse()
+        .withBody("{\"perfectMatch\":[{\"crid\":1111}]}")));
+
+    List<Bundle> reports = new ArrayList<>();
+    reports.add(buildReport("Jane", "a1", "a2"));
+    reports.add(new Bundle());
+    reports.add(buildReport("Jane", "a2", "a3"));
+    reports.add(buildReport("Mary", "b1"));
+
+    List<OperationOutcome> outcomes = medmorphToCIBMTR.convertAll(reports, "");
+    assertEquals(4, outcomes.size());
+    assertEquals(OperationOutcome.IssueSeverity.INFORMATION, outcomes.get(0).getIssueFirstRep().getSeverity());
+    assertEquals(OperationOutcome.IssueType.REQUIRED, outcomes.get(1).getIssueFirstRep().getCode());
+    assertEquals("CRID response successful - received value: 1111\n"
+        + "Patient for CRID did not already exist\n"
+        + "Patient resource ID: " + expectedResourceId + "\n"
+        + "Number of observations posted: 1\n"
+        + "Number of transaction Bundles posted: 1", outcomes.get(2).getIssueFirstRep().getDiagnostics());
+    assertTrue(outcomes.get(3).getIssueFirstRep().getDiagnostics().contains("Number of observations posted: 1"));
+
+    // One CRID request and one Patient resolution per distinct patient, one transaction for everything
+    verify(2, putRequestedFor(urlEqualTo("/CRID")));
+    verify(2, getRequestedFor(urlMatching("/Patient\\?(.)+")));
+    verify(2, postRequestedFor(urlEqualTo("/Patient")));
+    verify(1, postRequestedFor(urlEqualTo("/Bundle")));
+    JSONObject transaction = new JSONObject(findAll(postRequestedFor(urlEqualTo("/Bundle"))).get(0).getBodyAsString());
+    assertEquals(4, transaction.getJSONArray("entry").length());
+
+    // A malformed report fails on its own
+    Bundle malformedReport = new Bundle();
+    malformedReport.addEntry().setResource(messageHeader);
+    malformedReport.addEntry().setResource(patient);
+    outcomes = medmorphToCIBMTR.convertAll(Arrays.asList(malformedReport, buildReport("Mary", "b2")), "");
+    assertEquals(OperationOutcome.IssueType.EXCEPTION, outcomes.get(0).getIssueFirstRep().getCode());
+    assertEquals(OperationOutcome.IssueSeverity.INFORMATION, outcomes.get(1).getIssueFirstRep().getSeverity());
+  }
+
+  @Test
+  public void convertAllListenerTest() throws Exception {
+    stubSuccessfulSubmission();
+    stubFor(post(urlMatching("/Bundle"))
+      .willReturn(aResponse().withBody("{\"resourceType\":\"Bundle\"}").withFixedDelay(200)));
+    List<Long> conversionNanos = new ArrayList<>();
+    List<Long> batchNanos = new ArrayList<>();
+    medmorphToCIBMTR.setConversionListener(new ConversionListener() {
+      @Override
+      public void onConversion(long durationNanos, boolean success, String issueCode) {
+        conversionNanos.add(durationNanos);
+      }
+
+      @Override
+      public void onBatchConversion(long durationNanos, int reportCount) {
+        assertEquals(4, reportCount);
+        batchNanos.add(durationNanos);
+      }
+    });
+
+    medmorphToCIBMTR.convertAll(Arrays.asList(buildReport("Jane", "a1"), buildReport("Jane", "a2"),
+        buildReport("Mary", "b1"), new Bundle()), "");
+
+    // The whole call is reported once, and each report is given its share of it
+    assertEquals(1, batchNanos.size());
+    assertTrue(batchNanos.get(0) >= TimeUnit.MILLISECONDS.toNanos(200));
+    assertEquals(Collections.nCopies(4, batchNanos.get(0) / 4), conversionNanos);
+  }
+
+  @Test
+  public void unmappableObservationTest() throws Exception {
+    stubSuccessfulSubmission();
+    Bundle contentBundle = (Bundle) medmorphReport.getEntry().get(1).getResource();
+    ((Observation) contentBundle.getEntry().get(2).getResource()).setValue(new Period().setStart(new Date()));
+
+    // The other Observation is still posted
+    OperationOutcome outcome = medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    OperationOutcome.OperationOutcomeIssueComponent issue = outcome.getIssueFirstRep();
+    assertEquals(OperationOutcome.IssueSeverity.INFORMATION, issue.getSeverity());
+    assertTrue(issue.getDiagnostics().endsWith("Patient resource ID: " + expectedResourceId + "\n"
+        + "Observation http://example.org/fhir/Observation/ob2 was not posted: value[x] of type Period is not supported\n"
+        + "Number of observations posted: 1\n"
+        + "Number of transaction Bundles posted: 1"));
+    JSONObject transaction = new JSONObject(findAll(postRequestedFor(urlEqualTo("/Bundle"))).get(0).getBodyAsString());
+    assertEquals(1, transaction.getJSONArray("entry").length());
+
+    // Each report lists its own unmappable Observations
+    Bundle badReport = buildReport("Jane", "a1", "a2");
+    ((Observation) ((Bundle) badReport.getEntry().get(1).getResource()).getEntry().get(1).getResource()).getCode().getCoding().clear();
+    List<OperationOutcome> outcomes = medmorphToCIBMTR.convertAll(Arrays.asList(buildReport("Mary", "b1"), badReport), "");
+    assertTrue(outcomes.get(0).getIssueFirstRep().getDiagnostics().contains("Number of observations posted: 1"));
+    assertTrue(outcomes.get(1).getIssueFirstRep().getDiagnostics().contains(
+        "Observation http://example.org/fhir/Observation/a1 was not posted: code has no coding\n"
+        + "Number of observations posted: 1"));
+
+    // A registered mapping makes the Observation mappable
+    ObservationValueRegistry registry = ObservationValueRegistry.withDefaults();
+    registry.register(Period.class, "valuePeriod", (value, writer) -> writer.write("{\"start\":\"" + value.getStartElement().getValueAsString() + "\"}"));
+    medmorphToCIBMTR.setObservationValueRegistry(registry);
+    assertTrue(medmorphToCIBMTR.convert(medmorphReport, messageHeader, "").getIssueFirstRep().getDiagnostics()
+        .contains("Number of observations posted: 2"));
+  }
+
+  @Test
+  public void chunkedTransactionTest() throws Exception {
+    stubSuccessfulSubmission();
+    medmorphToCIBMTR.setMaxTransactionEntries(1);
+    medmorphToCIBMTR.setTransactionParallelism(2);
+
+    OperationOutcome outcome = medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    assertTrue(outcome.getIssueFirstRep().getDiagnostics().endsWith("Number of observations posted: 2\n"
+        + "Number of transaction Bundles posted: 2"));
+    verify(2, postRequestedFor(urlEqualTo("/Bundle")));
+
+    // A byte limit that only fits one entry per Bundle has the same effect
+    medmorphToCIBMTR.setMaxTransactionEntries(0);
+    medmorphToCIBMTR.setMaxTransactionBytes(500);
+    List<Bundle.BundleEntryComponent> contentEntries = ((Bundle) medmorphReport.getEntry().get(1).getResource()).getEntry();
+    assertEquals(2, medmorphToCIBMTR.postBundle("", expectedCcn, contentEntries, expectedResourceId, true));
+    verify(4, postRequestedFor(urlEqualTo("/Bundle")));
+  }
+
+  @Test
+  public void failedTransactionChunkTest() throws Exception {
+    stubSuccessfulSubmission();
+    stubFor(post(urlMatching("/Bundle")).withRequestBody(containing("Observation/ob2"))
+      .willReturn(aResponse().withStatus(500).withBody("{\"resourceType\":\"OperationOutcome\"}")));
+    medmorphToCIBMTR.setMaxTransactionEntries(1);
+
+    OperationOutcome outcome = medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    OperationOutcome.OperationOutcomeIssueComponent issue = outcome.getIssueFirstRep();
+    assertEquals(OperationOutcome.IssueSeverity.ERROR, issue.getSeverity());
+    assertTrue(issue.getDiagnostics().startsWith("Posting Observations as a Bundle was not successful.\n"
+        + "1 of 2 transaction Bundles were posted, 1 of 2 observations were posted."));
+    // The other chunk was still sent
+    verify(2, postRequestedFor(urlEqualTo("/Bundle")));
+  }
+
+  @Test
+  public void conversionListenerTest() throws Exception {
+    stubSuccessfulSubmission();
+    stubFor(get(urlMatching("/Patient\\?(.)+"))
+      .willReturn(aResponse().withBody("{\"total\":1,\"entry\":[{\"resource\":{\"id\":\"" + expectedResourceId + "\"}}]}")));
+    stubFor(get(urlMatching("/Observation\\?(.)+"))
+      .willReturn(aResponse().withBody("{\"entry\":[{\"resource\":{\"identifier\":[{\"value\":\"http://example.org/fhir/Observation/ob1\"}]}}]}")));
+    ConversionMetrics metrics = new ConversionMetrics();
+    medmorphToCIBMTR.setConversionListener(metrics);
+    medmorphToCIBMTR.setObservationSearchBatchSize(1);
+
+    medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    assertEquals(1, metrics.getRequestCount(ConversionStage.CRID));
+    assertEquals(1, metrics.getRequestCount(ConversionStage.PATIENT_SEARCH));
+    assertEquals(0, metrics.getRequestCount(ConversionStage.PATIENT_CREATE));
+    assertEquals(2, metrics.getRequestCount(ConversionStage.DUPLICATE_CHECK));
+    assertEquals(1, metrics.getRequestCount(ConversionStage.TRANSACTION));
+    assertEquals(1, metrics.getObservationsPosted());
+    assertEquals(1, metrics.getConversionCount());
+    assertEquals(Collections.singletonMap("informational", 1L), metrics.getConversionOutcomes());
+    assertTrue(metrics.getLatencyPercentileMillis(ConversionStage.CRID, 50) > 0);
+
+    stubFor(post(urlMatching("/Bundle"))
+      .willReturn(aResponse().withStatus(500).withBody("{\"resourceType\":\"OperationOutcome\"}")));
+    medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    assertEquals(2, metrics.getRequestCount(ConversionStage.TRANSACTION));
+    assertEquals(Collections.singletonMap("org.apache.http.client.HttpResponseException", 1L),
+        metrics.getErrorCounts(ConversionStage.TRANSACTION));
+    assertEquals(1, metrics.getObservationsPosted());
+    assertEquals(Long.valueOf(1), metrics.getConversionOutcomes().get("transient"));
+  }
+
+  @Test
+  public void compressionTest() throws Exception {
+    StringBuilder responseBundle = new StringBuilder("{\"resourceType\":\"Bundle\",\"entry\":[");
+    for (int i = 0; i < 100; i++) {
+      responseBundle.append(i > 0 ? "," : "").append("{\"response\":{\"status\":\"201 Created\"}}");
+    }
+    responseBundle.append("]}");
+    ByteArrayOutputStream gzippedResponse = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(gzippedResponse)) {
+      gzip.write(responseBundle.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // WireMock 1.58 needs JAXB for binary bodies, which newer JDKs lack, so this uses the JDK server
+    Map<String, byte[]> requestBodies = new ConcurrentHashMap<>();
+    Map<String, String> requestEncodings = new ConcurrentHashMap<>();
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      String key = exchange.getRequestMethod() + " " + exchange.getRequestURI().getPath();
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      for (int read; (read = exchange.getRequestBody().read(buffer)) > 0; ) {
+        body.write(buffer, 0, read);
+      }
+      requestBodies.put(key, body.toByteArray());
+      String contentEncoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+      if (contentEncoding != null) requestEncodings.put(key, contentEncoding);
+
+      byte[] response;
+      if (key.equals("PUT /CRID")) {
+        response = ("{\"perfectMatch\":[{\"crid\":" + expectedCrid + "}]}").getBytes(StandardCharsets.UTF_8);
+      } else if (key.equals("GET /Patient")) {
+        response = "{\"total\":0}".getBytes(StandardCharsets.UTF_8);
+      } else if (key.equals("POST /Patient")) {
+        exchange.getResponseHeaders().set("Location", "http://localhost/Patient/" + expectedResourceId);
+        exchange.sendResponseHeaders(201, -1);
+        exchange.close();
+        return;
+      } else {
+        assertEquals("gzip", exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        response = gzippedResponse.toByteArray();
+      }
+      exchange.sendResponseHeaders(200, response.length);
+      exchange.getResponseBody().write(response);
+      exchange.close();
+    });
+    server.start();
+
+    try (MedMorphToCIBMTR client = new MedMorphToCIBMTR("http://localhost:" + server.getAddress().getPort() + "/")) {
+      ConversionMetrics metrics = new ConversionMetrics();
+      client.setConversionListener(metrics);
+      client.setRequestCompressionThreshold(1024);
+
+      OperationOutcome outcome = client.convert(medmorphReport, messageHeader, "");
+      assertEquals(OperationOutcome.IssueSeverity.INFORMATION, outcome.getIssueFirstRep().getSeverity());
+
+      // The CRID request is below the threshold, the transaction Bundle is always compressed
+      assertNull(requestEncodings.get("PUT /CRID"));
+      assertEquals('{', requestBodies.get("PUT /CRID")[0]);
+      assertEquals("gzip", requestEncodings.get("POST /Bundle"));
+      byte[] gzippedRequest = requestBodies.get("POST /Bundle");
+      try (InputStream gunzip = new GZIPInputStream(new ByteArrayInputStream(gzippedRequest))) {
+        JSONObject transaction = new JSONObject(new JSONTokener(gunzip));
+        assertEquals(2, transaction.getJSONArray("entry").length());
+      }
+
+      assertEquals(requestBodies.get("PUT /CRID").length, metrics.getRequestBytes(ConversionStage.CRID, true));
+      assertEquals(requestBodies.get("PUT /CRID").length, metrics.getRequestBytes(ConversionStage.CRID, false));
+      assertEquals(gzippedRequest.length, metrics.getRequestBytes(ConversionStage.TRANSACTION, true));
+      assertTrue(metrics.getRequestBytes(ConversionStage.TRANSACTION, false) > gzippedRequest.length);
+      assertEquals(gzippedResponse.size(), metrics.getResponseBytes(ConversionStage.TRANSACTION, true));
+      assertEquals(responseBundle.length(), metrics.getResponseBytes(ConversionStage.TRANSACTION, false));
+
+      // Without a listener the bodies are not counted, but still compressed and decompressed
+      client.setConversionListener(null);
+      requestBodies.clear();
+      requestEncodings.clear();
+      outcome = client.convert(medmorphReport, messageHeader, "");
+      assertEquals(OperationOutcome.IssueSeverity.INFORMATION, outcome.getIssueFirstRep().getSeverity());
+      assertNull(requestEncodings.get("PUT /CRID"));
+      assertEquals("gzip", requestEncodings.get("POST /Bundle"));
+      try (InputStream gunzip = new GZIPInputStream(new ByteArrayInputStream(requestBodies.get("POST /Bundle")))) {
+        assertEquals(2, new JSONObject(new JSONTokener(gunzip)).getJSONArray("entry").length());
+      }
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  @Test
+  public void retryTest() throws Exception {
+    stubSuccessfulSubmission();
+    stubFor(put(urlMatching("/CRID")).inScenario("retry").whenScenarioStateIs(Scenario.STARTED)
+      .willReturn(aResponse().withStatus(503))
+      .willSetStateTo("recovered"));
+    stubFor(put(urlMatching("/CRID")).inScenario("retry").whenScenarioStateIs("recovered")
+      .willReturn(aResponse()
+        .withBody("{\"perfectMatch\":[{\"crid\":" + expectedCrid + "}]}")));
+    stubFor(post(urlMatching("/Patient"))
+      .willReturn(aResponse().withStatus(503)));
+    medmorphToCIBMTR.setRetryPolicy(2, 1, 10);
+
+    // The CRID PUT is retried, the Patient POST is not since the server may have created the Patient
+    OperationOutcome outcome = medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    assertEquals(OperationOutcome.IssueType.TRANSIENT, outcome.getIssueFirstRep().getCode());
+    assertTrue(outcome.getIssueFirstRep().getDiagnostics().startsWith("Posting Patient resource and retrieving resource ID was not successful."));
+    verify(2, putRequestedFor(urlEqualTo("/CRID")));
+    verify(1, postRequestedFor(urlEqualTo("/Patient")));
+  }
+
+  @Test
+  public void throttledSearchTest() throws Exception {
+    stubSuccessfulSubmission();
+    stubFor(get(urlMatching("/Patient\\?(.)+"))
+      .willReturn(aResponse().withStatus(429)));
+    medmorphToCIBMTR.setRetryPolicy(1, 1, 10);
+
+    // A throttled search is retried, then fails the report rather than reading as no Patient
+    OperationOutcome outcome = medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    assertEquals(OperationOutcome.IssueType.THROTTLED, outcome.getIssueFirstRep().getCode());
+    verify(2, getRequestedFor(urlMatching("/Patient\\?(.)+")));
+    verify(0, postRequestedFor(urlEqualTo("/Patient")));
+
+    // The same with conditional create, after the server refused the conditional create
+    stubFor(post(urlMatching("/Patient")).withHeader("If-None-Exist", matching(".+"))
+      .willReturn(aResponse().withStatus(412)));
+    medmorphToCIBMTR.setConditionalCreate(true);
+    outcome = medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    assertEquals(OperationOutcome.IssueType.THROTTLED, outcome.getIssueFirstRep().getCode());
+    verify(1, postRequestedFor(urlEqualTo("/Patient")));
+    verify(1, postRequestedFor(urlEqualTo("/Patient")).withHeader("If-None-Exist", matching(".+")));
+  }
+
+  @Test
+  public void failedSearchTest() throws Exception {
+    stubFor(get(urlMatching("/Observation\\?(.)+"))
+      .willReturn(aResponse().withStatus(403)));
+
+    // A refused duplicate check fails rather than reading as no duplicates
+    List<Bundle.BundleEntryComponent> contentEntries = ((Bundle) medmorphReport.getEntry().get(1).getResource()).getEntry();
+    try {
+      medmorphToCIBMTR.getObservationEntries("", expectedCcn, contentEntries.subList(1, 3), expectedResourceId, false);
+      fail("Expected the search to fail");
+    } catch (HttpResponseException e) {
+      assertEquals(403, e.getStatusCode());
+    }
+  }
+
+  @Test
+  public void timeoutTest() throws Exception {
+    stubFor(put(urlMatching("/CRID"))
+      .willReturn(aResponse()
+        .withFixedDelay(1000)
+        .withBody("{\"perfectMatch\":[{\"crid\":" + expectedCrid + "}]}")));
+    medmorphToCIBMTR.setTimeouts(1000, 100);
+    medmorphToCIBMTR.setRetryPolicy(1, 1, 10);
+
+    OperationOutcome outcome = medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    assertEquals(OperationOutcome.IssueType.TIMEOUT, outcome.getIssueFirstRep().getCode());
+    verify(2, putRequestedFor(urlEqualTo("/CRID")));
+  }
+
+  @Test
+  public void circuitBreakerTest() throws Exception {
+    stubFor(put(urlMatching("/CRID"))
+      .willReturn(aResponse().withStatus(502)));
+    medmorphToCIBMTR.setRetryPolicy(1, 1, 10);
+    CircuitBreaker circuitBreaker = new CircuitBreaker(2, 1, TimeUnit.MINUTES);
+    medmorphToCIBMTR.setCircuitBreaker(circuitBreaker);
+
+    // Both attempts reach the server and fail, which opens the breaker
+    OperationOutcome outcome = medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    assertEquals(OperationOutcome.IssueType.TRANSIENT, outcome.getIssueFirstRep().getCode());
+    assertTrue(circuitBreaker.isOpen());
+    verify(2, putRequestedFor(urlEqualTo("/CRID")));
+
+    // Later reports fail without sending anything, with a code of their own
+    outcome = medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    assertEquals(OperationOutcome.IssueType.TOOCOSTLY, outcome.getIssueFirstRep().getCode());
+    assertTrue(outcome.getIssueFirstRep().getDiagnostics().contains("circuit breaker is open"));
+    verify(2, putRequestedFor(urlEqualTo("/CRID")));
+
+    // Once the breaker opens, a retry it refuses is reported as a refusal too
+    circuitBreaker = new CircuitBreaker(1, 1, TimeUnit.MINUTES);
+    medmorphToCIBMTR.setCircuitBreaker(circuitBreaker);
+    outcome = medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    assertEquals(OperationOutcome.IssueType.TOOCOSTLY, outcome.getIssueFirstRep().getCode());
+    verify(3, putRequestedFor(urlEqualTo("/CRID")));
+  }
+
+  @Test
+  public void submissionQueueTest() throws Exception {
+    stubSuccessfulSubmission();
+    stubFor(put(urlMatching("/CRID"))
+      .willReturn(aResponse().withStatus(503)));
+    medmorphToCIBMTR.setRetryPolicy(0, 0, 0);
+    BlockingQueue<OperationOutcome> outcomes = new LinkedBlockingQueue<>();
+    SubmissionQueue queue = medmorphToCIBMTR.enableSubmissionQueue(folder.newFile("journal"), () -> "Bearer queued", 2, newQueue -> {
+      newQueue.setRetryDelay(10, TimeUnit.MILLISECONDS);
+      newQueue.setCompletionHandler((id, outcome) -> outcomes.add(outcome));
+    });
+
+    // Invalid reports are rejected straight away
+    OperationOutcome outcome = medmorphToCIBMTR.convert(new Bundle(), messageHeader, "");
+    assertEquals(OperationOutcome.IssueType.REQUIRED, outcome.getIssueFirstRep().getCode());
+
+    // While CIBMTR is down the report waits in the queue
+    outcome = medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    assertEquals(OperationOutcome.IssueSeverity.INFORMATION, outcome.getIssueFirstRep().getSeverity());
+    assertEquals("Report queued for submission with ID 1", outcome.getIssueFirstRep().getDiagnostics());
+    assertNull(outcomes.poll(200, TimeUnit.MILLISECONDS));
+    assertEquals(1, queue.getDepth());
+
+    stubFor(put(urlMatching("/CRID"))
+      .willReturn(aResponse()
+        .withBody("{\"perfectMatch\":[{\"crid\":" + expectedCrid + "}]}")));
+    outcome = outcomes.poll(10, TimeUnit.SECONDS);
+    assertEquals(OperationOutcome.IssueSeverity.INFORMATION, outcome.getIssueFirstRep().getSeverity());
+    assertTrue(outcome.getIssueFirstRep().getDiagnostics().endsWith("Number of observations posted: 2\n"
+        + "Number of transaction Bundles posted: 1"));
+    assertEquals(0, queue.getDepth());
+    verify(postRequestedFor(urlEqualTo("/Bundle")).withHeader("Authorization", equalTo("Bearer queued")));
+  }
+
+  @Test
+  public void submissionQueueTokenFailureTest() throws Exception {
+    stubSuccessfulSubmission();
+    stubFor(put(urlMatching("/CRID"))
+      .willReturn(aResponse()
+        .withBody("{\"perfectMatch\":[{\"crid\":" + expectedCrid + "}]}")));
+    AtomicInteger tokenRequests = new AtomicInteger();
+    Supplier<String> tokenSupplier = () -> {
+      if (tokenRequests.incrementAndGet() == 1) throw new IllegalStateException("Token service unavailable");
+      return "Bearer queued";
+    };
+    BlockingQueue<OperationOutcome> outcomes = new LinkedBlockingQueue<>();
+    medmorphToCIBMTR.enableSubmissionQueue(folder.newFile("journal"), tokenSupplier, 1, newQueue -> {
+      newQueue.setRetryDelay(10, TimeUnit.MILLISECONDS);
+      newQueue.setCompletionHandler((id, outcome) -> outcomes.add(outcome));
+    });
+
+    // The first token request fails, the report is kept and delivered with the next token
+    medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    OperationOutcome outcome = outcomes.poll(10, TimeUnit.SECONDS);
+    assertEquals(OperationOutcome.IssueSeverity.INFORMATION, outcome.getIssueFirstRep().getSeverity());
+    assertEquals(2, tokenRequests.get());
+    verify(1, postRequestedFor(urlEqualTo("/Bundle")).withHeader("Authorization", equalTo("Bearer queued")));
+  }
+
+  @Test
+  public void submissionQueueBatchTest() throws Exception {
+    stubSuccessfulSubmission();
+    stubFor(put(urlMatching("/CRID"))
+      .willReturn(aResponse().withStatus(503)));
+    medmorphToCIBMTR.setRetryPolicy(0, 0, 0);
+    SubmissionQueue queue = medmorphToCIBMTR.enableSubmissionQueue(folder.newFile("journal"), () -> "Bearer queued", 1,
+        newQueue -> newQueue.setRetryDelay(1, TimeUnit.MINUTES));
+
+    // The batch and async calls queue reports too, rather than posting them straight away
+    List<OperationOutcome> outcomes = medmorphToCIBMTR.convertAll(Arrays.asList(buildReport("Jane", "a1"), new Bundle()), "");
+    assertEquals("Report queued for submission with ID 1", outcomes.get(0).getIssueFirstRep().getDiagnostics());
+    assertEquals(OperationOutcome.IssueType.REQUIRED, outcomes.get(1).getIssueFirstRep().getCode());
+    OperationOutcome outcome = medmorphToCIBMTR.convertAsync(medmorphReport, messageHeader, "").get();
+    assertEquals("Report queued for submission with ID 2", outcome.getIssueFirstRep().getDiagnostics());
+    outcome = medmorphToCIBMTR.convertAsync(new Bundle(), messageHeader, "").get();
+    assertEquals(OperationOutcome.IssueType.REQUIRED, outcome.getIssueFirstRep().getCode());
+
+    // A malformed report still completes the future normally
+    Bundle malformedReport = new Bundle();
+    malformedReport.addEntry().setResource(messageHeader);
+    malformedReport.addEntry().setResource(patient);
+    outcome = medmorphToCIBMTR.convertAsync(malformedReport, messageHeader, "").get();
+    assertEquals(OperationOutcome.IssueType.EXCEPTION, outcome.getIssueFirstRep().getCode());
+    assertTrue(outcome.getIssueFirstRep().getDiagnostics().startsWith("Report could not be queued for submission."));
+    assertEquals(2, queue.getDepth());
+    verify(0, postRequestedFor(urlEqualTo("/Bundle")));
+  }
+
+  @Test
+  public void submissionLedgerTest() throws Exception {
+    stubSuccessfulSubmission();
+    stubFor(get(urlMatching("/Patient\\?(.)+"))
+      .willReturn(aResponse().withBody("{\"total\":1,\"entry\":[{\"resource\":{\"id\":\"" + expectedResourceId + "\"}}]}")));
+    stubFor(get(urlMatching("/Observation\\?(.)+"))
+      .willReturn(aResponse().withBody("{\"entry\":[{\"resource\":{\"identifier\":[{\"value\":\"http://example.org/fhir/Observation/ob1\"}]}}]}")));
+    medmorphToCIBMTR.setSubmissionLedger(new FileSubmissionLedger(folder.newFile("ledger")));
+    medmorphToCIBMTR.setObservationSearchBatchSize(1);
+
+    // ob1 is found on the server and ob2 is posted, both are recorded
+    OperationOutcome outcome = medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    assertTrue(outcome.getIssueFirstRep().getDiagnostics().contains("Number of observations posted: 1"));
+    verify(2, getRequestedFor(urlMatching("/Observation\\?(.)+")));
+
+    // So the next report does not need to check either of them
+    outcome = medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    assertTrue(outcome.getIssueFirstRep().getDiagnostics().contains("Number of observations posted: 0"));
+    verify(2, getRequestedFor(urlMatching("/Observation\\?(.)+")));
+    verify(1, postRequestedFor(urlEqualTo("/Bundle")));
+  }
+
+  @Test
+  public void concurrentSamePatientTest() throws Exception {
+    stubSuccessfulSubmission();
+    stubFor(put(urlMatching("/CRID"))
+      .willReturn(aResponse()
+        .withFixedDelay(500)
+        .withBody("{\"perfectMatch\":[{\"crid\":" + expectedCrid + "}]}")));
+    stubFor(get(urlMatching("/Patient\\?(.)+"))
+      .willReturn(aResponse().withFixedDelay(500).withBody("{\"total\":0}")));
+
+    List<CompletableFuture<OperationOutcome>> conversions = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      conversions.add(medmorphToCIBMTR.convertAsync(medmorphReport, messageHeader, ""));
+    }
+    int created = 0;
+    for (CompletableFuture<OperationOutcome> conversion : conversions) {
+      OperationOutcome.OperationOutcomeIssueComponent issue = conversion.get().getIssueFirstRep();
+      assertEquals(OperationOutcome.IssueSeverity.INFORMATION, issue.getSeverity());
+      assertTrue(issue.getDiagnostics().contains("Patient resource ID: " + expectedResourceId));
+      if (issue.getDiagnostics().contains("Patient for CRID did not already exist")) created++;
+    }
+
+    // The reports shared one CRID request, one Patient search and one Patient create
+    verify(1, putRequestedFor(urlEqualTo("/CRID")));
+    verify(1, getRequestedFor(urlMatching("/Patient\\?(.)+")));
+    verify(1, postRequestedFor(urlEqualTo("/Patient")));
+    // Only the report that created the Patient skipped the duplicate check
+    assertEquals(1, created);
+    verify(3, getRequestedFor(urlMatching("/Observation\\?(.)+")));
+  }
+
+  @Test
+  public void concurrentDifferentTokensTest() throws Exception {
+    stubSuccessfulSubmission();
+    stubFor(put(urlMatching("/CRID"))
+      .willReturn(aResponse()
+        .withFixedDelay(500)
+        .withBody("{\"perfectMatch\":[{\"crid\":" + expectedCrid + "}]}")));
+    stubFor(put(urlMatching("/CRID")).withHeader("Authorization", equalTo("Bearer expired"))
+      .willReturn(aResponse().withFixedDelay(500).withStatus(401)));
+    stubFor(get(urlMatching("/Patient\\?(.)+"))
+      .willReturn(aResponse()
+        .withFixedDelay(500)
+        .withBody("{\"total\":1,\"entry\":[{\"resource\":{\"id\":\"" + expectedResourceId + "\"}}]}")));
+
+    CompletableFuture<OperationOutcome> first = medmorphToCIBMTR.convertAsync(medmorphReport, messageHeader, "Bearer first");
+    CompletableFuture<OperationOutcome> second = medmorphToCIBMTR.convertAsync(medmorphReport, messageHeader, "Bearer second");
+    CompletableFuture<OperationOutcome> expired = medmorphToCIBMTR.convertAsync(medmorphReport, messageHeader, "Bearer expired");
+    assertEquals(OperationOutcome.IssueSeverity.INFORMATION, first.get().getIssueFirstRep().getSeverity());
+    assertEquals(OperationOutcome.IssueSeverity.INFORMATION, second.get().getIssueFirstRep().getSeverity());
+
+    // The refused token fails on its own, without a CRID fetched with another token
+    OperationOutcome.OperationOutcomeIssueComponent issue = expired.get().getIssueFirstRep();
+    assertEquals(OperationOutcome.IssueSeverity.ERROR, issue.getSeverity());
+    assertTrue(issue.getDiagnostics().startsWith("Request for CRID was not successful."));
+    assertFalse(issue.getDiagnostics().contains(expectedCrid));
+
+    // Each token made its own CRID request and Patient search
+    for (String token : Arrays.asList("Bearer first", "Bearer second", "Bearer expired")) {
+      verify(1, putRequestedFor(urlEqualTo("/CRID")).withHeader("Authorization", equalTo(token)));
+    }
+    verify(1, getRequestedFor(urlMatching("/Patient\\?(.)+")).withHeader("Authorization", equalTo("Bearer first")));
+    verify(1, getRequestedFor(urlMatching("/Patient\\?(.)+")).withHeader("Authorization", equalTo("Bearer second")));
+    verify(0, getRequestedFor(urlMatching("/Patient\\?(.)+")).withHeader("Authorization", equalTo("Bearer expired")));
+  }
+
+  @Test
+  public void conditionalCreateTest() throws Exception {
+    stubSuccessfulSubmission();
+    stubFor(post(urlMatching("/Patient"))
+      .willReturn(aResponse()
+        .withStatus(200)
+        .withHeader("Location", "http://localhost:4444/Patient/" + expectedResourceId)));
+    stubFor(post(urlMatching("/Bundle"))
+      .willReturn(aResponse().withBody("{\"resourceType\":\"Bundle\",\"entry\":["
+        + "{\"response\":{\"status\":\"200 OK\"}},{\"response\":{\"status\":\"201 Created\"}}]}")));
+    medmorphToCIBMTR.setConditionalCreate(true);
+
+    OperationOutcome outcome = medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    OperationOutcome.OperationOutcomeIssueComponent issue = outcome.getIssueFirstRep();
+    assertEquals(OperationOutcome.IssueSeverity.INFORMATION, issue.getSeverity());
+    // The Patient already existed and only one of the Observations was new
+    assertEquals("CRID response successful - received value: " + expectedCrid + "\n"
+        + "Patient resource ID: " + expectedResourceId + "\n"
+        + "Number of observations posted: 1\n"
+        + "Number of transaction Bundles posted: 1", issue.getDiagnostics());
+
+    // The server did the duplicate checks, so there were no searches
+    verify(0, getRequestedFor(urlMatching("/Patient\\?(.)+")));
+    verify(0, getRequestedFor(urlMatching("/Observation\\?(.)+")));
+    verify(postRequestedFor(urlEqualTo("/Patient"))
+      .withHeader("If-None-Exist", equalTo("_security=" + MedMorphToCIBMTR.CCN_SYSTEM + "%7Crc_" + expectedCcn
+        + "&identifier=" + expectedCrid)));
+    verify(postRequestedFor(urlEqualTo("/Bundle"))
+      .withRequestBody(containing("\"ifNoneExist\":\"identifier=http%3A%2F%2Fexample.org%2Ffhir%2FObservation%2Fob1\"")));
+  }
+
+  @Test
+  public void conditionalCreateFallbackTest() throws Exception {
+    stubSuccessfulSubmission();
+    stubFor(post(urlMatching("/Patient")).withHeader("If-None-Exist", matching(".+"))
+      .willReturn(aResponse().withStatus(412)));
+    stubFor(get(urlMatching("/Patient\\?(.)+"))
+      .willReturn(aResponse().withBody("{\"total\":1,\"entry\":[{\"resource\":{\"id\":\"" + expectedResourceId + "\"}}]}")));
+    medmorphToCIBMTR.setConditionalCreate(true);
+
+    // Several Patients matched the conditional create, so the Patient is searched for instead
+    OperationOutcome outcome = medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    OperationOutcome.OperationOutcomeIssueComponent issue = outcome.getIssueFirstRep();
+    assertEquals(OperationOutcome.IssueSeverity.INFORMATION, issue.getSeverity());
+    assertTrue(issue.getDiagnostics().contains("Patient resource ID: " + expectedResourceId));
+    assertTrue(issue.getDiagnostics().contains("Number of observations posted: 2"));
+    verify(1, getRequestedFor(urlMatching("/Patient\\?(.)+")));
+    verify(1, postRequestedFor(urlEqualTo("/Patient")));
+  }
+
+  @Test
+  public void conditionalCreateWithoutIdTest() throws Exception {
+    stubSuccessfulSubmission();
+    stubFor(get(urlMatching("/Patient\\?(.)+"))
+      .willReturn(aResponse().withBody("{\"total\":1,\"entry\":[{\"resource\":{\"id\":\"" + expectedResourceId + "\"}}]}")));
+    medmorphToCIBMTR.setConditionalCreate(true);
+
+    // The Patient already existed, and the server did not say where
+    stubFor(post(urlMatching("/Patient")).withHeader("If-None-Exist", matching(".+"))
+      .willReturn(aResponse().withStatus(200)));
+    OperationOutcome outcome = medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    assertEquals(OperationOutcome.IssueSeverity.INFORMATION, outcome.getIssueFirstRep().getSeverity());
+    assertTrue(outcome.getIssueFirstRep().getDiagnostics().contains("Patient resource ID: " + expectedResourceId));
+    verify(1, getRequestedFor(urlMatching("/Patient\\?(.)+")));
+
+    // The server does not accept conditional creates
+    stubFor(post(urlMatching("/Patient")).withHeader("If-None-Exist", matching(".+"))
+      .willReturn(aResponse().withStatus(400)));
+    outcome = medmorphToCIBMTR.convert(medmorphReport, messageHeader, "");
+    assertEquals(OperationOutcome.IssueSeverity.INFORMATION, outcome.getIssueFirstRep().getSeverity());
+    assertTrue(outcome.getIssueFirstRep().getDiagnostics().contains("Patient resource ID: " + expectedResourceId));
+    verify(2, getRequestedFor(urlMatching("/Patient\\?(.)+")));
+    verify(2, postRequestedFor(urlEqualTo("/Patient")));
+  }
+
   @Test
   public void getCridTest() throws Exception {
     stubFor(put(urlMatching("/CRID"))
@@ -98,6 +849,84 @@ public class MedMorphToCIBMTRTest {
 
     Number actualCrid = medmorphToCIBMTR.getCrid("", expectedCcn, patient);
     assertEquals(expectedCrid, actualCrid.toString());
+    verify(putRequestedFor(urlEqualTo("/CRID"))
+        .withRequestBody(containing("\"firstName\":\"John\""))
+        .withRequestBody(containing("\"lastName\":\"Doe\"")));
+  }
+
+  @Test
+  public void getCridCacheTest() throws Exception {
+    stubFor(put(urlMatching("/CRID"))
+      .willReturn(aResponse()
+        .withBody("{\"perfectMatch\":[{\"matchedCriteria\":[\"firstName\",\"lastName\",\"gender\",\"birthDate\"],\"matchType\":\"Perfect1\",\"crid\":1982897480019337}]}")));
+
+    ExpiringLruCache<Number> cridCache = new ExpiringLruCache<>(100, 1, TimeUnit.HOURS);
+    medmorphToCIBMTR.setCridCache(cridCache);
+    assertEquals(expectedCrid, medmorphToCIBMTR.getCrid("", expectedCcn, patient).toString());
+    assertEquals(expectedCrid, medmorphToCIBMTR.getCrid("", expectedCcn, patient).toString());
+    verify(1, putRequestedFor(urlEqualTo("/CRID")));
+    assertEquals(1, cridCache.getHitCount());
+
+    // A different CCN is a different cache entry
+    medmorphToCIBMTR.getCrid("", "99999", patient);
+    verify(2, putRequestedFor(urlEqualTo("/CRID")));
+  }
+
+  @Test
+  public void patientIdCacheTest() throws Exception {
+    stubFor(get(urlMatching("/Patient\\?(.)+"))
+      .willReturn(aResponse().withBody("{\"total\":0}")));
+    stubFor(post(urlMatching("/Patient"))
+      .willReturn(aResponse()
+        .withHeader("Location", "http://localhost:4444/Patient/" + expectedResourceId)));
+
+    medmorphToCIBMTR.setPatientIdCache(new ExpiringLruCache<>(100, 1, TimeUnit.HOURS));
+    assertNull(medmorphToCIBMTR.checkIfPatientExists("", expectedCcn, expectedCrid));
+    medmorphToCIBMTR.postPatient("", expectedCcn, expectedCrid);
+    // The newly created patient is found without another search
+    assertEquals(expectedResourceId, medmorphToCIBMTR.checkIfPatientExists("", expectedCcn, expectedCrid));
+    verify(1, getRequestedFor(urlMatching("/Patient\\?(.)+")));
+  }
+
+  @Test
+  public void observationEntryCacheTest() throws Exception {
+    stubSuccessfulSubmission();
+    List<Bundle.BundleEntryComponent> contentEntries = ((Bundle) medmorphReport.getEntry().get(1).getResource()).getEntry();
+    medmorphToCIBMTR.postBundle("", expectedCcn, contentEntries, expectedResourceId, true);
+    String uncachedBody = findAll(postRequestedFor(urlEqualTo("/Bundle"))).get(0).getBodyAsString();
+
+    // With a byte limit every entry is written twice, once to measure it and once to send it
+    ExpiringLruCache<String> entryCache = new ExpiringLruCache<>(100, 1, TimeUnit.HOURS);
+    medmorphToCIBMTR.setObservationEntryCache(entryCache);
+    medmorphToCIBMTR.setMaxTransactionBytes(100000);
+    medmorphToCIBMTR.postBundle("", expectedCcn, contentEntries, expectedResourceId, true);
+    assertEquals(2, entryCache.size());
+    assertEquals(2, entryCache.getMissCount());
+    assertEquals(2, entryCache.getHitCount());
+    assertEquals(uncachedBody, findAll(postRequestedFor(urlEqualTo("/Bundle"))).get(1).getBodyAsString());
+
+    // A resubmission reuses the entries
+    medmorphToCIBMTR.postBundle("", expectedCcn, contentEntries, expectedResourceId, true);
+    assertEquals(2, entryCache.getMissCount());
+    assertEquals(uncachedBody, findAll(postRequestedFor(urlEqualTo("/Bundle"))).get(2).getBodyAsString());
+
+    // A changed Observation or a different Patient is written afresh
+    ((Observation) contentEntries.get(2).getResource()).getValueQuantity().setValue(70.1);
+    medmorphToCIBMTR.postBundle("", expectedCcn, contentEntries, "other", true);
+    assertEquals(4, entryCache.getMissCount());
+    String changedBody = findAll(postRequestedFor(urlEqualTo("/Bundle"))).get(3).getBodyAsString();
+    assertTrue(changedBody.contains("\"value\":70.1"));
+    assertTrue(changedBody.contains("Patient/other"));
+
+    // So is one whose value mapping changed
+    ObservationValueRegistry valueRegistry = ObservationValueRegistry.withDefaults();
+    medmorphToCIBMTR.setObservationValueRegistry(valueRegistry);
+    medmorphToCIBMTR.postBundle("", expectedCcn, contentEntries, "other", true);
+    assertEquals(6, entryCache.getMissCount());
+    valueRegistry.register(Quantity.class, "valueQuantity", (value, writer) -> writer.write("{\"value\":0}"));
+    medmorphToCIBMTR.postBundle("", expectedCcn, contentEntries, "other", true);
+    assertEquals(8, entryCache.getMissCount());
+    assertTrue(findAll(postRequestedFor(urlEqualTo("/Bundle"))).get(5).getBodyAsString().contains("\"valueQuantity\":{\"value\":0}"));
   }
 
   @Test
@@ -113,6 +942,8 @@ public class MedMorphToCIBMTRTest {
   @Test
   public void checkIfPatientExistsTest() throws Exception {
     // Should be null since patient should not exist
+    stubFor(get(urlMatching("/Patient\\?(.)+"))
+      .willReturn(aResponse().withBody("{\"total\":0}")));
     String actualResourceId = medmorphToCIBMTR.checkIfPatientExists("", expectedCcn, expectedCrid);
     assertNull(actualResourceId);
 
@@ -122,6 +953,150 @@ public class MedMorphToCIBMTRTest {
         .withBody("{\"total\":1,\"entry\":[{\"resource\":{\"id\":\""+expectedResourceId+"\"}}]}")));
     actualResourceId = medmorphToCIBMTR.checkIfPatientExists("", expectedCcn, expectedCrid);
     assertEquals(expectedResourceId, actualResourceId);
+    verify(getRequestedFor(urlMatching("/Patient\\?(.)+")).withQueryParam("_elements", equalTo("identifier")));
+  }
+
+  @Test
+  public void sharedHttpClientTest() throws Exception {
+    stubFor(post(urlMatching("/Bundle"))
+      .willReturn(aResponse().withStatus(200).withBody("{\"resourceType\":\"Bundle\"}")));
+
+    // More requests than the per-route pool limit, to make sure connections are released after each call
+    List<Bundle.BundleEntryComponent> contentEntries = ((Bundle) medmorphReport.getEntry().get(1).getResource()).getEntry();
+    for (int i = 0; i < 25; i++) {
+      assertEquals(2, medmorphToCIBMTR.postBundle("", expectedCcn, contentEntries, expectedResourceId, true));
+    }
+    verify(25, postRequestedFor(urlEqualTo("/Bundle")));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void closeTest() throws Exception {
+    medmorphToCIBMTR.close();
+    medmorphToCIBMTR.checkIfPatientExists("", expectedCcn, expectedCrid);
+  }
+
+  @Test
+  public void getObservationEntriesBatchedTest() throws Exception {
+    stubFor(get(urlMatching("/Observation\\?(.)+"))
+      .willReturn(aResponse()
+        .withBody("{\"total\":1,\"entry\":[{\"resource\":{\"identifier\":[{\"value\":\"http://example.org/fhir/Observation/ob1\"}]}}]}")));
+
+    List<Bundle.BundleEntryComponent> contentEntries = ((Bundle) medmorphReport.getEntry().get(1).getResource()).getEntry();
+    JSONArray entries = medmorphToCIBMTR.getObservationEntries("", expectedCcn, contentEntries.subList(1, 3), expectedResourceId, false);
+    assertEquals(1, entries.length());
+    JSONObject identifier = entries.getJSONObject(0).getJSONObject("resource").getJSONArray("identifier").getJSONObject(0);
+    assertEquals("http://example.org/fhir/Observation/ob2", identifier.getString("value"));
+    // Both identifiers go out in a single search
+    verify(1, getRequestedFor(urlMatching("/Observation\\?(.)+")));
+    verify(getRequestedFor(urlMatching("/Observation\\?(.)+"))
+        .withQueryParam("identifier", equalTo("http://example.org/fhir/Observation/ob1,http://example.org/fhir/Observation/ob2"))
+        .withQueryParam("_elements", equalTo("identifier")));
+
+    // Identifiers are split across searches once the batch size is reached
+    medmorphToCIBMTR.setObservationSearchBatchSize(1);
+    entries = medmorphToCIBMTR.getObservationEntries("", expectedCcn, contentEntries.subList(1, 3), expectedResourceId, false);
+    assertEquals(1, entries.length());
+    verify(3, getRequestedFor(urlMatching("/Observation\\?(.)+")));
+  }
+
+  @Test
+  public void getObservationEntriesSearchEachTest() throws Exception {
+    stubFor(get(urlEqualTo("/Observation?identifier=http%3A%2F%2Fexample.org%2Ffhir%2FObservation%2Fob1&_summary=count"))
+      .willReturn(aResponse().withBody("{\"total\":1}")));
+    stubFor(get(urlEqualTo("/Observation?identifier=http%3A%2F%2Fexample.org%2Ffhir%2FObservation%2Fob2&_summary=count"))
+      .willReturn(aResponse().withBody("{\"total\":0}")));
+
+    medmorphToCIBMTR.setDuplicateCheckMode(DuplicateCheckMode.SEARCH_EACH);
+    List<Bundle.BundleEntryComponent> contentEntries = ((Bundle) medmorphReport.getEntry().get(1).getResource()).getEntry();
+    JSONArray entries = medmorphToCIBMTR.getObservationEntries("", expectedCcn, contentEntries.subList(1, 3), expectedResourceId, false);
+    assertEquals(1, entries.length());
+    verify(2, getRequestedFor(urlMatching("/Observation\\?(.)+")));
+  }
+
+  @Test
+  public void observationExistsEncodingTest() throws Exception {
+    // The fullUrl is escaped and encoded as in the batched search, not split at its & or |
+    stubFor(get(urlEqualTo("/Observation?identifier=http%3A%2F%2Fexample.org%2Fobs%3Fa%3D1%26b%3D2%5C%7Cx&_summary=count"))
+      .willReturn(aResponse().withBody("{\"total\":1}")));
+    assertTrue(medmorphToCIBMTR.observationExists("", "http://example.org/obs?a=1&b=2|x"));
+  }
+
+  @Test
+  public void getObservationEntriesConcurrentTest() throws Exception {
+    stubFor(get(urlEqualTo("/Observation?identifier=http%3A%2F%2Fexample.org%2Ffhir%2FObservation%2Fob1&_summary=count"))
+      .willReturn(aResponse().withBody("{\"total\":0}").withFixedDelay(200)));
+    stubFor(get(urlEqualTo("/Observation?identifier=http%3A%2F%2Fexample.org%2Ffhir%2FObservation%2Fob2&_summary=count"))
+      .willReturn(aResponse().withBody("{\"total\":0}")));
+
+    medmorphToCIBMTR.setDuplicateCheckMode(DuplicateCheckMode.CONCURRENT_SEARCH_EACH);
+    List<Bundle.BundleEntryComponent> contentEntries = ((Bundle) medmorphReport.getEntry().get(1).getResource()).getEntry();
+    JSONArray entries = medmorphToCIBMTR.getObservationEntries("", expectedCcn, contentEntries.subList(1, 3), expectedResourceId, false);
+    // Entries keep the report order even though the first search finishes last
+    assertEquals(2, entries.length());
+    assertEquals("http://example.org/fhir/Observation/ob1",
+        entries.getJSONObject(0).getJSONObject("resource").getJSONArray("identifier").getJSONObject(0).getString("value"));
+    assertEquals("http://example.org/fhir/Observation/ob2",
+        entries.getJSONObject(1).getJSONObject("resource").getJSONArray("identifier").getJSONObject(0).getString("value"));
+    verify(2, getRequestedFor(urlMatching("/Observation\\?(.)+")));
+  }
+
+  @Test
+  public void sharedRequestLimitTest() throws Exception {
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    ExecutorService threads = Executors.newCachedThreadPool();
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.setExecutor(threads);
+    server.createContext("/", exchange -> {
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      inFlight.decrementAndGet();
+      byte[] response = "{\"total\":0}".getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, response.length);
+      exchange.getResponseBody().write(response);
+      exchange.close();
+    });
+    server.start();
+
+    try (MedMorphToCIBMTR client = new MedMorphToCIBMTR("http://localhost:" + server.getAddress().getPort() + "/")) {
+      client.setDuplicateCheckMode(DuplicateCheckMode.CONCURRENT_SEARCH_EACH);
+      client.setDuplicateCheckParallelism(2);
+      List<Bundle.BundleEntryComponent> contentEntries = ((Bundle) medmorphReport.getEntry().get(1).getResource()).getEntry();
+      List<CompletableFuture<JSONArray>> calls = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        calls.add(CompletableFuture.supplyAsync(() -> {
+          try {
+            return client.getObservationEntries("", expectedCcn, contentEntries.subList(1, 3), expectedResourceId, false);
+          } catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+        }, threads));
+      }
+      for (CompletableFuture<JSONArray> call : calls) {
+        assertEquals(2, call.get(10, TimeUnit.SECONDS).length());
+      }
+      // Each call may run two searches at once, but all four calls together only two
+      assertEquals(2, maxInFlight.get());
+    } finally {
+      server.stop(0);
+      threads.shutdownNow();
+    }
+  }
+
+  @Test(expected = JSONException.class)
+  public void getObservationEntriesConcurrentFailureTest() throws Exception {
+    stubFor(get(urlEqualTo("/Observation?identifier=http%3A%2F%2Fexample.org%2Ffhir%2FObservation%2Fob1&_summary=count"))
+      .willReturn(aResponse().withBody("{\"total\":0}")));
+    stubFor(get(urlEqualTo("/Observation?identifier=http%3A%2F%2Fexample.org%2Ffhir%2FObservation%2Fob2&_summary=count"))
+      .willReturn(aResponse().withBody("not a search bundle")));
+
+    medmorphToCIBMTR.setDuplicateCheckMode(DuplicateCheckMode.CONCURRENT_SEARCH_EACH);
+    List<Bundle.BundleEntryComponent> contentEntries = ((Bundle) medmorphReport.getEntry().get(1).getResource()).getEntry();
+    medmorphToCIBMTR.getObservationEntries("", expectedCcn, contentEntries.subList(1, 3), expectedResourceId, false);
   }
 
   @Test
@@ -0,0 +1,46 @@
+package org.mitre.hapifhir;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.ResourceType;
+
+public class ReportIndexTest {
+  @Test
+  public void indexTest() {
+    Bundle bundle = new Bundle();
+    Patient patient = new Patient();
+    Patient otherPatient = new Patient();
+    Organization organization = new Organization();
+    organization.setId("Organization/org1");
+    Organization plainIdOrganization = new Organization();
+    plainIdOrganization.setId("org2");
+    bundle.addEntry().setResource(new Observation());
+    bundle.addEntry().setResource(patient);
+    bundle.addEntry().setResource(organization);
+    bundle.addEntry();
+    bundle.addEntry().setResource(otherPatient);
+    bundle.addEntry().setResource(plainIdOrganization);
+    bundle.addEntry().setResource(new Observation());
+
+    ReportIndex index = new ReportIndex(bundle.getEntry());
+    assertEquals(2, index.getEntries(ResourceType.Observation).size());
+    assertEquals(0, index.getEntries(ResourceType.Condition).size());
+    assertSame(patient, index.getFirst(ResourceType.Patient));
+    assertNull(index.getFirst(ResourceType.Condition));
+
+    // Both ID forms resolve, by relative or absolute reference
+    assertSame(organization, index.resolve(ResourceType.Organization, "Organization/org1"));
+    assertSame(plainIdOrganization, index.resolve(ResourceType.Organization, "Organization/org2"));
+    assertSame(plainIdOrganization, index.resolve(ResourceType.Organization, "http://example.org/fhir/Organization/org2"));
+    assertNull(index.resolve(ResourceType.Organization, "org2"));
+    assertNull(index.resolve(ResourceType.Patient, "Organization/org1"));
+    assertNull(index.resolve(ResourceType.Organization, null));
+  }
+}
@@ -0,0 +1,84 @@
+package org.mitre.hapifhir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class SearchResultReaderTest {
+  private static class Recorder implements SearchResultReader.Visitor {
+    private final List<String> events = new ArrayList<>();
+    private final int maxEntries;
+
+    private Recorder(int maxEntries) {
+      this.maxEntries = maxEntries;
+    }
+
+    @Override
+    public boolean onTotal(int total) {
+      events.add("total " + total);
+      return true;
+    }
+
+    @Override
+    public boolean onEntry(JSONObject entry) {
+      events.add("entry " + entry.getJSONObject("resource").getString("id"));
+      return events.stream().filter(event -> event.startsWith("entry")).count() < maxEntries;
+    }
+
+    @Override
+    public boolean onLink(JSONObject link) {
+      events.add("link " + link.getString("relation"));
+      return true;
+    }
+  }
+
+  @Test
+  public void readTest() {
+    // Other fields are skipped, including ones with nested structures and escaped quotes and brackets
+    String bundle = "{\"resourceType\":\"Bundle\",\"meta\":{\"tag\":[{\"code\":\"a\\\"]}\"}]},\"type\":\"searchset\","
+        + "\"total\": 2 ,\"link\":[{\"relation\":\"self\"},{\"relation\":\"next\"}],"
+        + "\"entry\":[{\"resource\":{\"id\":\"1\"}},{\"resource\":{\"id\":\"2\",\"active\":true}}],\"extra\":[1,null,false]}";
+    Recorder recorder = new Recorder(Integer.MAX_VALUE);
+    SearchResultReader.read(new StringReader(bundle), recorder);
+    assertEquals(5, recorder.events.size());
+    assertEquals("total 2", recorder.events.get(0));
+    assertEquals("link self", recorder.events.get(1));
+    assertEquals("link next", recorder.events.get(2));
+    assertEquals("entry 1", recorder.events.get(3));
+    assertEquals("entry 2", recorder.events.get(4));
+  }
+
+  @Test
+  public void stopTest() {
+    // Nothing after the first entry is read, so the truncated rest does not matter
+    Recorder recorder = new Recorder(1);
+    SearchResultReader.read(new StringReader("{\"total\":3,\"entry\":[{\"resource\":{\"id\":\"1\"}},{\"resource\":{\"id\""), recorder);
+    assertEquals(2, recorder.events.size());
+    assertEquals("entry 1", recorder.events.get(1));
+  }
+
+  @Test
+  public void emptyTest() {
+    Recorder recorder = new Recorder(Integer.MAX_VALUE);
+    SearchResultReader.read(new StringReader(" { } "), recorder);
+    SearchResultReader.read(new StringReader("{\"entry\":[]}"), recorder);
+    assertTrue(recorder.events.isEmpty());
+  }
+
+  @Test(expected = JSONException.class)
+  public void notAnObjectTest() {
+    SearchResultReader.read(new StringReader("not a search bundle"), new Recorder(Integer.MAX_VALUE));
+  }
+
+  @Test(expected = JSONException.class)
+  public void truncatedTest() {
+    SearchResultReader.read(new StringReader("{\"meta\":{\"tag\":[{\"code\":\"a\"}"), new Recorder(Integer.MAX_VALUE));
+  }
+}
@@ -0,0 +1,358 @@
+package org.mitre.hapifhir;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Reference;
+
+public class SubmissionQueueTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static OperationOutcome outcome(OperationOutcome.IssueType code) {
+    OperationOutcome outcome = new OperationOutcome();
+    outcome.addIssue().setCode(code);
+    return outcome;
+  }
+
+  private static Bundle report(String id) {
+    Bundle report = new Bundle();
+    report.setId(id);
+    report.addEntry().setResource(header());
+    return report;
+  }
+
+  private static MessageHeader header() {
+    return new MessageHeader().setSender(new Reference("Organization/test-org"));
+  }
+
+  @Test
+  public void resumeAfterRestartTest() throws Exception {
+    File journal = folder.newFile("journal");
+    CountDownLatch blocked = new CountDownLatch(1);
+    SubmissionQueue queue = new SubmissionQueue(journal, 1, (report, header) -> {
+      // The report then waits out the retry delay until the queue is closed
+      blocked.countDown();
+      return outcome(OperationOutcome.IssueType.TRANSIENT);
+    });
+    queue.start();
+    queue.enqueue(report("first"), header());
+    queue.enqueue(report("second"), header());
+    assertTrue(blocked.await(10, TimeUnit.SECONDS));
+    assertEquals(2, queue.getDepth());
+    queue.close();
+
+    // Both reports, including the one that was being submitted, are submitted by the next queue
+    BlockingQueue<String> submitted = new LinkedBlockingQueue<>();
+    CountDownLatch completed = new CountDownLatch(2);
+    CountDownLatch thirdStarted = new CountDownLatch(1);
+    queue = new SubmissionQueue(journal, 1, (report, header) -> {
+      if ("third".equals(report.getIdElement().getIdPart())) {
+        // Keep the last report pending until the queue is closed
+        thirdStarted.countDown();
+        return outcome(OperationOutcome.IssueType.TRANSIENT);
+      }
+      submitted.add(report.getIdElement().getIdPart());
+      return outcome(OperationOutcome.IssueType.INFORMATIONAL);
+    });
+    // Nothing is submitted until the queue is started, so the handler sees the resumed reports
+    queue.setCompletionHandler((id, outcome) -> completed.countDown());
+    queue.start();
+    assertTrue(completed.await(10, TimeUnit.SECONDS));
+    assertEquals("first", submitted.poll());
+    assertEquals("second", submitted.poll());
+    assertEquals(0, queue.getDepth());
+
+    // IDs carry on from the previous run, and the emptied journal is compacted
+    assertEquals("3", queue.enqueue(report("third"), header()));
+    assertTrue(thirdStarted.await(10, TimeUnit.SECONDS));
+    queue.close();
+    List<String> lines = Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8);
+    assertEquals(2, lines.size());
+    assertEquals("SEQ\t3", lines.get(0));
+    assertTrue(lines.get(1).startsWith("ENQ\t3\t"));
+  }
+
+  @Test
+  public void retryTransientFailureTest() throws Exception {
+    File journal = folder.newFile("journal");
+    AtomicInteger attempts = new AtomicInteger();
+    CountDownLatch completed = new CountDownLatch(2);
+    SubmissionQueue queue = new SubmissionQueue(journal, 2, (report, header) -> {
+      if ("retried".equals(report.getIdElement().getIdPart()) && attempts.incrementAndGet() < 3) {
+        return outcome(OperationOutcome.IssueType.TIMEOUT);
+      }
+      // Other failures are final
+      return outcome(OperationOutcome.IssueType.PROCESSING);
+    });
+    queue.setRetryDelay(1, TimeUnit.MILLISECONDS);
+    BlockingQueue<OperationOutcome.IssueType> outcomes = new LinkedBlockingQueue<>();
+    queue.setCompletionHandler((id, outcome) -> {
+      outcomes.add(outcome.getIssueFirstRep().getCode());
+      completed.countDown();
+    });
+    queue.start();
+    queue.enqueue(report("retried"), header());
+    queue.enqueue(report("rejected"), header());
+
+    assertTrue(completed.await(10, TimeUnit.SECONDS));
+    assertEquals(3, attempts.get());
+    assertEquals(OperationOutcome.IssueType.PROCESSING, outcomes.poll());
+    assertEquals(OperationOutcome.IssueType.PROCESSING, outcomes.poll());
+    assertEquals(0, queue.getDepth());
+    queue.close();
+  }
+
+  @Test
+  public void retryOffWorkerTest() throws Exception {
+    File journal = folder.newFile("journal");
+    CountDownLatch completed = new CountDownLatch(3);
+    SubmissionQueue queue = new SubmissionQueue(journal, 1, (report, header) -> {
+      if ("retried".equals(report.getIdElement().getIdPart())) return outcome(OperationOutcome.IssueType.TRANSIENT);
+      return outcome(OperationOutcome.IssueType.INFORMATIONAL);
+    });
+    queue.setRetryDelay(1, TimeUnit.MINUTES);
+    queue.setCompletionHandler((id, outcome) -> completed.countDown());
+    queue.start();
+
+    // The only worker goes on with the other reports while the first waits to be retried
+    queue.enqueue(report("retried"), header());
+    for (int i = 0; i < 3; i++) {
+      queue.enqueue(report("fine" + i), header());
+    }
+    assertTrue(completed.await(10, TimeUnit.SECONDS));
+    assertEquals(1, queue.getDepth());
+    queue.close();
+  }
+
+  @Test
+  public void retryLimitTest() throws Exception {
+    File journal = folder.newFile("journal");
+    AtomicInteger attempts = new AtomicInteger();
+    SubmissionQueue queue = new SubmissionQueue(journal, 1, (report, header) -> {
+      attempts.incrementAndGet();
+      return outcome(OperationOutcome.IssueType.TRANSIENT);
+    });
+    queue.setRetryDelay(1, TimeUnit.MILLISECONDS);
+    queue.setRetryLimits(3, 0, TimeUnit.MILLISECONDS);
+    BlockingQueue<OperationOutcome.IssueType> outcomes = new LinkedBlockingQueue<>();
+    queue.setCompletionHandler((id, outcome) -> outcomes.add(outcome.getIssueFirstRep().getCode()));
+    queue.start();
+
+    // A report that keeps failing completes with its last outcome after the last attempt
+    queue.enqueue(report("rejected"), header());
+    assertEquals(OperationOutcome.IssueType.TRANSIENT, outcomes.poll(10, TimeUnit.SECONDS));
+    assertEquals(3, attempts.get());
+    assertEquals(0, queue.getDepth());
+
+    // Or once it is too old
+    queue.setRetryLimits(0, 50, TimeUnit.MILLISECONDS);
+    queue.enqueue(report("old"), header());
+    assertEquals(OperationOutcome.IssueType.TRANSIENT, outcomes.poll(10, TimeUnit.SECONDS));
+    assertEquals(0, queue.getDepth());
+    queue.close();
+    assertEquals(Arrays.asList("SEQ\t3"), Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void compactWhilePendingTest() throws Exception {
+    File journal = folder.newFile("journal");
+    CountDownLatch stuck = new CountDownLatch(1);
+    CountDownLatch completed = new CountDownLatch(10);
+    SubmissionQueue queue = new SubmissionQueue(journal, 2, (report, header) -> {
+      if ("stuck".equals(report.getIdElement().getIdPart())) {
+        stuck.countDown();
+        return outcome(OperationOutcome.IssueType.TRANSIENT);
+      }
+      return outcome(OperationOutcome.IssueType.INFORMATIONAL);
+    });
+    queue.setRetryDelay(1, TimeUnit.MINUTES);
+    queue.setCompletionHandler((id, outcome) -> completed.countDown());
+    queue.start();
+    queue.enqueue(report("stuck"), header());
+    assertTrue(stuck.await(10, TimeUnit.SECONDS));
+    for (int i = 0; i < 10; i++) {
+      queue.enqueue(report("fine" + i), header());
+    }
+    assertTrue(completed.await(10, TimeUnit.SECONDS));
+
+    // The completed reports are compacted away although the queue never emptied,
+    // and the report waiting to be retried is kept
+    assertEquals(1, queue.getDepth());
+    List<String> lines = Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8);
+    assertEquals(2, lines.size());
+    assertEquals("SEQ\t12", lines.get(0));
+    assertTrue(lines.get(1).startsWith("ENQ\t1\t"));
+    queue.close();
+
+    queue = new SubmissionQueue(journal, 1, (report, header) -> outcome(OperationOutcome.IssueType.INFORMATIONAL));
+    assertEquals(1, queue.getDepth());
+    queue.close();
+  }
+
+  @Test
+  public void unexpectedExceptionTest() throws Exception {
+    File journal = folder.newFile("journal");
+    SubmissionQueue queue = new SubmissionQueue(journal, 1, (report, header) -> {
+      if ("broken".equals(report.getIdElement().getIdPart())) throw new IllegalStateException("bug");
+      return outcome(OperationOutcome.IssueType.INFORMATIONAL);
+    });
+    BlockingQueue<String> completed = new LinkedBlockingQueue<>();
+    queue.setCompletionHandler((id, outcome) -> {
+      completed.add(id + " " + outcome.getIssueFirstRep().getCode().toCode());
+      throw new IllegalStateException("handler bug");
+    });
+    queue.start();
+    queue.enqueue(report("broken"), header());
+    queue.enqueue(report("fine"), header());
+
+    // Neither exception stops the single worker, and the failed report is final
+    assertEquals("1 exception", completed.poll(10, TimeUnit.SECONDS));
+    assertEquals("2 informational", completed.poll(10, TimeUnit.SECONDS));
+    assertEquals(0, queue.getDepth());
+    queue.close();
+    assertEquals(Arrays.asList("SEQ\t3"), Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void acknowledgeWhileClosingTest() throws Exception {
+    File journal = folder.newFile("journal");
+    CountDownLatch started = new CountDownLatch(1);
+    SubmissionQueue queue = new SubmissionQueue(journal, 2, (report, header) -> {
+      if ("slow".equals(report.getIdElement().getIdPart())) {
+        started.countDown();
+        // Accepted by CIBMTR while the queue is closing
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          throw new IllegalStateException("A submission in progress was interrupted");
+        }
+        return outcome(OperationOutcome.IssueType.INFORMATIONAL);
+      }
+      return outcome(OperationOutcome.IssueType.TRANSIENT);
+    });
+    queue.start();
+    queue.enqueue(report("slow"), header());
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    queue.close();
+
+    // The accepted report is not submitted again by the next queue
+    BlockingQueue<String> submitted = new LinkedBlockingQueue<>();
+    queue = new SubmissionQueue(journal, 1, (report, header) -> {
+      submitted.add(report.getIdElement().getIdPart());
+      return outcome(OperationOutcome.IssueType.INFORMATIONAL);
+    });
+    assertEquals(0, queue.getDepth());
+    queue.close();
+  }
+
+  @Test
+  public void truncatedRecordTest() throws Exception {
+    File journal = folder.newFile("journal");
+    Files.write(journal.toPath(), "ENQ\t7\t{\"resourceType\":\"MessageHeader\"}\t{\"resourceType\":\"Bun".getBytes(StandardCharsets.UTF_8));
+
+    SubmissionQueue queue = new SubmissionQueue(journal, 1, (report, header) -> outcome(OperationOutcome.IssueType.INFORMATIONAL));
+    assertEquals(0, queue.getDepth());
+    queue.close();
+  }
+
+  @Test
+  public void legacyRecordTest() throws Exception {
+    File journal = folder.newFile("journal");
+    SubmissionQueue queue = new SubmissionQueue(journal, 1, (report, header) -> outcome(OperationOutcome.IssueType.INFORMATIONAL));
+    queue.enqueue(report("legacy"), header());
+    queue.close();
+    // Written before the enqueue time was recorded
+    String[] fields = Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8).get(1).split("\t");
+    Files.write(journal.toPath(), String.join("\t", fields[0], fields[1], fields[3], fields[4]).concat("\n")
+        .getBytes(StandardCharsets.UTF_8));
+
+    BlockingQueue<String> submitted = new LinkedBlockingQueue<>();
+    queue = new SubmissionQueue(journal, 1, (report, header) -> {
+      submitted.add(report.getIdElement().getIdPart());
+      return outcome(OperationOutcome.IssueType.INFORMATIONAL);
+    });
+    assertEquals("2", queue.enqueue(report("current"), header()));
+    queue.start();
+    assertEquals("legacy", submitted.poll(10, TimeUnit.SECONDS));
+    assertEquals("current", submitted.poll(10, TimeUnit.SECONDS));
+    queue.close();
+  }
+
+  @Test
+  public void corruptRecordTest() throws Exception {
+    File journal = folder.newFile("journal");
+    SubmissionQueue queue = new SubmissionQueue(journal, 1, (report, header) -> outcome(OperationOutcome.IssueType.INFORMATIONAL));
+    queue.enqueue(report("first"), header());
+    queue.enqueue(report("second"), header());
+    queue.close();
+    List<String> records = Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8).subList(1, 3);
+    String corrupt = "ENQ\t9\t{\"resourceType\":\"MessageHeader\"}\t{\"resourceType\":\"Bun";
+    Files.write(journal.toPath(), (records.get(0) + "\n" + corrupt + "\nACK\n" + records.get(1) + "\n")
+        .getBytes(StandardCharsets.UTF_8));
+
+    // Records that cannot be read, other than a torn last line, are moved to the quarantine file
+    BlockingQueue<String> submitted = new LinkedBlockingQueue<>();
+    queue = new SubmissionQueue(journal, 1, (report, header) -> {
+      submitted.add(report.getIdElement().getIdPart());
+      return outcome(OperationOutcome.IssueType.INFORMATIONAL);
+    });
+    assertEquals(2, queue.getDepth());
+    assertEquals(Arrays.asList(corrupt, "ACK"), Files.readAllLines(queue.getQuarantineFile().toPath(), StandardCharsets.UTF_8));
+    assertEquals(records, Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8).subList(1, 3));
+    queue.start();
+    assertEquals("first", submitted.poll(10, TimeUnit.SECONDS));
+    assertEquals("second", submitted.poll(10, TimeUnit.SECONDS));
+    queue.close();
+  }
+
+  @Test
+  public void idsAfterCompactionTest() throws Exception {
+    File journal = folder.newFile("journal");
+    CountDownLatch completed = new CountDownLatch(2);
+    SubmissionQueue queue = new SubmissionQueue(journal, 1, (report, header) -> outcome(OperationOutcome.IssueType.INFORMATIONAL));
+    queue.setCompletionHandler((id, outcome) -> completed.countDown());
+    queue.start();
+    queue.enqueue(report("first"), header());
+    queue.enqueue(report("second"), header());
+    assertTrue(completed.await(10, TimeUnit.SECONDS));
+    queue.close();
+
+    // The journal was compacted to empty, but the next queue still does not reuse the IDs
+    BlockingQueue<String> submitted = new LinkedBlockingQueue<>();
+    queue = new SubmissionQueue(journal, 1, (report, header) -> {
+      submitted.add(report.getIdElement().getIdPart());
+      return outcome(OperationOutcome.IssueType.INFORMATIONAL);
+    });
+    assertEquals(0, queue.getDepth());
+    assertEquals("3", queue.enqueue(report("third"), header()));
+    queue.close();
+
+    // Reports enqueued before and after a compaction are read back from where it moved them
+    queue = new SubmissionQueue(journal, 1, (report, header) -> {
+      submitted.add(report.getIdElement().getIdPart());
+      return outcome(OperationOutcome.IssueType.INFORMATIONAL);
+    });
+    assertEquals("4", queue.enqueue(report("fourth"), header()));
+    queue.start();
+    assertEquals("third", submitted.poll(10, TimeUnit.SECONDS));
+    assertEquals("fourth", submitted.poll(10, TimeUnit.SECONDS));
+    queue.close();
+  }
+}
@@ -0,0 +1,52 @@
+package org.mitre.hapifhir;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class TransactionBundleEntityTest {
+  private static JSONObject entry(String url) {
+    JSONObject request = new JSONObject();
+    request.put("method", "POST");
+    request.put("url", url);
+    return new JSONObject().put("request", request);
+  }
+
+  @Test
+  public void matchesJsonObjectBundleTest() throws Exception {
+    List<JSONObject> entries = Arrays.asList(entry("Observation"), entry("Observation/\u00e9")); // e-acute, to check UTF-8 output
+    TransactionBundleEntity<JSONObject> entity = new TransactionBundleEntity<>(entries, (item, writer) -> item.write(writer));
+
+    JSONObject bundle = new JSONObject();
+    bundle.put("resourceType", "Bundle");
+    bundle.put("type", "transaction");
+    bundle.put("entry", new JSONArray(entries));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    entity.writeTo(out);
+    assertEquals(bundle.toString(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+    assertEquals(-1, entity.getContentLength());
+    assertTrue(entity.isRepeatable());
+
+    // Writing again produces the same body, so the request can be retried
+    ByteArrayOutputStream again = new ByteArrayOutputStream();
+    entity.writeTo(again);
+    assertEquals(out.toString("UTF-8"), again.toString("UTF-8"));
+  }
+
+  @Test
+  public void emptyBundleTest() throws Exception {
+    TransactionBundleEntity<JSONObject> entity = new TransactionBundleEntity<>(Arrays.asList(), (item, writer) -> item.write(writer));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    entity.writeTo(out);
+    assertEquals(0, new JSONObject(out.toString("UTF-8")).getJSONArray("entry").length());
+  }
+}